@@ -0,0 +1,388 @@
+package main.directive;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.xilinx.rapidwright.util.FileTools;
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+import main.util.FileUtils;
+
+/**
+ * In memory index of the {@link DependancyMeta metadata} of every entry in a
+ * module cache, backed by a single file at the root of the cache.
+ * <p>
+ * The file is read once per run. Each line records one cache entry (its path
+ * relative to the cache, the size and modification time of its metadata and
+ * dcp, its synth, initial, cache key, dependancies and file checksums). Updates are appended,
+ * so the last line for an entry wins. When the file has gathered too many
+ * superseded lines it is rewritten (compacted) on load.
+ * <p>
+ * Several ShellBuilders may share a cache. Appending and compacting hold a
+ * lock on a file beside the index ({@value #LOCK_FILENAME}), and compacting
+ * reads the file again under the lock, so no process loses lines another one
+ * appended.
+ * <p>
+ * An entry from the index is only used if the metadata and dcp on disk still
+ * have the recorded size and modification time. Otherwise the metadata is
+ * parsed again and the new record is appended. So a lookup costs two stat
+ * calls instead of several stats plus parsing metadata.xml.
+ * <p>
+ * The index also records when each entry was last looked up and in how many
+ * runs, for {@link main.worker.CacheGC eviction}.
+ * <p>
+ * Valid sites are not stored in the index. Read them from the metadata file.
+ */
+public class CacheIndex {
+	public static final String INDEX_FILENAME = "cache_index.tsv";
+	/**
+	 * Locked while the index file is written. Never deleted or replaced, unlike
+	 * the index file, so every process locks the same file.
+	 */
+	private static final String LOCK_FILENAME = ".cache_index.lock";
+	private static final String HEADER_LINE = "# ShellBuilder cache index v1";
+	private static final String SEP = "\t";
+	private static final String LIST_SEP = "|";
+	private static final String CHECKSUM_SEP = ",";
+	private static final String REMOVED = "-";
+	/**
+	 * Compact when the file has more than this many lines per live entry.
+	 */
+	private static final int COMPACT_RATIO = 2;
+
+	private static final Map<String, CacheIndex> indexes = new HashMap<>();
+
+	private final File cache_dir;
+	private final File index_file;
+	private final File lock_file;
+	private final Map<String, Record> records = new LinkedHashMap<>();
+	/**
+	 * Entries whose use was already counted this run.
+	 */
+	private final Set<String> used_this_run = new HashSet<>();
+
+	/**
+	 * State of one cache entry as recorded in the index.
+	 */
+	private static class Record {
+		long meta_time;
+		long meta_size;
+		long dcp_time;
+		long dcp_size;
+		String synth;
+		String initial;
+		String cache_key;
+		List<String> deps = new ArrayList<>();
+		long last_used;
+		int uses;
+		List<DependancyMeta.Checksum> checksums = new ArrayList<>();
+
+		String toLine(String path) {
+			StringBuilder sb = new StringBuilder(path);
+			sb.append(SEP).append(meta_time).append(SEP).append(meta_size);
+			sb.append(SEP).append(dcp_time).append(SEP).append(dcp_size);
+			sb.append(SEP).append(synth == null ? "" : synth);
+			sb.append(SEP).append(initial == null ? "" : initial);
+			sb.append(SEP).append(cache_key == null ? "" : cache_key);
+			sb.append(SEP).append(String.join(LIST_SEP, deps));
+			sb.append(SEP).append(last_used).append(SEP).append(uses);
+			List<String> sums = new ArrayList<>();
+			for (DependancyMeta.Checksum c : checksums)
+				sums.add(c.getName() + CHECKSUM_SEP + c.getSize() + CHECKSUM_SEP + c.getDigest() + CHECKSUM_SEP
+						+ c.getSample());
+			sb.append(SEP).append(String.join(LIST_SEP, sums));
+			return sb.toString();
+		}
+
+		static Record fromFields(String[] fields) {
+			Record r = new Record();
+			r.meta_time = Long.parseLong(fields[1]);
+			r.meta_size = Long.parseLong(fields[2]);
+			r.dcp_time = Long.parseLong(fields[3]);
+			r.dcp_size = Long.parseLong(fields[4]);
+			r.synth = fields[5].isEmpty() ? null : fields[5];
+			r.initial = fields[6].isEmpty() ? null : fields[6];
+			r.cache_key = fields[7].isEmpty() ? null : fields[7];
+			if (fields.length > 8 && !fields[8].isEmpty())
+				for (String dep : fields[8].split("\\" + LIST_SEP))
+					r.deps.add(dep);
+			if (fields.length > 10) {
+				r.last_used = Long.parseLong(fields[9]);
+				r.uses = Integer.parseInt(fields[10]);
+			}
+			if (fields.length > 11 && !fields[11].isEmpty()) {
+				for (String sum : fields[11].split("\\" + LIST_SEP)) {
+					String[] parts = sum.split(CHECKSUM_SEP, -1);
+					if (parts.length == 4)
+						r.checksums.add(new DependancyMeta.Checksum(parts[0], Long.parseLong(parts[1]), parts[2],
+								parts[3]));
+				}
+			}
+			return r;
+		}
+	}
+
+	/**
+	 * Result of looking up an entry.
+	 */
+	public static class Entry {
+		private final File dcp;
+		private final long dcp_time;
+		private final DependancyMeta meta;
+
+		Entry(File dcp, long dcp_time, DependancyMeta meta) {
+			this.dcp = dcp;
+			this.dcp_time = dcp_time;
+			this.meta = meta;
+		}
+
+		/**
+		 * @return The cached dcp.
+		 */
+		public File getDCP() {
+			return dcp;
+		}
+
+		/**
+		 * @return Modification time of the cached dcp when it was looked up.
+		 */
+		public long getDCPTime() {
+			return dcp_time;
+		}
+
+		/**
+		 * @return Metadata of the entry (without valid sites).
+		 */
+		public DependancyMeta getMeta() {
+			return meta;
+		}
+	}
+
+	private CacheIndex(File cache_dir) {
+		this.cache_dir = cache_dir;
+		this.index_file = new File(cache_dir, INDEX_FILENAME);
+		this.lock_file = new File(cache_dir, LOCK_FILENAME);
+		load();
+	}
+
+	/**
+	 * @param cache_dir Root of a module cache (iii_dir/moduleCache).
+	 * @return The index of that cache. Loaded from disk the first time it is
+	 *         requested this run.
+	 */
+	public static synchronized CacheIndex forCache(File cache_dir) {
+		String key = cache_dir.getAbsolutePath();
+		CacheIndex index = indexes.get(key);
+		if (index == null) {
+			index = new CacheIndex(cache_dir);
+			indexes.put(key, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Find an entry in the cache.
+	 *
+	 * @param impl_dir    Directory of the entry.
+	 * @param module_name Name of the module (the dcp is module_name.dcp).
+	 * @param verbose     Print extra messages.
+	 * @return The entry. Null if its dcp or metadata doesn't exist.
+	 */
+	public synchronized Entry lookup(File impl_dir, String module_name, boolean verbose) {
+		File dcp = new File(impl_dir, module_name + ".dcp");
+		File meta_file = new File(impl_dir, DependancyMeta.META_FILENAME);
+		// lastModified is 0 if the file doesn't exist
+		long dcp_time = dcp.lastModified();
+		long meta_time = meta_file.lastModified();
+		if (dcp_time == 0 || meta_time == 0)
+			return null;
+
+		String path = relativePath(impl_dir);
+		Record r = records.get(path);
+		long dcp_size = dcp.length();
+		long meta_size = meta_file.length();
+		boolean changed = false;
+		if (r == null || r.meta_time != meta_time || r.meta_size != meta_size) {
+			DependancyMeta parsed = new DependancyMeta(meta_file, verbose);
+			Record old = r;
+			r = new Record();
+			if (old != null) {
+				r.last_used = old.last_used;
+				r.uses = old.uses;
+			}
+			r.meta_time = meta_time;
+			r.meta_size = meta_size;
+			r.synth = (parsed.getTopLevelSynth() == null) ? null : parsed.getTopLevelSynth().getAbsolutePath();
+			r.initial = (parsed.getInitial() == null) ? null : parsed.getInitial().getAbsolutePath();
+			r.cache_key = parsed.getCacheKey();
+			for (File dep : parsed.getDependancies())
+				r.deps.add(dep.getAbsolutePath());
+			r.checksums.addAll(parsed.getChecksums());
+			r.dcp_time = dcp_time;
+			r.dcp_size = dcp_size;
+			changed = true;
+		} else if (r.dcp_time != dcp_time || r.dcp_size != dcp_size) {
+			r.dcp_time = dcp_time;
+			r.dcp_size = dcp_size;
+			changed = true;
+		}
+		// count each entry at most once per run for eviction
+		if (used_this_run.add(path)) {
+			r.last_used = System.currentTimeMillis();
+			r.uses++;
+			changed = true;
+		}
+		if (changed)
+			put(path, r);
+		return new Entry(dcp, dcp_time, toMeta(r, verbose));
+	}
+
+	/**
+	 * Drop the entry from the index (eg. when it is deleted from the cache).
+	 *
+	 * @param impl_dir Directory of the entry.
+	 */
+	public synchronized void remove(File impl_dir) {
+		String path = relativePath(impl_dir);
+		if (records.remove(path) != null)
+			append(path + SEP + REMOVED);
+	}
+
+	/**
+	 * @param impl_dir Directory of the entry.
+	 * @return Time (ms) the entry was last looked up. 0 if unknown.
+	 */
+	public synchronized long getLastUsed(File impl_dir) {
+		Record r = records.get(relativePath(impl_dir));
+		return (r == null) ? 0 : r.last_used;
+	}
+
+	/**
+	 * @param impl_dir Directory of the entry.
+	 * @return Number of runs that looked up the entry. 0 if unknown.
+	 */
+	public synchronized int getUses(File impl_dir) {
+		Record r = records.get(relativePath(impl_dir));
+		return (r == null) ? 0 : r.uses;
+	}
+
+	/**
+	 * @return Directories of all entries in the index.
+	 */
+	public synchronized List<File> getEntryDirs() {
+		List<File> dirs = new ArrayList<>();
+		for (String path : records.keySet())
+			dirs.add(path.isEmpty() ? cache_dir : new File(cache_dir, path));
+		return dirs;
+	}
+
+	private DependancyMeta toMeta(Record r, boolean verbose) {
+		ArrayDeque<File> deps = new ArrayDeque<>();
+		for (String dep : r.deps)
+			deps.add(new File(dep));
+		return new DependancyMeta(deps, (r.synth == null) ? null : new File(r.synth),
+				(r.initial == null) ? null : new File(r.initial), r.cache_key, r.checksums, verbose);
+	}
+
+	private String relativePath(File impl_dir) {
+		String root = cache_dir.getAbsolutePath();
+		String path = impl_dir.getAbsolutePath();
+		if (path.equals(root))
+			return "";
+		if (path.startsWith(root + File.separator))
+			return path.substring(root.length() + 1);
+		return path;
+	}
+
+	private void put(String path, Record r) {
+		records.put(path, r);
+		append(r.toLine(path));
+	}
+
+	private void append(String line) {
+		if (!cache_dir.isDirectory())
+			return;
+		try (RandomAccessFile raf = new RandomAccessFile(lock_file, "rw"); FileLock lock = raf.getChannel().lock()) {
+			boolean new_file = !index_file.exists();
+			try (BufferedWriter bw = new BufferedWriter(new FileWriter(index_file, true))) {
+				if (new_file)
+					bw.write(HEADER_LINE + "\n");
+				bw.write(line + "\n");
+			}
+		} catch (IOException ioe) {
+			MessageGenerator.briefError("Failed to update cache index '" + index_file.getAbsolutePath() + "'.");
+		}
+	}
+
+	/**
+	 * Read the index file. Compacts it if needed.
+	 */
+	private void load() {
+		if (readIndex() > COMPACT_RATIO * records.size())
+			compact();
+	}
+
+	/**
+	 * Apply the lines of the index file to records.
+	 *
+	 * @return Number of records in the file (live or not).
+	 */
+	private int readIndex() {
+		if (!index_file.isFile())
+			return 0;
+		List<String> lines = FileTools.getLinesFromTextFile(index_file.getAbsolutePath());
+		if (lines == null)
+			return 0;
+		int num_lines = 0;
+		for (String line : lines) {
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			num_lines++;
+			String[] fields = line.split(SEP, -1);
+			if (fields.length == 2 && fields[1].equals(REMOVED)) {
+				records.remove(fields[0]);
+				continue;
+			}
+			if (fields.length < 8)
+				continue; // partially written line
+			try {
+				// remove first so the order of the map is the order of last update
+				records.remove(fields[0]);
+				records.put(fields[0], Record.fromFields(fields));
+			} catch (NumberFormatException nfe) {
+			}
+		}
+		return num_lines;
+	}
+
+	/**
+	 * Rewrite the index file with one line per live entry. The file is read again
+	 * under the lock first, so lines appended by other processes since it was
+	 * loaded are kept.
+	 */
+	private void compact() {
+		try (RandomAccessFile raf = new RandomAccessFile(lock_file, "rw"); FileLock lock = raf.getChannel().lock()) {
+			records.clear();
+			readIndex();
+			List<String> lines = new ArrayList<>();
+			lines.add(HEADER_LINE);
+			for (Map.Entry<String, Record> e : records.entrySet())
+				lines.add(e.getValue().toLine(e.getKey()));
+			FileUtils.writeLinesAtomically(lines, index_file);
+		} catch (IOException ioe) {
+			MessageGenerator.briefError("Failed to compact cache index '" + index_file.getAbsolutePath() + "'.");
+		}
+	}
+}
@@ -24,8 +24,14 @@ import main.parser.ArgsContainer;
 import main.parser.XMLParser;
 import main.parser.XMLParser.BaseEnum;
 import main.parser.XMLParser.TAG;
+import main.util.FileDigest;
+import main.util.FileUtils;
+import main.util.PBlockEstimator;
+import main.util.PBlockSpec;
+import main.worker.CacheKey;
 import main.worker.FileSys;
 import main.worker.Merger;
+import main.worker.XDCWriter;
 
 /**
  * Provides support for reading and writing metadata dependancy files for the
@@ -38,6 +44,10 @@ public class DependancyMeta {
 	File synth_1 = null;
 	File initial_file = null;
 	ArrayDeque<String> sites = null;
+	String cache_key = null;
+	String pblock = null;
+	String utilization = null;
+	List<Checksum> checksums = new ArrayList<>();
 
 	/**
 	 * Default name for metadata files.
@@ -50,6 +60,26 @@ public class DependancyMeta {
 		this.verbose = verbose;
 	}
 
+	/**
+	 * Create metadata from already known values (eg. from the {@link CacheIndex}).
+	 * 
+	 * @param dependancies Files the design depends on.
+	 * @param synth_1      Top level synth file. May be null.
+	 * @param initial      Initial file. May be null.
+	 * @param cache_key    Content based key. May be null.
+	 * @param checksums    Checksums of the files of the entry.
+	 * @param verbose      Print extra messages.
+	 */
+	DependancyMeta(Collection<File> dependancies, File synth_1, File initial, String cache_key,
+			Collection<Checksum> checksums, boolean verbose) {
+		this(verbose);
+		this.dependancies.addAll(dependancies);
+		this.synth_1 = synth_1;
+		this.initial_file = initial;
+		this.cache_key = cache_key;
+		this.checksums.addAll(checksums);
+	}
+
 	/**
 	 * Create a new dependancy file reader and {@link #parse} this file.
 	 * 
@@ -160,6 +190,30 @@ public class DependancyMeta {
 			}
 		}
 
+		String key_text = XMLParser.getFirst(element, cache_key_tag);
+		if (key_text != null)
+			cache_key = key_text.trim();
+
+		String pblock_text = XMLParser.getFirst(element, pblock_tag);
+		if (pblock_text != null)
+			pblock = pblock_text.trim();
+
+		String utilization_text = XMLParser.getFirst(element, utilization_tag);
+		if (utilization_text != null)
+			utilization = utilization_text.trim();
+
+		Queue<Element> checksums_children = XMLParser.getChildElementsFromTagName(element, checksums_tag.key);
+		for (Element elem : checksums_children) {
+			for (Element e : XMLParser.getChildElementsFromTagName(elem, checksum_tag.key)) {
+				try {
+					checksums.add(new Checksum(e.getAttribute(CHECKSUM_NAME), Long.parseLong(e.getAttribute(CHECKSUM_SIZE)),
+							e.getTextContent().trim(), e.getAttribute(CHECKSUM_SAMPLE)));
+				} catch (NumberFormatException nfe) {
+					printIfVerbose("Ignoring checksum with bad size in metadata.", verbose);
+				}
+			}
+		}
+
 		Queue<Element> valid_sites_children = XMLParser.getChildElementsFromTagName(element, valid_sites.key);
 		for (Element elem : valid_sites_children) {
 			Queue<Element> sites_children = XMLParser.getChildElementsFromTagName(elem, site.key);
@@ -201,13 +255,13 @@ public class DependancyMeta {
 		else if (!output_dir.exists())
 			FileTools.makeDirs(output_dir.getAbsolutePath());
 
-		File iii_dir = fsys.getRoot(FileSys.FILE_ROOT.III);
-		File ooc_dir = fsys.getRoot(FileSys.FILE_ROOT.OOC);
+		File iii_dir = (fsys == null) ? null : fsys.getRoot(FileSys.FILE_ROOT.III);
+		File ooc_dir = (fsys == null) ? null : fsys.getRoot(FileSys.FILE_ROOT.OOC);
 
 		String meta_filename = output_dir.getAbsolutePath() + "/" + META_FILENAME;
-		List<String> lines = toMetaLines(dependancies, iii_dir, ooc_dir, synth_1, initial_file, sites, meta_filename,
-				verbose);
-		FileTools.writeLinesToTextFile(lines, meta_filename);
+		List<String> lines = toMetaLines(dependancies, iii_dir, ooc_dir, synth_1, initial_file, sites, cache_key,
+				pblock, utilization, checksums, meta_filename, verbose);
+		FileUtils.writeLinesAtomically(lines, new File(meta_filename));
 	}
 
 	/**
@@ -221,7 +275,41 @@ public class DependancyMeta {
 	 */
 	public static void writeMeta(File output_dir, Directive directive, ArrayDeque<String> sites,
 			ArgsContainer args) {
-		writeMeta(output_dir, META_FILENAME, directive, sites, args);
+		writeMeta(output_dir, META_FILENAME, directive, sites, null, args);
+	}
+
+	/**
+	 * Write metadata to a file.
+	 * 
+	 * @param output_dir  Directory to which metadata will be written.
+	 * @param directive   Directive to write metadata for.
+	 * @param sites       Names of {@link com.xilinx.rapidwright.device.Site} which
+	 *                    are valid placements for this directive.
+	 * @param utilization Primitive counts of the module (see
+	 *                    {@link PBlockEstimator.Utilization}). May be null.
+	 * @param args        Arguments from command line. If null, verbose is false.
+	 */
+	public static void writeMeta(File output_dir, Directive directive, ArrayDeque<String> sites,
+			PBlockEstimator.Utilization utilization, ArgsContainer args) {
+		writeMeta(output_dir, META_FILENAME, directive, sites, utilization, args);
+	}
+
+	/**
+	 * Checksum the files of a cache entry: every file in dir (except metadata and
+	 * hidden files) plus the constraints file of the entry.
+	 */
+	private static List<Checksum> checksumFiles(File dir, Directive directive, ArgsContainer args) {
+		List<Checksum> sums = new ArrayList<>();
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				if (f.isFile() && !f.getName().equals(META_FILENAME) && !f.getName().startsWith("."))
+					sums.add(Checksum.of(f));
+		File impl_dir = Merger.getCacheImplDir(directive, args);
+		File constrs = (impl_dir == null) ? null : new File(impl_dir, XDCWriter.CONSTRAINTS_FILE);
+		if (constrs != null && constrs.isFile() && !new File(dir, constrs.getName()).isFile())
+			sums.add(Checksum.of(constrs));
+		return sums;
 	}
 
 	/**
@@ -232,10 +320,11 @@ public class DependancyMeta {
 	 * @param directive   Directive to write metadata for.
 	 * @param sites Names of {@link com.xilinx.rapidwright.device.Site} which
 	 *                    are valid placements for this directive.
+	 * @param utilization Primitive counts of the module. May be null.
 	 * @param args        Arguments from command line. If null, verbose is false.
 	 */
 	public static void writeMeta(File output_dir, String filename, Directive directive, ArrayDeque<String> sites,
-			ArgsContainer args) {
+			PBlockEstimator.Utilization utilization, ArgsContainer args) {
 		boolean verbose = (args != null) && args.verbose();
 
 		if (output_dir == null)
@@ -258,9 +347,12 @@ public class DependancyMeta {
 		String meta_filename = output_dir.getAbsolutePath() + "/" + filename;
 		File synth_1 = directive.getHeader().getTopLevelSynth();
 		File initial = directive.getHeader().getInitial();
-		List<String> lines = toMetaLines(dependancies, iii_dir, ooc_dir, synth_1, initial, sites, meta_filename,
-				verbose);
-		FileTools.writeLinesToTextFile(lines, meta_filename);
+		String cache_key = (args != null && args.contentHash()) ? CacheKey.compute(directive, args) : null;
+		String pblock = PBlockSpec.canonical(directive.getPBlockStr());
+		List<String> lines = toMetaLines(dependancies, iii_dir, ooc_dir, synth_1, initial, sites, cache_key, pblock,
+				(utilization == null) ? null : utilization.toString(), checksumFiles(output_dir, directive, args),
+				meta_filename, verbose);
+		FileUtils.writeLinesAtomically(lines, new File(meta_filename));
 	}
 
 	/**
@@ -286,6 +378,30 @@ public class DependancyMeta {
 	 */
 	public static List<String> toMetaLines(Collection<File> dependancies, File iii_dir, File ooc_dir, File synth_1,
 			File initial, Collection<String> sites, String output_filename, boolean verbose) {
+		return toMetaLines(dependancies, iii_dir, ooc_dir, synth_1, initial, sites, null, null, null, null,
+				output_filename, verbose);
+	}
+
+	/**
+	 * Transform a collection of dependancy files and some other data to a list of
+	 * lines (strings) of xml.
+	 * 
+	 * @param cache_key   Content based key of the entry (see
+	 *                    {@link main.worker.CacheKey CacheKey}). Not written if
+	 *                    null.
+	 * @param pblock      Canonical pblock the entry was placed in (see
+	 *                    {@link PBlockSpec}). Not written if null or empty.
+	 * @param utilization Primitive counts of the module (see
+	 *                    {@link PBlockEstimator.Utilization}). Not written if
+	 *                    null.
+	 * @param checksums   Checksums of the files of the entry. Not written if
+	 *                    null or empty.
+	 * @see #toMetaLines(Collection, File, File, File, File, Collection, String,
+	 *      boolean)
+	 */
+	public static List<String> toMetaLines(Collection<File> dependancies, File iii_dir, File ooc_dir, File synth_1,
+			File initial, Collection<String> sites, String cache_key, String pblock, String utilization,
+			Collection<Checksum> checksums, String output_filename, boolean verbose) {
 		List<String> lines = new ArrayList<>();
 		lines.add("<root>");
 
@@ -302,6 +418,20 @@ public class DependancyMeta {
 				lines.add("\t\t" + makeReducedFileLine(HEADER.initial, initial, iii_dir, ooc_dir));
 			lines.add("\t</" + header.key + ">");
 		}
+		if (cache_key != null)
+			lines.add("\t<" + cache_key_tag.key + ">" + cache_key + "</" + cache_key_tag.key + ">");
+		if (pblock != null && !pblock.isEmpty())
+			lines.add("\t<" + pblock_tag.key + ">" + pblock + "</" + pblock_tag.key + ">");
+		if (utilization != null)
+			lines.add("\t<" + utilization_tag.key + ">" + utilization + "</" + utilization_tag.key + ">");
+		if (checksums != null && !checksums.isEmpty()) {
+			lines.add("\t<" + checksums_tag.key + ">");
+			for (Checksum c : checksums)
+				lines.add("\t\t<" + checksum_tag.key + " " + CHECKSUM_NAME + " = \"" + c.getName() + "\" "
+						+ CHECKSUM_SIZE + " = \"" + c.getSize() + "\" " + CHECKSUM_SAMPLE + " = \"" + c.getSample()
+						+ "\">" + c.getDigest() + "</" + checksum_tag.key + ">");
+			lines.add("\t</" + checksums_tag.key + ">");
+		}
 
 		// Construct a dependancy instance for each file in dependancies.
 		if (dependancies != null) {
@@ -385,6 +515,37 @@ public class DependancyMeta {
 		sites = valid_placements;
 	}
 
+	/**
+	 * @return Content based key stored in the metadata. Null if there was none.
+	 */
+	public String getCacheKey() {
+		return cache_key;
+	}
+
+	/**
+	 * @return Canonical pblock the entry was placed in. Null if it has no pblock
+	 *         or the metadata was written before pblocks were stored.
+	 */
+	public String getPBlock() {
+		return pblock;
+	}
+
+	/**
+	 * @return Primitive counts of the module. Null if the metadata was written
+	 *         before they were stored.
+	 */
+	public PBlockEstimator.Utilization getUtilization() {
+		return PBlockEstimator.Utilization.parse(utilization);
+	}
+
+	/**
+	 * @return Unmodifiable list of checksums of the entry's files. Empty for
+	 *         metadata written before checksums were stored.
+	 */
+	public List<Checksum> getChecksums() {
+		return Collections.unmodifiableList(checksums);
+	}
+
 	/**
 	 * Top level synth file is updated each parse if it exists in header of parsed
 	 * file.
@@ -427,10 +588,70 @@ public class DependancyMeta {
 	public static final FILE dependancy = new FILE("dependancy");
 	public static final TAG valid_sites = new TAG("valid_sites");
 	public static final TAG site = new TAG("site");
+	public static final TAG cache_key_tag = new TAG("cache_key");
+	public static final TAG pblock_tag = new TAG("pblock");
+	public static final TAG utilization_tag = new TAG("utilization");
+	public static final TAG checksums_tag = new TAG("checksums");
+	public static final TAG checksum_tag = new TAG("checksum");
+	private static final String CHECKSUM_NAME = "name";
+	private static final String CHECKSUM_SIZE = "size";
+	private static final String CHECKSUM_SAMPLE = "sample";
+
+	/**
+	 * Size and digests of one file of a cache entry, used to detect truncated or
+	 * corrupt files before they are loaded.
+	 */
+	public static class Checksum {
+		private final String name;
+		private final long size;
+		private final String digest;
+		private final String sample;
+
+		/**
+		 * @param name   Name of the file in the entry's directory.
+		 * @param size   Length of the file in bytes.
+		 * @param digest {@link FileDigest#digest(File) Digest} of the whole file.
+		 * @param sample {@link FileDigest#sampleDigest(File) Digest} of samples of
+		 *               the file.
+		 */
+		public Checksum(String name, long size, String digest, String sample) {
+			this.name = name;
+			this.size = size;
+			this.digest = digest;
+			this.sample = (sample == null) ? "" : sample;
+		}
+
+		/**
+		 * @param f File to checksum.
+		 * @return Checksum of f's current contents.
+		 */
+		public static Checksum of(File f) {
+			return new Checksum(f.getName(), f.length(), FileDigest.digest(f), FileDigest.sampleDigest(f));
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public String getDigest() {
+			return digest;
+		}
+
+		/**
+		 * @return Digest of samples. Empty if none was stored.
+		 */
+		public String getSample() {
+			return sample;
+		}
+	}
 
 	/**
 	 * Multimap of modules and pblocks for use by
-	 * {@link Merger#findModuleInCache(Directive, ArgsContainer, DepSet)
+	 * {@link Merger#findModuleInCache(Directive, ArgsContainer, boolean)
 	 * findModuleInCache} in determining if all dependancies are consistant with
 	 * build that was specified.
 	 */
@@ -476,7 +697,8 @@ public class DependancyMeta {
 		 * Note: this object supports inserting multiple values to same key.
 		 * 
 		 * @param key   Module name.
-		 * @param value pblock string with replaced '+' for ' '.
+		 * @param value Directory name of the pblock (see
+		 *              {@link Merger#getPblockPath(String)}).
 		 */
 		public void put(String key, String value) {
 			if (!map.containsKey(key))
@@ -492,7 +714,8 @@ public class DependancyMeta {
 		 * Note: this object supports inserting multiple values to same key.
 		 * 
 		 * @param key   Module name.
-		 * @param value pblock string with replaced '+' for ' '.
+		 * @param value Directory name of the pblock (see
+		 *              {@link Merger#getPblockPath(String)}).
 		 * @return True if found and removed an entry. False otherwise.
 		 */
 		public boolean remove(String key, String value) {
@@ -515,7 +738,8 @@ public class DependancyMeta {
 
 		/**
 		 * @param key   Module name.
-		 * @param value pblock string with replaced '+' for ' '.
+		 * @param value Directory name of the pblock (see
+		 *              {@link Merger#getPblockPath(String)}).
 		 * @return True if contains key and collection mapped to key contains value.
 		 *         False otherwise.
 		 */
@@ -35,6 +35,11 @@ public class Directive {
 	boolean refresh = false;
 	boolean only_wires = false;
 	DirectiveBuilder sub_builder = null;
+	/**
+	 * Placed and routed dcp for this directive that was already resolved during
+	 * this run (for example by a parallel build of the directive tree).
+	 */
+	File impl_dcp = null;
 
 	/**
 	 * @return Header from this directive's parent (ie. header which is sibling to
@@ -100,6 +105,18 @@ public class Directive {
 		dcp = new_dcp;
 	}
 
+	/**
+	 * @return Placed and routed dcp in the cache that was produced for this
+	 *         directive earlier in this run. Null if not yet produced.
+	 */
+	public File getImplDCP() {
+		return impl_dcp;
+	}
+
+	public void setImplDCP(File new_impl_dcp) {
+		impl_dcp = new_impl_dcp;
+	}
+
 	/**
 	 * Parses an element describing a directive.
 	 * <p>
@@ -3,13 +3,17 @@ package main.directive;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 
 import com.xilinx.rapidwright.design.Design;
 import com.xilinx.rapidwright.edif.EDIFCellInst;
+import com.xilinx.rapidwright.edif.EDIFNet;
+import com.xilinx.rapidwright.edif.EDIFPortInst;
 import com.xilinx.rapidwright.util.FileTools;
 import com.xilinx.rapidwright.util.MessageGenerator;
 
@@ -23,7 +27,9 @@ import main.parser.XMLParser.BaseEnum;
 import main.parser.XMLParser.KEY;
 import main.parser.XMLParser.TAG;
 import main.util.DesignUtils;
+import main.util.PBlockEstimator;
 import main.worker.FileSys;
+import main.worker.Floorplanner;
 
 /**
  * Writes xml builder template from imput dcp.
@@ -37,6 +43,21 @@ public class DirectiveWriter {
 	String ooc_dir = "";
 	String out_dir = "";
 
+	/**
+	 * Proposes pblocks for all modules of the template together. Null if the
+	 * template design has no device.
+	 */
+	Floorplanner floorplanner = null;
+	/**
+	 * Pblock leaves of the modules given to the floorplanner by hierarchical
+	 * name.
+	 */
+	Map<String, WrLeaf> pblock_leaves = new HashMap<>();
+	/**
+	 * Hierarchical name of the build being constructed (with trailing '/').
+	 */
+	String path = "";
+
 	DirectiveWriter(DirectiveHeader head, boolean include_primitives) {
 		this.verbose = head.isVerbose();
 		this.head = head;
@@ -89,10 +110,13 @@ public class DirectiveWriter {
 
 		Design design = DesignUtils.safeReadCheckpoint(input_dcp, head.isVerbose(), head.getIII());
 		DirectiveWriter dw = new DirectiveWriter(head, include_primitives);
+		if (design.getDevice() != null)
+			dw.floorplanner = new Floorplanner(design.getDevice(), PBlockEstimator.DEFAULT_SLACK, head.isVerbose());
 		EDIFCellInst top_ci = design.getNetlist().getTopCellInst();
 
 		// Construct template
 		WrNode top = dw.constructBuild(top_ci);
+		dw.proposePBlocks();
 
 		// Change root tag from <inst type = "build"> to <root>.
 		// To do this, must create new TAG by copying all since TAGs cannot be modified
@@ -151,11 +175,54 @@ public class DirectiveWriter {
 		attributes.add(new WrKey(INST.type.key, INST.TYPE.TypeEnum.MERGE));
 		children.add(new WrLeaf(INST.inst_name.key, ci.getName()));
 		children.add(newDCP(ci));
-		children.add(new WrLeaf(INST.pblock.key, ""));
+		WrLeaf pblock = new WrLeaf(INST.pblock.key, "");
+		children.add(pblock);
+		addToFloorplan(ci, pblock);
 
 		return new WrNode(key, children, attributes);
 	}
 
+	/**
+	 * Give a cell instance to the floorplanner. Its pblock is filled in by
+	 * {@link #proposePBlocks()}.
+	 * 
+	 * @param ci     Cell instance to propose a pblock for.
+	 * @param pblock Leaf to write the pblock to.
+	 */
+	private void addToFloorplan(EDIFCellInst ci, WrLeaf pblock) {
+		if (floorplanner == null || ci.isBlackBox() || !ci.getCellType().hasContents())
+			return;
+		PBlockEstimator.Utilization utilization = PBlockEstimator.Utilization.of(ci.getCellType());
+		if (utilization.isEmpty())
+			return;
+		floorplanner.addModule(path + ci.getName(), utilization);
+		pblock_leaves.put(path + ci.getName(), pblock);
+	}
+
+	/**
+	 * Floorplan all cell instances given to the floorplanner with
+	 * {@link PBlockEstimator#DEFAULT_SLACK default slack} and fill in their
+	 * pblocks. Pblocks are left empty if they don't all fit.
+	 */
+	private void proposePBlocks() {
+		if (floorplanner == null || pblock_leaves.isEmpty())
+			return;
+		Map<String, String> pblocks = floorplanner.run(Runtime.getRuntime().availableProcessors());
+		if (pblocks.isEmpty()) {
+			printIfVerbose("No room for pblocks for all modules. Leaving them empty.");
+			return;
+		}
+		for (Map.Entry<String, String> e : pblocks.entrySet()) {
+			pblock_leaves.get(e.getKey()).data = e.getValue();
+			printIfVerbose("Proposed pblock '" + e.getValue() + "' for '" + e.getKey() + "'.");
+		}
+	}
+
+	private void printIfVerbose(String msg) {
+		if (verbose)
+			MessageGenerator.briefMessage(msg);
+	}
+
 	/**
 	 * Create a leaf that represents the cell.
 	 * 
@@ -257,10 +324,24 @@ public class DirectiveWriter {
 		children.add(new WrLeaf(INST.inst_name.key, ci.getName()));
 		children.add(contructHeader(ci));
 
+		String parent_path = path;
+		path = parent_path + ci.getName() + "/";
 		for (EDIFCellInst cell_inst : ci.getCellType().getCellInsts())
 			if (include_primitives || !cell_inst.getCellType().isPrimitive())
 				children.add(constructInst(cell_inst));
 
+		// Connections between the cell instances pull their pblocks together
+		if (floorplanner != null) {
+			for (EDIFNet net : ci.getCellType().getNets()) {
+				List<String> members = new ArrayList<>();
+				for (EDIFPortInst pi : net.getPortInsts())
+					if (!pi.isTopLevelPort() && pi.getCellInst() != null)
+						members.add(path + pi.getCellInst().getName());
+				floorplanner.addNet(members);
+			}
+		}
+		path = parent_path;
+
 		return new WrNode(key, children, attributes);
 	}
 
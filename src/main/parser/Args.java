@@ -10,7 +10,15 @@ import main.parser.TokenArg;
 public final class Args {
 	public static enum Tag {
 		REFRESH("refresh"), FORCE("force"), QUIET("quiet"), VERBOSE("verbose"), EXTRA_VERBOSE("extra_verbose"),
-		HELP("help"), XML_DIRECTIVES("directive_file.xml");
+		HELP("help"), JOBS("jobs"), CORES("cores"), MEMORY("memory"), JOB_CORES("job_cores"),
+		JOB_MEMORY("job_memory"), JOB_RETENTION("job_retention"), JOB_HISTORY("job_history"),
+		VIVADO_SESSION("vivado_session"), CONTENT_HASH("content_hash"), CACHE_GC("cache_gc"),
+		CACHE_BUDGET("cache_budget"), CACHE_MAX_AGE("cache_max_age"), CACHE_POLICY("cache_policy"),
+		REMOTE_CACHE("remote_cache"),
+		VERIFY_CACHE("verify_cache"), CACHE_VERIFY_LEVEL("cache_verify_level"),
+		RELOCATE("relocate"), GLOBAL_PLACE("global_place"),
+		PBLOCK_SLACK("pblock_slack"), FLOORPLAN("floorplan"), IGNORE_PBLOCK_ESTIMATE("ignore_pblock_estimate"),
+		XML_DIRECTIVES("directive_file.xml");
 
 		String tag;
 
@@ -26,7 +34,7 @@ public final class Args {
 
 	static final String[] HELP_SWITCH = { "-h", "--help" };
 
-	// Used {f, h, q, r, Vv}
+	// Used {f, h, j, q, r, Vv}
 	static final TokenArg[] TOKEN_LIST = {
 			new TokenArg(Tag.REFRESH.toString(), new String[] { "-r", "--refresh" },
 					"Force recompilation for all directives. Ignore any intermediate designs."),
@@ -40,6 +48,59 @@ public final class Args {
 					"Display extra progress information (ignored if also quiet)."),
 			new TokenArg(Tag.EXTRA_VERBOSE.toString(), new String[] { "-V", "--extra_verbose" },
 					"Display extra progress information (ignored if also quiet). Run Vivado tcl commands with '-verbose' flag."),
+			new TokenArg(Tag.JOBS.toString(), new String[] { "-j", "--jobs" }, new String[] { "num_jobs" },
+					new boolean[] { true },
+					"Place and route up to num_jobs independent modules at the same time (default 1)."),
+			new TokenArg(Tag.CORES.toString(), new String[] { "--cores" }, new String[] { "num_cores" },
+					new boolean[] { true },
+					"Total cores all running Vivado instances may use together (default all processors)."),
+			new TokenArg(Tag.MEMORY.toString(), new String[] { "--memory" }, new String[] { "gb" },
+					new boolean[] { true },
+					"Total memory (GB) all running Vivado instances may use together (default all physical memory)."),
+			new TokenArg(Tag.JOB_CORES.toString(), new String[] { "--job_cores" }, new String[] { "num_cores" },
+					new boolean[] { true },
+					"Threads each Vivado instance may use (general.maxThreads, at most 8, default 8)."),
+			new TokenArg(Tag.JOB_MEMORY.toString(), new String[] { "--job_memory" }, new String[] { "gb" },
+					new boolean[] { true },
+					"Memory (GB) to reserve for each Vivado instance (default 4)."),
+			new TokenArg(Tag.JOB_RETENTION.toString(), new String[] { "--job_retention" },
+					new String[] { "all|failed|none" }, new boolean[] { true },
+					"Which job directories (tcl script, vivado.log, etc.) to keep in iii_dir/jobs (default all)."),
+			new TokenArg(Tag.JOB_HISTORY.toString(), new String[] { "--job_history" }, new String[] { "num" },
+					new boolean[] { true }, "Number of attempts to keep per job in iii_dir/jobs (default 5)."),
+			new TokenArg(Tag.VIVADO_SESSION.toString(), new String[] { "--vivado_session" },
+					"Keep Vivado running and send all tcl scripts to it instead of starting Vivado for each script."),
+			new TokenArg(Tag.CONTENT_HASH.toString(), new String[] { "--content_hash" },
+					"Decide if cached modules are up to date by hashing their inputs instead of comparing modification times."),
+			new TokenArg(Tag.CACHE_GC.toString(), new String[] { "--cache_gc" },
+					"Report how much of the cache would be evicted and exit without building. Evict it if also force."),
+			new TokenArg(Tag.CACHE_BUDGET.toString(), new String[] { "--cache_budget" }, new String[] { "size" },
+					new boolean[] { true },
+					"Evict cache entries not used by the directive file until the cache fits in size bytes (suffix K, M, G or T)."),
+			new TokenArg(Tag.CACHE_MAX_AGE.toString(), new String[] { "--cache_max_age" }, new String[] { "days" },
+					new boolean[] { true },
+					"Evict cache entries not used by the directive file that haven't been used for more than days."),
+			new TokenArg(Tag.CACHE_POLICY.toString(), new String[] { "--cache_policy" }, new String[] { "lru|lfu" },
+					new boolean[] { true }, "Which cache entries to evict first to meet the budget (default lru)."),
+			new TokenArg(Tag.REMOTE_CACHE.toString(), new String[] { "--remote_cache" }, new String[] { "location" },
+					new boolean[] { true },
+					"Share placed and routed modules through a cache directory or http url. Implies content_hash."),
+			new TokenArg(Tag.VERIFY_CACHE.toString(), new String[] { "--verify_cache" },
+					"Check every file in the cache against its checksum, quarantine corrupt entries and exit without building."),
+			new TokenArg(Tag.CACHE_VERIFY_LEVEL.toString(), new String[] { "--cache_verify_level" },
+					new String[] { "size|sample|full" }, new boolean[] { true },
+					"How thoroughly to check cached modules before using them (default sample)."),
+			new TokenArg(Tag.RELOCATE.toString(), new String[] { "--relocate" },
+					"Cache modules by the shape of their pblock and move them to other pblocks of the same shape."),
+			new TokenArg(Tag.GLOBAL_PLACE.toString(), new String[] { "--global_place" },
+					"Place all modules of each build together to shorten the nets between them."),
+			new TokenArg(Tag.PBLOCK_SLACK.toString(), new String[] { "--pblock_slack" }, new String[] { "percent" },
+					new boolean[] { true },
+					"Extra resources pblocks proposed or floorplanned for modules should have (default 20)."),
+			new TokenArg(Tag.FLOORPLAN.toString(), new String[] { "--floorplan" },
+					"Choose pblocks for modules without one, write them into the directive file and build."),
+			new TokenArg(Tag.IGNORE_PBLOCK_ESTIMATE.toString(), new String[] { "--ignore_pblock_estimate" },
+					"Place and route modules even if their pblock looks too small for them."),
 			new TokenArg(Tag.HELP.toString(), HELP_SWITCH, "Print this help message and exit.") };
 
 	static final PositionalArg[] POSITIONAL_ARGS = {
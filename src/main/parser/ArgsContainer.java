@@ -3,6 +3,13 @@ package main.parser;
 import java.util.Map;
 import java.util.List;
 
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+import main.tcl.JobDir;
+import main.util.PBlockEstimator;
+import main.worker.CacheGC;
+import main.worker.CacheVerifier;
+
 /**
  * Convenience wrapper to store and access the parsed set of command line
  * arguments.
@@ -41,6 +48,26 @@ public class ArgsContainer {
 		return (arg_map == null) ? null : arg_map.get(t.toString());
 	}
 
+	/**
+	 * Get the first argument from the command line with given tag as an int.
+	 * 
+	 * @param t             Which tag to get first argument from.
+	 * @param default_value Value to return if the tag was not given.
+	 * @return First input argument as an int. Exits with error if it is not an
+	 *         int.
+	 */
+	public int getIntArg(Args.Tag t, int default_value) {
+		String arg = getOneArg(t);
+		if (arg == null)
+			return default_value;
+		try {
+			return Integer.parseInt(arg);
+		} catch (NumberFormatException nfe) {
+			MessageGenerator.briefErrorAndExit("Expected an integer for '" + t + "' but found '" + arg + "'.\nExiting.");
+		}
+		return default_value;
+	}
+
 	/**
 	 * True if force was part of the command line args.
 	 */
@@ -78,6 +105,209 @@ public class ArgsContainer {
 		return arg_map.containsKey(Args.Tag.REFRESH.toString());
 	}
 
+	/**
+	 * True if vivado_session was part of the command line args.
+	 */
+	public boolean vivadoSession() {
+		return arg_map.containsKey(Args.Tag.VIVADO_SESSION.toString());
+	}
+
+	/**
+	 * True if content_hash was part of the command line args.
+	 */
+	public boolean contentHash() {
+		return arg_map.containsKey(Args.Tag.CONTENT_HASH.toString()) || remoteCache() != null;
+	}
+
+	/**
+	 * True if verify_cache was part of the command line args.
+	 */
+	public boolean verifyCache() {
+		return arg_map.containsKey(Args.Tag.VERIFY_CACHE.toString());
+	}
+
+	/**
+	 * True if relocate was part of the command line args.
+	 */
+	public boolean relocate() {
+		return arg_map.containsKey(Args.Tag.RELOCATE.toString());
+	}
+
+	/**
+	 * True if global_place was part of the command line args.
+	 */
+	public boolean globalPlace() {
+		return arg_map.containsKey(Args.Tag.GLOBAL_PLACE.toString());
+	}
+
+	/**
+	 * True if floorplan was part of the command line args.
+	 */
+	public boolean floorplan() {
+		return arg_map.containsKey(Args.Tag.FLOORPLAN.toString());
+	}
+
+	/**
+	 * True if ignore_pblock_estimate was part of the command line args.
+	 */
+	public boolean ignorePBlockEstimate() {
+		return arg_map.containsKey(Args.Tag.IGNORE_PBLOCK_ESTIMATE.toString());
+	}
+
+	/**
+	 * Extra resources (as a fraction) a proposed pblock should have over what its
+	 * module needs. {@link PBlockEstimator#DEFAULT_SLACK} if not given.
+	 */
+	public double pblockSlack() {
+		int percent = getIntArg(Args.Tag.PBLOCK_SLACK, (int) Math.round(PBlockEstimator.DEFAULT_SLACK * 100));
+		if (percent < 0)
+			MessageGenerator.briefErrorAndExit("Expected a positive percentage for '" + Args.Tag.PBLOCK_SLACK
+					+ "' but found '" + percent + "'.\nExiting.");
+		return percent / 100.0;
+	}
+
+	/**
+	 * How thoroughly to check cached modules before using them. Sample if not
+	 * given. Exits with error if not recognized.
+	 */
+	public CacheVerifier.Level cacheVerifyLevel() {
+		String arg = getOneArg(Args.Tag.CACHE_VERIFY_LEVEL);
+		if (arg == null)
+			return CacheVerifier.Level.SAMPLE;
+		CacheVerifier.Level l = CacheVerifier.Level.fromString(arg);
+		if (l == null)
+			MessageGenerator.briefErrorAndExit("Unrecognized cache verify level '" + arg + "'.\nExiting.");
+		return l;
+	}
+
+	/**
+	 * Directory or url of the shared module cache. Null if not given.
+	 */
+	public String remoteCache() {
+		return getOneArg(Args.Tag.REMOTE_CACHE);
+	}
+
+	/**
+	 * True if cache_gc was part of the command line args.
+	 */
+	public boolean cacheGC() {
+		return arg_map.containsKey(Args.Tag.CACHE_GC.toString());
+	}
+
+	/**
+	 * Byte budget of the cache. -1 if not given. Exits with error if it isn't a
+	 * size.
+	 */
+	public long cacheBudget() {
+		String arg = getOneArg(Args.Tag.CACHE_BUDGET);
+		if (arg == null)
+			return -1;
+		String num = arg.trim().toUpperCase();
+		long mult = 1;
+		if (num.endsWith("B"))
+			num = num.substring(0, num.length() - 1);
+		String units = "KMGT";
+		if (!num.isEmpty() && units.indexOf(num.charAt(num.length() - 1)) >= 0) {
+			mult = 1L << (10 * (units.indexOf(num.charAt(num.length() - 1)) + 1));
+			num = num.substring(0, num.length() - 1);
+		}
+		try {
+			return (long) (Double.parseDouble(num) * mult);
+		} catch (NumberFormatException nfe) {
+			MessageGenerator.briefErrorAndExit("Expected a size for '" + Args.Tag.CACHE_BUDGET + "' but found '" + arg
+					+ "'.\nExiting.");
+		}
+		return -1;
+	}
+
+	/**
+	 * Max age (days) of unused cache entries. 0 if not given.
+	 */
+	public int cacheMaxAge() {
+		return getIntArg(Args.Tag.CACHE_MAX_AGE, 0);
+	}
+
+	/**
+	 * Cache eviction policy. Null if not given. Exits with error if not
+	 * recognized.
+	 */
+	public CacheGC.Policy cachePolicy() {
+		String arg = getOneArg(Args.Tag.CACHE_POLICY);
+		if (arg == null)
+			return null;
+		CacheGC.Policy p = CacheGC.Policy.fromString(arg);
+		if (p == null)
+			MessageGenerator.briefErrorAndExit("Unrecognized cache policy '" + arg + "'.\nExiting.");
+		return p;
+	}
+
+	/**
+	 * Number of directives that may be built at the same time. At least 1.
+	 */
+	public int jobs() {
+		int jobs = getIntArg(Args.Tag.JOBS, 1);
+		return (jobs < 1) ? 1 : jobs;
+	}
+
+	/**
+	 * Number of threads for work done inside ShellBuilder (eg. verifying the
+	 * cache). {@link #jobs()} if given, else the number of processors.
+	 */
+	public int threads() {
+		if (arg_map.containsKey(Args.Tag.JOBS.toString()))
+			return jobs();
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Total cores for all Vivado instances. 0 if not given.
+	 */
+	public int cores() {
+		return getIntArg(Args.Tag.CORES, 0);
+	}
+
+	/**
+	 * Total memory (GB) for all Vivado instances. 0 if not given.
+	 */
+	public int memoryGB() {
+		return getIntArg(Args.Tag.MEMORY, 0);
+	}
+
+	/**
+	 * Threads per Vivado instance. 0 if not given.
+	 */
+	public int jobCores() {
+		return getIntArg(Args.Tag.JOB_CORES, 0);
+	}
+
+	/**
+	 * Memory (GB) per Vivado instance. 0 if not given.
+	 */
+	public int jobMemoryGB() {
+		return getIntArg(Args.Tag.JOB_MEMORY, 0);
+	}
+
+	/**
+	 * Which job directories to keep. Null if not given. Exits with error if not
+	 * recognized.
+	 */
+	public JobDir.Retention jobRetention() {
+		String arg = getOneArg(Args.Tag.JOB_RETENTION);
+		if (arg == null)
+			return null;
+		JobDir.Retention r = JobDir.Retention.fromString(arg);
+		if (r == null)
+			MessageGenerator.briefErrorAndExit("Unrecognized job retention '" + arg + "'.\nExiting.");
+		return r;
+	}
+
+	/**
+	 * Number of attempts to keep per job. 0 if not given.
+	 */
+	public int jobHistory() {
+		return getIntArg(Args.Tag.JOB_HISTORY, 0);
+	}
+
 	/**
 	 * Generate options in format for {@link main.tcl.TCLScript TCLScript}.
 	 * <p>
@@ -0,0 +1,171 @@
+package main.tcl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import main.util.FileUtils;
+
+/**
+ * Working directory of a single execution of a {@link TCLScript}.
+ * <p>
+ * Each execution gets its own directory
+ * {@code <root>/jobs/<key...>/attempt_<n>} holding the tcl script, the bash
+ * wrapper, vivado.log and vivado.jou. The key is normally the module name
+ * followed by the pblock path. The attempt number counts up each time the same
+ * key is run again (eg. when place and route is retried without constraints),
+ * so nothing from an earlier run is overwritten.
+ * <p>
+ * What happens to the directory after the job finishes is controlled by
+ * {@link #configure(Retention, int)}.
+ */
+public class JobDir {
+	public static final String JOBS_DIR = "jobs";
+	public static final String ATTEMPT_PREFIX = "attempt_";
+	public static final String LOG_FILE = "vivado.log";
+	public static final String JOURNAL_FILE = "vivado.jou";
+
+	/**
+	 * Which job directories to keep after the job finishes.
+	 */
+	public static enum Retention {
+		ALL("all"), FAILED("failed"), NONE("none");
+
+		private final String name;
+
+		Retention(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		/**
+		 * @param name Name of a retention policy (case insensitive).
+		 * @return Matching retention. Null if there is none.
+		 */
+		public static Retention fromString(String name) {
+			if (name == null)
+				return null;
+			for (Retention r : values())
+				if (r.name.equalsIgnoreCase(name.trim()))
+					return r;
+			return null;
+		}
+	}
+
+	public static final Retention DEFAULT_RETENTION = Retention.ALL;
+	public static final int DEFAULT_HISTORY = 5;
+
+	private static Retention retention = DEFAULT_RETENTION;
+	private static int history = DEFAULT_HISTORY;
+
+	private final File dir;
+	private final int attempt;
+
+	private JobDir(File dir, int attempt) {
+		this.dir = dir;
+		this.attempt = attempt;
+	}
+
+	/**
+	 * Set what is kept after jobs finish.
+	 *
+	 * @param new_retention Which job directories to keep. Null keeps the current
+	 *                      setting.
+	 * @param new_history   Max number of attempts kept per key. Less than 1 keeps
+	 *                      the current setting.
+	 */
+	public static synchronized void configure(Retention new_retention, int new_history) {
+		if (new_retention != null)
+			retention = new_retention;
+		if (new_history > 0)
+			history = new_history;
+	}
+
+	/**
+	 * Create the directory for the next attempt of the job with the given key.
+	 * Older attempts beyond the history limit are deleted.
+	 *
+	 * @param root Directory to create jobs directory in (normally iii_dir).
+	 * @param key  Parts of the key. Null and empty parts are skipped.
+	 * @return The newly created job directory. Null if it couldn't be created.
+	 */
+	public static JobDir create(File root, String... key) {
+		File key_dir = new File(root, JOBS_DIR);
+		for (String part : key)
+			if (part != null && !part.isEmpty())
+				key_dir = new File(key_dir, part);
+		key_dir.mkdirs();
+
+		synchronized (JobDir.class) {
+			List<Integer> attempts = listAttempts(key_dir);
+			// keep one less so there is room for this attempt
+			for (int i = 0; i < attempts.size() - (history - 1); i++)
+				FileUtils.deleteRecursively(new File(key_dir, ATTEMPT_PREFIX + attempts.get(i)));
+
+			int next = attempts.isEmpty() ? 1 : attempts.get(attempts.size() - 1) + 1;
+			// mkdir fails if another process took this number first
+			for (int tries = 0; tries < 1000; tries++, next++) {
+				File dir = new File(key_dir, ATTEMPT_PREFIX + next);
+				if (dir.mkdir())
+					return new JobDir(dir, next);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return Attempt numbers found in key_dir in increasing order.
+	 */
+	private static List<Integer> listAttempts(File key_dir) {
+		List<Integer> attempts = new ArrayList<>();
+		File[] children = key_dir.listFiles();
+		if (children == null)
+			return attempts;
+		for (File f : children) {
+			if (!f.isDirectory() || !f.getName().startsWith(ATTEMPT_PREFIX))
+				continue;
+			try {
+				attempts.add(Integer.parseInt(f.getName().substring(ATTEMPT_PREFIX.length())));
+			} catch (NumberFormatException nfe) {
+			}
+		}
+		Collections.sort(attempts);
+		return attempts;
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public int getAttempt() {
+		return attempt;
+	}
+
+	public File getLog() {
+		return new File(dir, LOG_FILE);
+	}
+
+	public File getJournal() {
+		return new File(dir, JOURNAL_FILE);
+	}
+
+	/**
+	 * Apply the retention policy now that the job has finished.
+	 *
+	 * @param exit_code Return code of the job. Null if it didn't run.
+	 */
+	public void finish(Integer exit_code) {
+		boolean failed = (exit_code == null || exit_code != 0);
+		Retention r;
+		synchronized (JobDir.class) {
+			r = retention;
+		}
+		if (r == Retention.NONE || (r == Retention.FAILED && !failed))
+			FileUtils.deleteRecursively(dir);
+	}
+}
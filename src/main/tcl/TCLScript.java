@@ -7,6 +7,9 @@ import com.xilinx.rapidwright.util.MessageGenerator;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.io.File;
 
 /**
@@ -14,11 +17,25 @@ import java.io.File;
  */
 public class TCLScript {
 	List<TCLCommand> tcl_script = null;
-	private static final String run_vivado = "vivado -mode batch -log vivado.log -journal vivado.jou -source";
+	private static final String run_vivado = "vivado -mode batch";
+	static final String VIVADO_SETTINGS = "/cad1/Xilinx/Vivado/2018.1/settings64.sh"; // TODO Vivado version
 	String tcl_script_name = null;
 	String output_file = null;
 	String options = null;
 	File tcl_file = null;
+	int job_threads = 0;
+	int job_memory_gb = 0;
+	File job_root = null;
+	String[] job_key = null;
+	JobDir job_dir = null;
+
+	/**
+	 * @return String identifying which Vivado runs the scripts (the settings file
+	 *         that is sourced, which includes the version).
+	 */
+	public static String getVivadoVersion() {
+		return VIVADO_SETTINGS;
+	}
 
 	public TCLScript(String input_dcp, String output_file, String tcl_script_name) {
 		this(null, input_dcp, output_file, null, tcl_script_name);
@@ -129,15 +146,66 @@ public class TCLScript {
 	}
 
 	/**
-	 * Write tcl script to file.
+	 * Set the number of threads Vivado may use for this script. Written to the
+	 * script as general.maxThreads and reserved in the {@link VivadoPool}.
+	 * 
+	 * @param threads Number of threads. Less than 1 uses the pool's default.
+	 */
+	public void setJobThreads(int threads) {
+		job_threads = threads;
+	}
+
+	/**
+	 * Set the memory to reserve in the {@link VivadoPool} while this script runs.
+	 * 
+	 * @param memory_gb Memory in GB. Less than 1 uses the pool's default.
+	 */
+	public void setJobMemoryGB(int memory_gb) {
+		job_memory_gb = memory_gb;
+	}
+
+	/**
+	 * Set which {@link JobDir job directory} executions of this script run in.
+	 * <p>
+	 * If not set, the key is the name of the script (without extension) and the
+	 * jobs directory is created beside tcl_script_name.
+	 * 
+	 * @param root Directory to create the jobs directory in (normally iii_dir).
+	 * @param key  Module name, pblock path, etc. identifying this job.
+	 */
+	public void setJobKey(File root, String... key) {
+		job_root = root;
+		job_key = key;
+	}
+
+	/**
+	 * @return Job directory of the latest execution. Null if not yet run.
+	 */
+	public JobDir getJobDir() {
+		return job_dir;
+	}
+
+	/**
+	 * Write tcl script to tcl_script_name.
 	 * 
 	 * @return Success.
 	 */
 	public boolean write() {
-		tcl_file = new File(tcl_script_name);
+		return write(new File(tcl_script_name), false);
+	}
+
+	/**
+	 * @param file        File to write to.
+	 * @param for_session Leave out sourcing RapidWright since a
+	 *                    {@link VivadoSession} has already done so.
+	 */
+	private boolean write(File file, boolean for_session) {
+		tcl_file = file;
 		List<String> tcl_strs = new ArrayList<>();
+		tcl_strs.add("set_param general.maxThreads " + VivadoPool.getPool().jobThreads(job_threads));
 		for (TCLCommand cmd : tcl_script)
-			tcl_strs.add(cmd.toString());
+			if (!(for_session && cmd.tcl_cmd == TCLEnum.SOURCE_RW))
+				tcl_strs.add(cmd.toString());
 		FileTools.writeLinesToTextFile(tcl_strs, tcl_file.getAbsolutePath());
 		return tcl_file.exists();
 	}
@@ -157,37 +225,114 @@ public class TCLScript {
 	public boolean USE_DEFAULT_VIVADO_VERSION = false;
 
 	/**
-	 * Execute tcl script.
+	 * Write the tcl script into a new {@link JobDir} and queue it in the
+	 * {@link VivadoPool}. Vivado is started once the pool has enough free cores
+	 * and memory for this script. Its log and journal are written to the job
+	 * directory.
+	 * <p>
+	 * If {@link VivadoSession#isEnabled() sessions are enabled}, the script is
+	 * sent to an already running Vivado instead of starting a new one.
 	 * <p>
 	 * To run in a different version of Vivado, use {@link FileTools#runCommand} to
 	 * source Vivado before calling this function.
 	 * 
-	 * @param throw_error Throw an error if the process does not return 0 (success).
-	 * @return Null upon error in {@link #write}. Else same return as from
-	 *         {@link FileTools#runCommand}.
+	 * @return Null upon error creating the job directory or in {@link #write}.
+	 *         Else future holding same return as from {@link FileTools#runCommand}.
 	 */
-	public Integer run(boolean throw_error) {
-		boolean wrote = write();
+	public Future<Integer> submit() {
+		File script_file = new File(tcl_script_name).getAbsoluteFile();
+		File root = (job_root == null) ? script_file.getParentFile() : job_root;
+		String[] key = (job_key == null) ? new String[] { FileTools.removeFileExtension(script_file.getName()) }
+				: job_key;
+		final JobDir dir = JobDir.create(root, key);
+		if (dir == null) {
+			MessageGenerator.briefError("Failed to create job directory for '" + tcl_script_name + "'.");
+			return null;
+		}
+		job_dir = dir;
+
+		final boolean in_session = VivadoSession.isEnabled();
+		boolean wrote = write(new File(dir.getDir(), script_file.getName()), in_session);
 		if (!wrote)
 			return null;
 
-		Integer ret = 0;
+		if (in_session) {
+			final File session_tcl = tcl_file;
+			final boolean use_default = USE_DEFAULT_VIVADO_VERSION;
+			return VivadoPool.getPool().submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					MessageGenerator.briefMessage(""); // new line
+					Integer ret = null;
+					VivadoSession session = VivadoSession.acquire(use_default);
+					try {
+						ret = session.run(session_tcl, dir);
+					} finally {
+						VivadoSession.release(session);
+						dir.finish(ret);
+					}
+					return ret;
+				}
+			}, job_threads, job_memory_gb);
+		}
+
+		String vivado_cmd = run_vivado + " -log " + dir.getLog().getAbsolutePath() + " -journal "
+				+ dir.getJournal().getAbsolutePath() + " -source " + tcl_file.getAbsolutePath();
+		final String command;
 		if (USE_DEFAULT_VIVADO_VERSION) {
-			ret = FileTools.runCommand(run_vivado + " " + tcl_file.getAbsolutePath(), true);
+			command = vivado_cmd;
 		} else {
 			String bash_file = tcl_file.getAbsolutePath().replace(".tcl", ".sh");
 			List<String> bash_lines = new ArrayList<>();
 			bash_lines.add("#! /bin/bash");
-			bash_lines.add("source /cad1/Xilinx/Vivado/2018.1/settings64.sh"); // TODO Vivado version
-			bash_lines.add(run_vivado + " " + tcl_file.getAbsolutePath());
+			bash_lines.add("source " + VIVADO_SETTINGS);
+			bash_lines.add("cd " + dir.getDir().getAbsolutePath());
+			bash_lines.add(vivado_cmd);
 			FileTools.writeLinesToTextFile(bash_lines, bash_file);
+			command = "bash " + bash_file;
+		}
+
+		return VivadoPool.getPool().submit(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				MessageGenerator.briefMessage(""); // new line
+				Integer ret = null;
+				try {
+					ret = FileTools.runCommand(command, true);
+				} finally {
+					dir.finish(ret);
+				}
+				return ret;
+			}
+		}, job_threads, job_memory_gb);
+	}
+
+	/**
+	 * Execute tcl script. Blocks until it finishes (including any time spent
+	 * queued in the {@link VivadoPool}).
+	 * <p>
+	 * To run in a different version of Vivado, use {@link FileTools#runCommand} to
+	 * source Vivado before calling this function.
+	 * 
+	 * @param throw_error Throw an error if the process does not return 0 (success).
+	 * @return Null upon error in {@link #write}. Else same return as from
+	 *         {@link FileTools#runCommand}.
+	 */
+	public Integer run(boolean throw_error) {
+		Future<Integer> future = submit();
+		if (future == null)
+			return null;
 
-			MessageGenerator.briefMessage(""); // new line
-			ret = FileTools.runCommand("bash " + bash_file, true);
+		Integer ret = null;
+		try {
+			ret = future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			MessageGenerator.briefErrorAndExit("Failed to run tcl script '" + tcl_script_name + "'.");
 		}
 
 		if (throw_error && ret != 0)
 			MessageGenerator.briefErrorAndExit("Tcl script returned error code " + ret + ".");
 		return ret;
 	}
-}
\ No newline at end of file
+}
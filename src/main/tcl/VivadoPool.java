@@ -0,0 +1,239 @@
+package main.tcl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Limits how many Vivado processes run at the same time.
+ * <p>
+ * The pool has a budget of cores and memory. Each job asks for some number of
+ * threads and gigabytes of memory and is only started once both are free. Jobs
+ * that don't fit yet are queued and started in the order they were submitted.
+ * A job asking for more than the whole budget is trimmed to the budget so it
+ * can still run alone.
+ * <p>
+ * There is a single pool for the whole program (see {@link #getPool()}). Call
+ * {@link #configure} before the first script is run to change the budget.
+ */
+public class VivadoPool {
+	/**
+	 * Largest value Vivado accepts for general.maxThreads.
+	 */
+	public static final int MAX_VIVADO_THREADS = 8;
+	/**
+	 * Memory assumed per job if none is given. Roughly what a place and route of a
+	 * medium sized module takes.
+	 */
+	public static final int DEFAULT_JOB_MEMORY_GB = 4;
+
+	private static VivadoPool pool = null;
+
+	private final int total_cores;
+	private final int total_memory_gb;
+	private final int default_job_threads;
+	private final int default_job_memory_gb;
+
+	private int free_cores;
+	private int free_memory_gb;
+	private final LinkedList<Ticket> queue = new LinkedList<>();
+	private final ExecutorService executor;
+
+	/**
+	 * Resources held by one job.
+	 */
+	private static class Ticket {
+		final int cores;
+		final int memory_gb;
+
+		Ticket(int cores, int memory_gb) {
+			this.cores = cores;
+			this.memory_gb = memory_gb;
+		}
+	}
+
+	/**
+	 * @param total_cores           Cores all Vivado jobs may use together. Less
+	 *                              than 1 uses all available processors.
+	 * @param total_memory_gb       Memory (GB) all Vivado jobs may use together.
+	 *                              Less than 1 uses all physical memory.
+	 * @param default_job_threads   Threads of a job that doesn't specify. Less
+	 *                              than 1 uses {@link #MAX_VIVADO_THREADS}.
+	 * @param default_job_memory_gb Memory (GB) of a job that doesn't specify. Less
+	 *                              than 1 uses {@link #DEFAULT_JOB_MEMORY_GB}.
+	 */
+	private VivadoPool(int total_cores, int total_memory_gb, int default_job_threads, int default_job_memory_gb) {
+		this.total_cores = (total_cores < 1) ? Runtime.getRuntime().availableProcessors() : total_cores;
+		this.total_memory_gb = (total_memory_gb < 1) ? physicalMemoryGB() : total_memory_gb;
+		int threads = (default_job_threads < 1) ? MAX_VIVADO_THREADS : default_job_threads;
+		this.default_job_threads = clamp(threads, 1, Math.min(MAX_VIVADO_THREADS, this.total_cores));
+		int mem = (default_job_memory_gb < 1) ? DEFAULT_JOB_MEMORY_GB : default_job_memory_gb;
+		this.default_job_memory_gb = clamp(mem, 1, this.total_memory_gb);
+
+		free_cores = this.total_cores;
+		free_memory_gb = this.total_memory_gb;
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "vivado-job");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Set the budget of the pool. Replaces any earlier pool. Should be called
+	 * before any script is run (scripts already submitted keep the old budget).
+	 *
+	 * @see #VivadoPool(int, int, int, int)
+	 */
+	public static synchronized void configure(int total_cores, int total_memory_gb, int default_job_threads,
+			int default_job_memory_gb) {
+		if (pool != null)
+			pool.executor.shutdown();
+		pool = new VivadoPool(total_cores, total_memory_gb, default_job_threads, default_job_memory_gb);
+	}
+
+	/**
+	 * @return The pool shared by all tcl scripts. Uses the whole machine if
+	 *         {@link #configure} wasn't called.
+	 */
+	public static synchronized VivadoPool getPool() {
+		if (pool == null)
+			pool = new VivadoPool(0, 0, 0, 0);
+		return pool;
+	}
+
+	public int getTotalCores() {
+		return total_cores;
+	}
+
+	public int getTotalMemoryGB() {
+		return total_memory_gb;
+	}
+
+	public int getDefaultJobThreads() {
+		return default_job_threads;
+	}
+
+	public int getDefaultJobMemoryGB() {
+		return default_job_memory_gb;
+	}
+
+	/**
+	 * Number of threads a job asking for threads will actually be given. This is
+	 * the value to pass to Vivado's general.maxThreads.
+	 *
+	 * @param threads Requested threads. Less than 1 uses the default.
+	 * @return Threads in range [1, min({@link #MAX_VIVADO_THREADS}, total
+	 *         cores)].
+	 */
+	public int jobThreads(int threads) {
+		if (threads < 1)
+			return default_job_threads;
+		return clamp(threads, 1, Math.min(MAX_VIVADO_THREADS, total_cores));
+	}
+
+	/**
+	 * Memory (GB) a job asking for memory_gb will reserve.
+	 *
+	 * @param memory_gb Requested memory. Less than 1 uses the default.
+	 * @return Memory in range [1, total memory].
+	 */
+	public int jobMemoryGB(int memory_gb) {
+		if (memory_gb < 1)
+			return default_job_memory_gb;
+		return clamp(memory_gb, 1, total_memory_gb);
+	}
+
+	/**
+	 * Queue a job. It is started once the requested resources are free.
+	 *
+	 * @param job       Work to do (normally running Vivado). Returns the exit
+	 *                  code.
+	 * @param threads   Threads the job uses. Less than 1 uses the default.
+	 * @param memory_gb Memory (GB) the job uses. Less than 1 uses the default.
+	 * @return Future holding the exit code of the job.
+	 */
+	public Future<Integer> submit(final Callable<Integer> job, int threads, int memory_gb) {
+		final Ticket ticket = new Ticket(jobThreads(threads), jobMemoryGB(memory_gb));
+		synchronized (this) {
+			queue.add(ticket);
+		}
+		return executor.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				acquire(ticket);
+				try {
+					return job.call();
+				} finally {
+					release(ticket);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait until ticket is first in the queue and its resources are free, then
+	 * take them.
+	 */
+	private synchronized void acquire(Ticket ticket) throws InterruptedException {
+		try {
+			while (queue.peek() != ticket || ticket.cores > free_cores || ticket.memory_gb > free_memory_gb)
+				wait();
+		} catch (InterruptedException ie) {
+			queue.remove(ticket);
+			notifyAll();
+			throw ie;
+		}
+		queue.poll();
+		free_cores -= ticket.cores;
+		free_memory_gb -= ticket.memory_gb;
+		// let the next in line check if it fits too
+		notifyAll();
+	}
+
+	private synchronized void release(Ticket ticket) {
+		free_cores += ticket.cores;
+		free_memory_gb += ticket.memory_gb;
+		notifyAll();
+	}
+
+	private static int clamp(int val, int min, int max) {
+		return (val < min) ? min : (val > max) ? max : val;
+	}
+
+	/**
+	 * Getters of the total memory on com.sun.management.OperatingSystemMXBean,
+	 * newest first. getTotalPhysicalMemorySize is deprecated since JDK 14, so
+	 * both are called by reflection.
+	 */
+	private static final String[] TOTAL_MEMORY_GETTERS = { "getTotalMemorySize", "getTotalPhysicalMemorySize" };
+
+	/**
+	 * @return Physical memory of this machine in GB. Falls back to 16 if it can't
+	 *         be determined.
+	 */
+	private static int physicalMemoryGB() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		for (String getter : TOTAL_MEMORY_GETTERS) {
+			try {
+				Method m = Class.forName("com.sun.management.OperatingSystemMXBean").getMethod(getter);
+				Object bytes = m.invoke(os);
+				int gb = (bytes instanceof Long) ? (int) (((Long) bytes) >> 30) : 0;
+				if (gb > 0)
+					return gb;
+			} catch (ReflectiveOperationException | IllegalArgumentException e) {
+				// not this JDK's getter or not a HotSpot bean
+			}
+		}
+		return 16;
+	}
+}
@@ -0,0 +1,240 @@
+package main.tcl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+/**
+ * A long running Vivado process (-mode tcl) that tcl scripts can be sent to
+ * instead of launching Vivado for every script.
+ * <p>
+ * RapidWright's tcl is sourced once when the session starts. Each script is run
+ * with {@code source} inside a {@code catch}. Afterwards all designs are closed
+ * and a marker line holding the result is printed so the end of the script can
+ * be found in Vivado's output. Everything Vivado prints while running a script
+ * is copied to the log of the script's {@link JobDir}.
+ * <p>
+ * If Vivado dies, the script that was running fails and a new Vivado is started
+ * for the next script.
+ * <p>
+ * Sessions are shared through {@link #acquire(boolean)} and
+ * {@link #release(VivadoSession)}. Since scripts only run once admitted by the
+ * {@link VivadoPool}, there are never more busy sessions than Vivado jobs the
+ * pool allows.
+ */
+public class VivadoSession {
+	private static final String DONE_MARKER = "@@SHELLBUILDER_SCRIPT_DONE@@";
+	private static final String RESULT_VAR = "shellbuilder_rc";
+	private static final String MESSAGE_VAR = "shellbuilder_msg";
+
+	private static boolean enabled = false;
+	private static final LinkedList<VivadoSession> idle = new LinkedList<>();
+	private static final List<VivadoSession> all = new ArrayList<>();
+	private static boolean hook_added = false;
+
+	private final boolean use_default_vivado;
+	private Process process = null;
+	private PrintWriter to_vivado = null;
+	private BufferedReader from_vivado = null;
+
+	private VivadoSession(boolean use_default_vivado) {
+		this.use_default_vivado = use_default_vivado;
+	}
+
+	/**
+	 * Set whether {@link TCLScript}s should be run in sessions.
+	 */
+	public static synchronized void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	public static synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Take an idle session or make a new one.
+	 *
+	 * @param use_default_vivado Use the Vivado found on the path instead of
+	 *                           sourcing {@link TCLScript#VIVADO_SETTINGS}.
+	 * @return Session for exclusive use until released.
+	 */
+	public static synchronized VivadoSession acquire(boolean use_default_vivado) {
+		for (VivadoSession s : idle) {
+			if (s.use_default_vivado == use_default_vivado) {
+				idle.remove(s);
+				return s;
+			}
+		}
+		VivadoSession s = new VivadoSession(use_default_vivado);
+		all.add(s);
+		if (!hook_added) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					closeAll();
+				}
+			});
+			hook_added = true;
+		}
+		return s;
+	}
+
+	/**
+	 * Return a session so another script can use it.
+	 */
+	public static synchronized void release(VivadoSession session) {
+		if (session != null && !idle.contains(session))
+			idle.add(session);
+	}
+
+	/**
+	 * Stop all Vivado sessions.
+	 */
+	public static synchronized void closeAll() {
+		for (VivadoSession s : all)
+			s.close();
+		all.clear();
+		idle.clear();
+	}
+
+	/**
+	 * Run a tcl script in this session.
+	 *
+	 * @param tcl_file Script to source. Should not source RapidWright again.
+	 * @param job_dir  Directory to run in. Vivado's output is appended to its log.
+	 * @return 0 if the script finished without error. 1 if the script returned an
+	 *         error. -1 if Vivado could not be started or died.
+	 */
+	public Integer run(File tcl_file, JobDir job_dir) {
+		if (!isAlive() && !start())
+			return -1;
+
+		try (PrintWriter log = new PrintWriter(
+				new BufferedWriter(new OutputStreamWriter(new FileOutputStream(job_dir.getLog(), true))))) {
+			to_vivado.println("cd {" + job_dir.getDir().getAbsolutePath() + "}");
+			to_vivado.println("set " + RESULT_VAR + " [catch {source {" + tcl_file.getAbsolutePath() + "}} "
+					+ MESSAGE_VAR + "]");
+			to_vivado.println("if {$" + RESULT_VAR + "} {puts \"ERROR: $" + MESSAGE_VAR + "\"}");
+			// leave a clean session for the next script
+			to_vivado.println("while {[llength [current_design -quiet]] > 0} {close_design -quiet}");
+			to_vivado.println("puts \"" + DONE_MARKER + " $" + RESULT_VAR + "\"");
+			to_vivado.println("flush stdout");
+			to_vivado.flush();
+
+			String line;
+			while ((line = from_vivado.readLine()) != null) {
+				String rc = parseMarker(line);
+				if (rc != null)
+					return rc.equals("0") ? 0 : 1;
+				log.println(line);
+				System.out.println(line);
+			}
+			log.println("ERROR: Vivado session ended unexpectedly.");
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+
+		MessageGenerator.briefError("Vivado session died while running '" + tcl_file.getAbsolutePath() + "'.");
+		close();
+		return -1;
+	}
+
+	/**
+	 * @param line Line printed by Vivado.
+	 * @return Result following the done marker. Null if this is not a marker line
+	 *         (including Vivado echoing the command that prints the marker).
+	 */
+	private static String parseMarker(String line) {
+		int marker = line.indexOf(DONE_MARKER);
+		if (marker < 0)
+			return null;
+		String rc = line.substring(marker + DONE_MARKER.length()).trim();
+		return rc.matches("\\d+") ? rc : null;
+	}
+
+	private boolean isAlive() {
+		if (process == null)
+			return false;
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException itse) {
+			return true;
+		}
+	}
+
+	/**
+	 * Start Vivado and source RapidWright.
+	 *
+	 * @return Success.
+	 */
+	private boolean start() {
+		close();
+		String vivado = "vivado -mode tcl -nolog -nojournal";
+		ProcessBuilder pb;
+		if (use_default_vivado)
+			pb = new ProcessBuilder(vivado.split(" "));
+		else
+			pb = new ProcessBuilder("bash", "-c", "source " + TCLScript.VIVADO_SETTINGS + " && exec " + vivado);
+		pb.redirectErrorStream(true);
+		try {
+			process = pb.start();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			MessageGenerator.briefError("Failed to start Vivado session.");
+			process = null;
+			return false;
+		}
+		to_vivado = new PrintWriter(new BufferedWriter(new OutputStreamWriter(process.getOutputStream())));
+		from_vivado = new BufferedReader(new InputStreamReader(process.getInputStream()));
+
+		to_vivado.println(new TCLCommand(TCLEnum.SOURCE_RW, "q", null).toString());
+		to_vivado.println("puts \"" + DONE_MARKER + " 0\"");
+		to_vivado.println("flush stdout");
+		to_vivado.flush();
+		try {
+			String line;
+			while ((line = from_vivado.readLine()) != null)
+				if (parseMarker(line) != null)
+					return true;
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+		MessageGenerator.briefError("Vivado session exited while starting.");
+		close();
+		return false;
+	}
+
+	/**
+	 * Stop Vivado if it is running.
+	 */
+	private synchronized void close() {
+		if (process == null)
+			return;
+		if (isAlive()) {
+			to_vivado.println("exit");
+			to_vivado.flush();
+			try {
+				process.waitFor(30, TimeUnit.SECONDS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		process.destroy();
+		process = null;
+		to_vivado = null;
+		from_vivado = null;
+	}
+}
@@ -0,0 +1,238 @@
+package main.top;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+import main.directive.Directive;
+import main.directive.DirectiveBuilder;
+import main.parser.ArgsContainer;
+import main.worker.Merger;
+
+/**
+ * Builds the cache misses of a directive tree concurrently before
+ * {@link ShellBuilder#runBuilder(DirectiveBuilder) runBuilder} merges them.
+ * <p>
+ * Every "merge" directive that is not in the cache becomes a node that places
+ * and routes the module out of context. Every "build" directive that is not in
+ * the cache becomes a node that runs its sub builder and then places and routes
+ * the result in its pblock. A build node depends on the nodes of all the
+ * directives below it. Directives that resolve to the same cache directory
+ * share a node.
+ * <p>
+ * A node is only handed to a worker once all its dependancies have finished,
+ * so workers never wait on each other. Merging into each {@link Merger} still
+ * happens in directive order inside runBuilder (which finds everything built
+ * here through {@link Directive#getImplDCP()}), so the result does not depend
+ * on the number of workers.
+ */
+class BuildScheduler {
+	private ShellBuilder builder = null;
+	private ArgsContainer args = null;
+	private Map<String, Node> nodes = new LinkedHashMap<>();
+	private CountDownLatch remaining = null;
+	private volatile Throwable failure = null;
+	/**
+	 * Locks by sub builder module name. Instances of one sub builder in different
+	 * pblocks are separate nodes but runBuilder writes the same
+	 * moduleCache/&lt;name&gt;/&lt;name&gt;.dcp and place and route script for
+	 * each, and placing and routing it in the node's pblock reads that dcp. So
+	 * these nodes run one at a time, from runBuilder until their place and route
+	 * is done.
+	 */
+	private final Map<String, Object> module_locks = new HashMap<>();
+
+	/**
+	 * A unit of work producing one cache entry.
+	 */
+	private class Node {
+		final String key;
+		final List<Directive> directives = new ArrayList<>();
+		final List<Node> dependants = new ArrayList<>();
+		final AtomicInteger pending = new AtomicInteger(0);
+
+		Node(String key) {
+			this.key = key;
+		}
+
+		void dependsOn(Node other) {
+			if (other == null || other == this || other.dependants.contains(this))
+				return;
+			other.dependants.add(this);
+			pending.incrementAndGet();
+		}
+
+		void build() {
+			Directive directive = directives.get(0);
+			if (!directive.isSubBuilder()) {
+				buildDirective(directive);
+				return;
+			}
+			synchronized (getModuleLock(directive.getSubBuilder().getHeader().getModuleName())) {
+				buildDirective(directive);
+			}
+		}
+
+		private void buildDirective(Directive directive) {
+			File impl_dcp = null;
+			if (directive.isSubBuilder()) {
+				Merger sub_merge = builder.runBuilder(directive.getSubBuilder());
+				for (Directive dir : directives)
+					dir.setDCP(sub_merge.getFinalDCP());
+				impl_dcp = directive.isRefresh() ? null : Merger.findModuleInCache(directive, args, false);
+			}
+			if (impl_dcp == null) {
+				String out_dcp = Merger.placeRouteOOC(directive, args);
+				if (out_dcp == null)
+					MessageGenerator.briefErrorAndExit("Failed to place and route '" + key + "'.");
+				impl_dcp = new File(out_dcp);
+			}
+			for (Directive dir : directives)
+				dir.setImplDCP(impl_dcp);
+		}
+	}
+
+	private Object getModuleLock(String module_name) {
+		synchronized (module_locks) {
+			Object lock = module_locks.get(module_name);
+			if (lock == null) {
+				lock = new Object();
+				module_locks.put(module_name, lock);
+			}
+			return lock;
+		}
+	}
+
+	/**
+	 * @param builder Builder used to run sub builders.
+	 * @param args    Arguments from command line. Number of workers is
+	 *                {@link ArgsContainer#jobs()}.
+	 */
+	BuildScheduler(ShellBuilder builder, ArgsContainer args) {
+		this.builder = builder;
+		this.args = args;
+	}
+
+	/**
+	 * Add nodes for all directives of a builder (but not the builder itself) to
+	 * the graph.
+	 *
+	 * @param directive_builder Builder whose descendants should be scheduled.
+	 * @return Nodes that the builder depends on.
+	 */
+	List<Node> addBuilder(DirectiveBuilder directive_builder) {
+		List<Node> deps = new ArrayList<>();
+		for (Directive dir : directive_builder.getDirectives()) {
+			Node n = addDirective(dir);
+			if (n != null)
+				deps.add(n);
+		}
+		return deps;
+	}
+
+	/**
+	 * Add a node for the directive if it is not already cached.
+	 *
+	 * @param directive Directive to schedule.
+	 * @return Node producing the directive. Null if nothing needs to be done
+	 *         before runBuilder.
+	 */
+	private Node addDirective(Directive directive) {
+		if (directive.isWrite() || directive.isOnlyWires())
+			return null;
+		if (directive.isMerge() && (directive.getDCP() == null || !directive.getDCP().exists()))
+			return null; // runBuilder reports the error
+
+		if (directive.isSubBuilder()) {
+			if (Merger.findModuleInCache(directive, args, false) != null
+					|| Merger.findModuleInRemoteCache(directive, args) != null)
+				return null;
+		} else if (!directive.isRefresh() && Merger.findModuleInCache(directive, args, false) != null)
+			return null;
+
+		File impl_dir = Merger.getCacheImplDir(directive, args);
+		if (impl_dir == null)
+			return null;
+		String key = impl_dir.getAbsolutePath();
+
+		Node node = nodes.get(key);
+		if (node == null) {
+			node = new Node(key);
+			nodes.put(key, node);
+		}
+		node.directives.add(directive);
+
+		if (directive.isSubBuilder())
+			for (Node dep : addBuilder(directive.getSubBuilder()))
+				node.dependsOn(dep);
+		return node;
+	}
+
+	/**
+	 * Build all nodes that were added. Returns once all have finished. Exits with
+	 * error if any of them failed.
+	 */
+	void run() {
+		if (nodes.isEmpty())
+			return;
+
+		int num_workers = Math.min(args.jobs(), nodes.size());
+		printIfVerbose("\nBuilding " + nodes.size() + " modules using " + num_workers + " workers.");
+		ExecutorService pool = Executors.newFixedThreadPool(num_workers);
+		remaining = new CountDownLatch(nodes.size());
+		for (Node n : nodes.values())
+			if (n.pending.get() == 0)
+				submit(pool, n);
+
+		try {
+			remaining.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			failure = ie;
+		}
+		pool.shutdown();
+
+		if (failure != null) {
+			failure.printStackTrace();
+			MessageGenerator.briefErrorAndExit("Parallel build failed.\nExiting.");
+		}
+	}
+
+	private void submit(ExecutorService pool, Node node) {
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// skip work once anything failed, but keep counting down
+					if (failure == null)
+						node.build();
+				} catch (Throwable t) {
+					// also errors (eg. out of memory), otherwise run() would wait forever
+					failure = t;
+				} finally {
+					try {
+						for (Node d : node.dependants)
+							if (d.pending.decrementAndGet() == 0)
+								submit(pool, d);
+					} finally {
+						remaining.countDown();
+					}
+				}
+			}
+		});
+	}
+
+	private void printIfVerbose(String msg) {
+		if (args.verbose())
+			MessageGenerator.briefMessage(msg);
+	}
+}
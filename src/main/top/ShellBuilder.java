@@ -10,7 +10,15 @@ import java.nio.file.StandardCopyOption;
 
 import main.parser.Args;
 import main.parser.ArgsContainer;
+import main.tcl.JobDir;
+import main.tcl.VivadoPool;
+import main.tcl.VivadoSession;
 import main.util.DesignUtils;
+import main.util.DeviceRegistry;
+import main.worker.CacheEntryLock;
+import main.worker.CacheGC;
+import main.worker.CacheVerifier;
+import main.worker.Floorplanner;
 import main.worker.Merger;
 import main.worker.XDCWriter;
 import main.directive.*;
@@ -77,12 +85,17 @@ public class ShellBuilder {
 		if (directive.isSubBuilder()) {
 			// TODO uncomment this
 			// check for cached hierarchial solutions
-			File cached_dcp = Merger.findModuleInCache(directive, args, false);
-			if (cached_dcp != null) {
-				directive.setDCP(cached_dcp);
-			} else {
-				Merger sub_merge = runBuilder(directive.getSubBuilder());
-				directive.setDCP(sub_merge.getFinalDCP());
+			// (skip if the scheduler already built it this run)
+			if (directive.getImplDCP() == null) {
+				File cached_dcp = Merger.findModuleInCache(directive, args, false);
+				if (cached_dcp == null)
+					cached_dcp = Merger.findModuleInRemoteCache(directive, args);
+				if (cached_dcp != null) {
+					directive.setDCP(cached_dcp);
+				} else {
+					Merger sub_merge = runBuilder(directive.getSubBuilder());
+					directive.setDCP(sub_merge.getFinalDCP());
+				}
 			}
 			merger.merge(directive, args);
 
@@ -143,18 +156,23 @@ public class ShellBuilder {
 
 		for (Directive step : directive_builder.getDirectives())
 			runDirective(step, merger);
+		if (args.globalPlace())
+			merger.globalPlace(args);
 
 		File iii_dir = (head.getParent() == null) ? head.getIII() : head.getParent().getIII();
 		File out_dcp = new File(iii_dir,
 				Merger.MODULE_CACHE + "/" + head.getModuleName() + "/" + head.getModuleName() + ".dcp");
 		merger.setFinalDCP(out_dcp);
-		merger.writeCheckpoint(out_dcp);
+		// hold the entry until it's routed so other builders don't overwrite it
+		try (CacheEntryLock lock = CacheEntryLock.acquire(out_dcp.getParentFile(), args.verbose())) {
+			merger.writeCheckpoint(out_dcp);
 
-		// if (head.getParent() == null) 
-		
-		// ! only run if top level module?
-		// TODO is it still placing and routing both here and when the design is loaded as an ooc dcp
-		merger.placeAndRoute(out_dcp, directive_builder, args);
+			// if (head.getParent() == null)
+
+			// ! only run if top level module?
+			// TODO is it still placing and routing both here and when the design is loaded as an ooc dcp
+			merger.placeAndRoute(out_dcp, directive_builder, args);
+		}
 
 		// Get dcp of last directive if it was a write
 		File write_dcp = null;
@@ -213,13 +231,34 @@ public class ShellBuilder {
 	 */
 	public void start(String[] cmd_line_args) {
 		args = new ArgsContainer(cmd_line_args);
+		VivadoPool.configure(args.cores(), args.memoryGB(), args.jobCores(), args.jobMemoryGB());
+		JobDir.configure(args.jobRetention(), args.jobHistory());
+		VivadoSession.setEnabled(args.vivadoSession());
 		FileSys fsys = new FileSys(args.verbose());
 		File xml_directives = fsys.getExistingFile(args.getOneArg(Args.Tag.XML_DIRECTIVES), true);
 		DirectiveBuilder directive_builder = new DirectiveBuilder();
 		directive_builder.parse(xml_directives, args.verbose());
+		if (args.floorplan() && Floorplanner.floorplan(xml_directives, directive_builder, args) > 0) {
+			directive_builder = new DirectiveBuilder();
+			directive_builder.parse(xml_directives, args.verbose());
+		}
 		if (args.refresh())
 			directive_builder.getHeader().setRefresh(true);
 
+		if (args.verifyCache()) {
+			for (File cache_dir : CacheGC.getCacheDirs(directive_builder))
+				CacheVerifier.verifyAll(cache_dir, args.threads(), args.verbose());
+		}
+
+		CacheGC gc = new CacheGC(args);
+		gc.pin(directive_builder, args);
+		if (args.cacheGC()) {
+			for (File cache_dir : CacheGC.getCacheDirs(directive_builder))
+				gc.collect(cache_dir, !args.force());
+		}
+		if (args.verifyCache() || args.cacheGC())
+			return;
+
 		// TODO remove this test
 		// it added an ila to the tutorial 2 project
 		// File input_dcp = new
@@ -237,9 +276,20 @@ public class ShellBuilder {
 		for (Directive dir : directive_builder.getDirectives())
 			xdc_writer.writeAllHierXDC(dir);
 
-		if (!directive_builder.getDirectives().isEmpty())
+		if (!directive_builder.getDirectives().isEmpty()) {
+			if (args.jobs() > 1) {
+				BuildScheduler scheduler = new BuildScheduler(this, args);
+				scheduler.addBuilder(directive_builder);
+				scheduler.run();
+			}
 			runBuilder(directive_builder);
+		}
+
+		if (gc.isBounded())
+			for (File cache_dir : CacheGC.getCacheDirs(directive_builder))
+				gc.collect(cache_dir, false);
 
+		DeviceRegistry.printMetrics(args.verbose());
 		MessageGenerator.briefMessage("\nFinished.");
 	}
 
@@ -8,18 +8,26 @@ import com.xilinx.rapidwright.design.*;
 import com.xilinx.rapidwright.util.FileTools;
 import com.xilinx.rapidwright.util.MessageGenerator;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -40,7 +48,9 @@ public class DesignUtils {
 	 * @param dcp_file Design checkpoint to write edif of.
 	 */
 	public static void generateEdif(String dcp_file, boolean verbose, String dir) {
-		TCLScript script = new TCLScript(dcp_file, dcp_file, (verbose ? "f" : "qf"), dir + "/generate_edif.tcl");
+		String tcl_script_name = dir + "/" + FileTools.removeFileExtension(new File(dcp_file).getName())
+				+ "_generate_edif.tcl";
+		TCLScript script = new TCLScript(dcp_file, dcp_file, (verbose ? "f" : "qf"), tcl_script_name);
 		script.add(TCLEnum.WRITE_EDIF);
 		script.run(false);
 	}
@@ -72,6 +82,8 @@ public class DesignUtils {
 		Design d = null;
 		try {
 			printIfVerbose("\nLoading design from '" + dcp_file + "'.", verbose);
+			// Load the device once through the registry so the design shares it
+			DeviceRegistry.get(readPartName(new File(dcp_file)));
 			d = Design.readCheckpoint(dcp_file);
 		} catch (RuntimeException e) {
 			printIfVerbose("\nCouldn't open design at '" + dcp_file + "' due to encrypted edif.", verbose);
@@ -383,4 +395,65 @@ public class DesignUtils {
 		}
 		return true;
 	}
-}
\ No newline at end of file
+
+	private static final Pattern DCP_XML_PART = Pattern
+			.compile("<Part(?:\\s+Name\\s*=\\s*\"([^\"]+)\"|>\\s*([^<\\s]+))");
+	private static final Pattern EDIF_PART = Pattern.compile("\\(property\\s+PART\\s+\\(string\\s+\"([^\"]+)\"");
+	/**
+	 * Part names by dcp path and modification time.
+	 */
+	private static final Map<String, String> part_names = new ConcurrentHashMap<>();
+
+	/**
+	 * Read the part a dcp was implemented for without loading the design. Looks in
+	 * dcp.xml first, then for the PART property in the edif.
+	 * 
+	 * @param dcp Design checkpoint.
+	 * @return Part name. Null if the dcp can't be read or doesn't name its part.
+	 */
+	public static String readPartName(File dcp) {
+		if (dcp == null || !dcp.isFile())
+			return null;
+		String key = dcp.getAbsolutePath() + ":" + dcp.lastModified();
+		String part = part_names.get(key);
+		if (part != null)
+			return part.isEmpty() ? null : part;
+
+		part = null;
+		try (ZipFile zip = new ZipFile(dcp)) {
+			ZipEntry xml = zip.getEntry("dcp.xml");
+			if (xml != null)
+				part = findInEntry(zip, xml, DCP_XML_PART);
+			if (part == null) {
+				Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (part == null && entries.hasMoreElements()) {
+					ZipEntry ze = entries.nextElement();
+					if (ze.getName().endsWith(".edf"))
+						part = findInEntry(zip, ze, EDIF_PART);
+				}
+			}
+		} catch (IOException ioe) {
+			part = null;
+		}
+		part_names.put(key, (part == null) ? "" : part);
+		return part;
+	}
+
+	/**
+	 * @return First non-null group of the first line of the entry matching p. Null
+	 *         if no line matches.
+	 */
+	private static String findInEntry(ZipFile zip, ZipEntry ze, Pattern p) throws IOException {
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(zip.getInputStream(ze)))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				Matcher m = p.matcher(line);
+				if (m.find())
+					for (int i = 1; i <= m.groupCount(); i++)
+						if (m.group(i) != null)
+							return m.group(i);
+			}
+		}
+		return null;
+	}
+}
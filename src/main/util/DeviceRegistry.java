@@ -0,0 +1,122 @@
+package main.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.xilinx.rapidwright.design.Design;
+import com.xilinx.rapidwright.device.Device;
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+/**
+ * The devices loaded during a run, one per part.
+ * <p>
+ * Device models are large (gigabytes and seconds to load for UltraScale+
+ * parts). Every {@link Design} made or read by ShellBuilder gets its device
+ * from here, so each part is loaded once for the whole run and shared by all
+ * mergers, modules and pblocks. Loading is done under a lock so concurrent
+ * builders don't load the same part twice.
+ * <p>
+ * RapidWright keeps loaded devices by name, so a design made with
+ * {@link #newDesign(String, String)} or read after its part was loaded here
+ * reuses the registered device.
+ */
+public class DeviceRegistry {
+	private static class Entry {
+		final Device device;
+		final long load_ms;
+		/**
+		 * Increase in used heap while loading. Approximate since other threads
+		 * allocate too.
+		 */
+		final long load_bytes;
+		int uses = 0;
+
+		Entry(Device device, long load_ms, long load_bytes) {
+			this.device = device;
+			this.load_ms = load_ms;
+			this.load_bytes = load_bytes;
+		}
+	}
+
+	/**
+	 * Entries by part name and by device name.
+	 */
+	private static final Map<String, Entry> by_name = new HashMap<>();
+	/**
+	 * Entries in the order they were loaded, by device name.
+	 */
+	private static final Map<String, Entry> loaded = new LinkedHashMap<>();
+
+	/**
+	 * Get the device of a part, loading it if this is the first time it is asked
+	 * for.
+	 *
+	 * @param part Part or device name.
+	 * @return The device. Null if part is null.
+	 */
+	public static synchronized Device get(String part) {
+		if (part == null)
+			return null;
+		Entry e = by_name.get(part);
+		if (e == null) {
+			Runtime rt = Runtime.getRuntime();
+			long used = rt.totalMemory() - rt.freeMemory();
+			long start = System.currentTimeMillis();
+			Device device = Device.getDevice(part);
+			if (device == null)
+				return null;
+			long load_ms = System.currentTimeMillis() - start;
+			long load_bytes = Math.max(0, rt.totalMemory() - rt.freeMemory() - used);
+			e = loaded.get(device.getName());
+			if (e == null) {
+				e = new Entry(device, load_ms, load_bytes);
+				loaded.put(device.getName(), e);
+				by_name.put(device.getName(), e);
+			}
+			by_name.put(part, e);
+		}
+		e.uses++;
+		return e.device;
+	}
+
+	/**
+	 * Make an empty design on the shared device of a part.
+	 *
+	 * @param name Design name.
+	 * @param part Part or device name.
+	 * @return The design.
+	 */
+	public static Design newDesign(String name, String part) {
+		get(part);
+		return new Design(name, part);
+	}
+
+	/**
+	 * @return One line per loaded device: part, load time, heap used by loading
+	 *         and number of times it was asked for.
+	 */
+	public static synchronized List<String> metrics() {
+		List<String> lines = new ArrayList<>();
+		for (Entry e : loaded.values())
+			lines.add(String.format("%s: loaded in %.1f s, ~%d MB heap, used %d times.", e.device.getName(),
+					e.load_ms / 1000.0, e.load_bytes >> 20, e.uses));
+		return lines;
+	}
+
+	/**
+	 * Print {@link #metrics()} if any device was loaded.
+	 *
+	 * @param verbose Print extra messages.
+	 */
+	public static void printMetrics(boolean verbose) {
+		List<String> lines = metrics();
+		if (!verbose || lines.isEmpty())
+			return;
+		MessageGenerator.briefMessage("\nDevices:");
+		for (String line : lines)
+			MessageGenerator.briefMessage("  " + line);
+	}
+}
@@ -0,0 +1,149 @@
+package main.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+/**
+ * SHA-256 digests of files and strings.
+ * <p>
+ * File digests are remembered for the rest of the run as long as the file's
+ * size and modification time haven't changed, so hashing the same large DCP
+ * for many directives only reads it once.
+ * <p>
+ * A {@link #sampleDigest(File) sample digest} reads only a fixed number of
+ * blocks spread over the file, to cheaply detect files that were truncated or
+ * overwritten.
+ */
+public class FileDigest {
+	private static final String ALGORITHM = "SHA-256";
+	private static final int BUFFER_SIZE = 1 << 16;
+	/**
+	 * Number and size of the blocks read by {@link #sampleDigest(File)}.
+	 */
+	private static final int NUM_SAMPLES = 16;
+	private static final int SAMPLE_SIZE = 1 << 16;
+
+	private static final Map<String, Memo> memo = new ConcurrentHashMap<>();
+
+	private static class Memo {
+		final long length;
+		final long last_modified;
+		final String digest;
+
+		Memo(long length, long last_modified, String digest) {
+			this.length = length;
+			this.last_modified = last_modified;
+			this.digest = digest;
+		}
+	}
+
+	/**
+	 * @param f File to hash.
+	 * @return Hex SHA-256 of the file's contents. Null if f is not a readable
+	 *         file.
+	 */
+	public static String digest(File f) {
+		if (f == null || !f.isFile())
+			return null;
+		String key = f.getAbsolutePath();
+		long length = f.length();
+		long last_modified = f.lastModified();
+		Memo m = memo.get(key);
+		if (m != null && m.length == length && m.last_modified == last_modified)
+			return m.digest;
+
+		MessageDigest md = newDigest();
+		byte[] buf = new byte[BUFFER_SIZE];
+		try (InputStream in = new FileInputStream(f)) {
+			int n;
+			while ((n = in.read(buf)) > 0)
+				md.update(buf, 0, n);
+		} catch (IOException ioe) {
+			MessageGenerator.briefError("Failed to read '" + key + "' for hashing.");
+			return null;
+		}
+		String digest = toHex(md.digest());
+		memo.put(key, new Memo(length, last_modified, digest));
+		return digest;
+	}
+
+	/**
+	 * @param f File to hash.
+	 * @return Hex SHA-256 of the file's length and {@value #NUM_SAMPLES} blocks of
+	 *         {@value #SAMPLE_SIZE} bytes evenly spread over it (including the
+	 *         first and last). Null if f is not a readable file.
+	 */
+	public static String sampleDigest(File f) {
+		if (f == null || !f.isFile())
+			return null;
+		MessageDigest md = newDigest();
+		byte[] buf = new byte[SAMPLE_SIZE];
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+			long length = raf.length();
+			md.update(Long.toString(length).getBytes(StandardCharsets.UTF_8));
+			long last = Math.max(0, length - SAMPLE_SIZE);
+			for (int i = 0; i < NUM_SAMPLES; i++) {
+				long pos = last * i / (NUM_SAMPLES - 1);
+				int n = (int) Math.min(SAMPLE_SIZE, length - pos);
+				raf.seek(pos);
+				raf.readFully(buf, 0, n);
+				md.update(buf, 0, n);
+				if (last == 0)
+					break; // the one sample covered the whole file
+			}
+		} catch (IOException ioe) {
+			MessageGenerator.briefError("Failed to read '" + f.getAbsolutePath() + "' for hashing.");
+			return null;
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * @param lines Strings to hash. Each is terminated by a new line.
+	 * @return Hex SHA-256 of the lines.
+	 */
+	public static String digest(Collection<String> lines) {
+		MessageDigest md = newDigest();
+		for (String line : lines) {
+			md.update((line == null ? "" : line).getBytes(StandardCharsets.UTF_8));
+			md.update((byte) '\n');
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Forget the remembered digest of a file (eg. after it was overwritten within
+	 * the same second).
+	 */
+	public static void forget(File f) {
+		if (f != null)
+			memo.remove(f.getAbsolutePath());
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException nsae) {
+			// every java platform is required to support SHA-256
+			throw new RuntimeException(nsae);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+}
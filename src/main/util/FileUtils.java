@@ -3,6 +3,15 @@ package main.util;
 import com.xilinx.rapidwright.util.MessageGenerator;
 import com.xilinx.rapidwright.util.FileTools;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Map.Entry;
@@ -10,7 +19,8 @@ import java.util.List;
 import java.util.ArrayList;
 
 /**
- * Some functions to assist with reading and writing key, value pair files.
+ * Some functions to assist with reading and writing key, value pair files and
+ * with cleaning up directories.
  * <p>
  * Map files unused since using xml files instead except for probe files.
  */
@@ -57,4 +67,92 @@ public class FileUtils {
 			lines.add(e.getKey() + sep + e.getValue());
 		FileTools.writeLinesToTextFile(lines, filename);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Delete a file or a directory and everything in it.
+	 * 
+	 * @param f File or directory to delete.
+	 * @return True if f no longer exists.
+	 */
+	public static boolean deleteRecursively(File f) {
+		if (f == null || !f.exists())
+			return true;
+		try {
+			Files.walkFileTree(f.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+					Files.delete(dir);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException ioe) {
+			MessageGenerator.briefMessage("Warning: Failed to delete '" + f.getAbsolutePath() + "'.");
+		}
+		return !f.exists();
+	}
+
+	/**
+	 * Move a file, replacing dst if it exists. Readers of dst see either the old
+	 * or the new file, never a partly written one (if src and dst are on the same
+	 * file system).
+	 * 
+	 * @param src File to move.
+	 * @param dst Where to move it.
+	 * @return True if the file was moved.
+	 */
+	public static boolean moveAtomically(File src, File dst) {
+		try {
+			try {
+				Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException amnse) {
+				Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException ioe) {
+			MessageGenerator.briefError("Failed to move '" + src.getAbsolutePath() + "' to '" + dst.getAbsolutePath()
+					+ "'.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param f File that will be written.
+	 * @return A hidden file beside f to write to before moving it to f. Unique to
+	 *         this call.
+	 */
+	public static File tempSibling(File f) {
+		return tempSibling(f, ".tmp");
+	}
+
+	/**
+	 * @param f      File that will be written.
+	 * @param suffix Extension of the temporary file (eg. for tools that force one).
+	 * @return A hidden file beside f to write to before moving it to f. Unique to
+	 *         this call.
+	 */
+	public static File tempSibling(File f, String suffix) {
+		return new File(f.getAbsoluteFile().getParentFile(), "." + f.getName() + "."
+				+ Long.toHexString(Thread.currentThread().getId()) + Long.toHexString(System.nanoTime()) + suffix);
+	}
+
+	/**
+	 * Write lines to a temporary file and then move it to f, so f is never seen
+	 * partly written.
+	 * 
+	 * @param lines Lines to write.
+	 * @param f     File to write.
+	 */
+	public static void writeLinesAtomically(List<String> lines, File f) {
+		File tmp = tempSibling(f);
+		FileTools.writeLinesToTextFile(lines, tmp.getAbsolutePath());
+		if (!moveAtomically(tmp, f))
+			tmp.delete();
+	}
+}
@@ -0,0 +1,98 @@
+package main.util;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.xilinx.rapidwright.edif.EDIFCell;
+import com.xilinx.rapidwright.edif.EDIFNetlist;
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+/**
+ * Netlists of top level synth dcps shared for reading during a run.
+ * <p>
+ * Nested builders usually inherit the same synth. A reader walking several
+ * builders (eg. the floorplanner compiling their connectivity plans)
+ * {@link #retain(File) retains} each synth before it reads it and
+ * {@link #release(File, boolean) releases} it when it is done. The netlist is
+ * read the first time it is {@link #get(File, boolean, File) asked} for and
+ * dropped after the last release, so it is parsed once while it may still be
+ * needed.
+ * <p>
+ * Only for reading. Code that moves cells of the synth into a design (eg.
+ * with {@link EDIFNetlist#migrateCellAndSubCells(EDIFCell)}) must read its own
+ * copy, since that re-parents the cells and they would be shared by the designs
+ * of several builders.
+ */
+public class NetlistRegistry {
+	private static class Entry {
+		int refs = 0;
+		EDIFNetlist netlist = null;
+	}
+
+	/**
+	 * Entries by absolute path of the synth dcp.
+	 */
+	private static final Map<String, Entry> entries = new HashMap<>();
+
+	/**
+	 * Keep the netlist of a synth once it is loaded until it is released.
+	 *
+	 * @param synth Synth dcp. Ignored if null.
+	 */
+	public static synchronized void retain(File synth) {
+		if (synth == null)
+			return;
+		String key = synth.getAbsolutePath();
+		Entry e = entries.get(key);
+		if (e == null) {
+			e = new Entry();
+			entries.put(key, e);
+		}
+		e.refs++;
+	}
+
+	/**
+	 * Undo one {@link #retain(File)}. The netlist is dropped after the last one.
+	 *
+	 * @param synth   Synth dcp. Ignored if null.
+	 * @param verbose Print extra messages.
+	 */
+	public static synchronized void release(File synth, boolean verbose) {
+		if (synth == null)
+			return;
+		String key = synth.getAbsolutePath();
+		Entry e = entries.get(key);
+		if (e == null || --e.refs > 0)
+			return;
+		entries.remove(key);
+		if (e.netlist != null && verbose)
+			MessageGenerator.briefMessage("Released synth netlist of '" + key + "'.");
+	}
+
+	/**
+	 * Get the netlist of a synth dcp, loading it if it isn't loaded. Builders
+	 * loading different synths don't wait for each other.
+	 *
+	 * @param synth   Synth dcp.
+	 * @param verbose Print extra messages.
+	 * @param dir     Temp dir to write tcl file to if required (suggested: iii
+	 *                dir).
+	 * @return The netlist. Only kept for later calls if synth is retained.
+	 */
+	public static EDIFNetlist get(File synth, boolean verbose, File dir) {
+		Entry e;
+		synchronized (NetlistRegistry.class) {
+			e = entries.get(synth.getAbsolutePath());
+		}
+		if (e == null)
+			return DesignUtils.safeReadCheckpoint(synth, verbose, dir).getNetlist();
+		synchronized (e) {
+			if (e.netlist == null)
+				e.netlist = DesignUtils.safeReadCheckpoint(synth, verbose, dir).getNetlist();
+			else if (verbose)
+				MessageGenerator.briefMessage("Reusing synth netlist of '" + synth.getAbsolutePath() + "'.");
+			return e.netlist;
+		}
+	}
+}
@@ -0,0 +1,514 @@
+package main.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.xilinx.rapidwright.device.Device;
+import com.xilinx.rapidwright.device.Site;
+import com.xilinx.rapidwright.device.Tile;
+import com.xilinx.rapidwright.edif.EDIFCell;
+import com.xilinx.rapidwright.edif.EDIFCellInst;
+
+/**
+ * Estimates whether a module fits in a pblock from the primitives in its
+ * netlist, and proposes a pblock that fits.
+ * <p>
+ * The primitives of a module are counted once into a {@link Utilization}. The
+ * check is a lower bound: a pblock is only reported too small if the module
+ * can't fit however Vivado packs it (eg. two small LUTs may share one LUT6
+ * site). Pblocks with clock regions aren't checked.
+ * <p>
+ * Resources of the device are summed per tile once, so checking a pblock or
+ * growing a proposal takes milliseconds instead of a failed place and route.
+ */
+public class PBlockEstimator {
+	/**
+	 * Extra resources a proposed pblock has over what the module needs.
+	 */
+	public static final double DEFAULT_SLACK = 0.2;
+
+	// resource kinds
+	private static final int SLICE = 0;
+	private static final int SLICEM = 1;
+	private static final int BRAM18 = 2;
+	private static final int DSP = 3;
+	private static final int NUM_KINDS = 4;
+	private static final String[] KIND_NAMES = { "slices", "SLICEM slices", "18Kb block RAMs", "DSPs" };
+
+	private static final Map<String, PBlockEstimator> estimators = new ConcurrentHashMap<>();
+
+	/**
+	 * Primitive counts of a module.
+	 */
+	public static class Utilization {
+		long luts;
+		/**
+		 * LUT1 to LUT5. Two of them may share a LUT6 site.
+		 */
+		long small_luts;
+		/**
+		 * LUTs used as distributed RAM or shift registers (SLICEM only).
+		 */
+		long lutrams;
+		/**
+		 * SRL16s. Two of them may share a LUT6 site.
+		 */
+		long small_lutrams;
+		long ffs;
+		long carries;
+		long bram18s;
+		long dsps;
+
+		private static final String[] FIELDS = { "lut", "small_lut", "lutram", "ff", "carry", "bram18", "dsp",
+				"small_lutram" };
+
+		/**
+		 * Count the primitives below a cell. Each cell definition is walked once
+		 * however many times it is instantiated.
+		 *
+		 * @param cell Top cell of the module.
+		 * @return Counts of the primitives in cell.
+		 */
+		public static Utilization of(EDIFCell cell) {
+			return of(cell, new HashMap<EDIFCell, Utilization>());
+		}
+
+		private static Utilization of(EDIFCell cell, Map<EDIFCell, Utilization> walked) {
+			Utilization u = walked.get(cell);
+			if (u != null)
+				return u;
+			u = new Utilization();
+			walked.put(cell, u);
+			if (cell.getCellInsts() == null)
+				return u;
+			for (EDIFCellInst ci : cell.getCellInsts()) {
+				EDIFCell type = ci.getCellType();
+				if (type == null)
+					continue;
+				if (type.isPrimitive())
+					u.addPrimitive(type.getName());
+				else
+					u.add(of(type, walked));
+			}
+			return u;
+		}
+
+		private void add(Utilization o) {
+			long[] a = toArray();
+			long[] b = o.toArray();
+			for (int i = 0; i < a.length; i++)
+				a[i] += b[i];
+			fromArray(a);
+		}
+
+		private void addPrimitive(String type) {
+			if (type.startsWith("LUT")) {
+				luts++;
+				if (!type.startsWith("LUT6"))
+					small_luts++;
+			} else if (type.startsWith("SRL")) {
+				lutrams++;
+				if (type.startsWith("SRL16"))
+					small_lutrams++;
+			} else if (type.startsWith("RAM") && !type.startsWith("RAMB")) {
+				lutrams += lutramLUTs(type);
+			} else if (type.startsWith("FD") || type.startsWith("LD")) {
+				ffs++;
+			} else if (type.startsWith("CARRY")) {
+				carries++;
+			} else if (type.startsWith("RAMB36") || type.startsWith("FIFO36")) {
+				bram18s += 2;
+			} else if (type.startsWith("RAMB18") || type.startsWith("FIFO18")) {
+				bram18s++;
+			} else if (type.startsWith("DSP")) {
+				dsps++;
+			}
+		}
+
+		/**
+		 * @return LUTs used by a distributed RAM primitive (eg. 4 for RAM32M).
+		 */
+		private static int lutramLUTs(String type) {
+			if (type.equals("RAM32M16") || type.equals("RAM64M8") || type.equals("RAM256X1D")
+					|| type.equals("RAM512X1S"))
+				return 8;
+			if (type.equals("RAM32M") || type.equals("RAM64M") || type.equals("RAM128X1D")
+					|| type.equals("RAM256X1S"))
+				return 4;
+			if (type.equals("RAM64X1D") || type.equals("RAM32X1D") || type.equals("RAM128X1S"))
+				return 2;
+			return 1;
+		}
+
+		/**
+		 * @return True if no primitives were counted.
+		 */
+		public boolean isEmpty() {
+			for (long n : toArray())
+				if (n != 0)
+					return false;
+			return true;
+		}
+
+		/**
+		 * @return Fewest LUT6 sites the LUTs could be packed into.
+		 */
+		long minLUTSites() {
+			return (luts - small_luts) + (small_luts + 1) / 2 + minLUTRAMSites();
+		}
+
+		/**
+		 * @return Fewest SLICEM LUT6 sites the distributed RAMs and shift registers
+		 *         could be packed into.
+		 */
+		long minLUTRAMSites() {
+			return (lutrams - small_lutrams) + (small_lutrams + 1) / 2;
+		}
+
+		private long[] toArray() {
+			return new long[] { luts, small_luts, lutrams, ffs, carries, bram18s, dsps, small_lutrams };
+		}
+
+		private void fromArray(long[] a) {
+			luts = a[0];
+			small_luts = a[1];
+			lutrams = a[2];
+			ffs = a[3];
+			carries = a[4];
+			bram18s = a[5];
+			dsps = a[6];
+			small_lutrams = a[7];
+		}
+
+		/**
+		 * @param summary From {@link #toString()}.
+		 * @return Counts in summary. Null if summary is null or not a summary.
+		 */
+		public static Utilization parse(String summary) {
+			if (summary == null)
+				return null;
+			Map<String, Long> values = new HashMap<>();
+			for (String part : summary.trim().split(",")) {
+				String[] kv = part.trim().split("=");
+				if (kv.length != 2)
+					return null;
+				try {
+					values.put(kv[0], Long.parseLong(kv[1]));
+				} catch (NumberFormatException nfe) {
+					return null;
+				}
+			}
+			long[] a = new long[FIELDS.length];
+			for (int i = 0; i < FIELDS.length; i++) {
+				Long v = values.get(FIELDS[i]);
+				a[i] = (v == null) ? 0 : v;
+			}
+			Utilization u = new Utilization();
+			u.fromArray(a);
+			return u;
+		}
+
+		/**
+		 * @return Counts as comma separated name=count pairs (stored in the cache
+		 *         metadata).
+		 */
+		@Override
+		public String toString() {
+			long[] a = toArray();
+			List<String> parts = new ArrayList<>();
+			for (int i = 0; i < FIELDS.length; i++)
+				parts.add(FIELDS[i] + "=" + a[i]);
+			return String.join(",", parts);
+		}
+	}
+
+	private final Device device;
+	private final int rows, cols;
+	private final int luts_per_slice, ffs_per_slice;
+	/**
+	 * Sum of each resource kind over tiles [0, row) x [0, col), indexed by
+	 * (row * (cols + 1) + col) * NUM_KINDS + kind.
+	 */
+	private final int[] prefix;
+
+	private PBlockEstimator(Device device) {
+		this.device = device;
+		rows = device.getRows();
+		cols = device.getColumns();
+		// 7 series slices have 4 LUTs and 8 flip flops, later families 8 and 16
+		boolean series7 = device.getName() != null && device.getName().toLowerCase().startsWith("xc7");
+		luts_per_slice = series7 ? 4 : 8;
+		ffs_per_slice = series7 ? 8 : 16;
+
+		prefix = new int[(rows + 1) * (cols + 1) * NUM_KINDS];
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				int[] res = tileResources(device.getTile(row, col), null);
+				for (int k = 0; k < NUM_KINDS; k++)
+					prefix[index(row + 1, col + 1, k)] = res[k] + prefix[index(row, col + 1, k)]
+							+ prefix[index(row + 1, col, k)] - prefix[index(row, col, k)];
+			}
+		}
+	}
+
+	/**
+	 * @param device Device to estimate for.
+	 * @return Estimator for device (built once per device).
+	 */
+	public static PBlockEstimator forDevice(Device device) {
+		PBlockEstimator e = estimators.get(device.getName());
+		if (e == null) {
+			e = new PBlockEstimator(device);
+			estimators.put(device.getName(), e);
+		}
+		return e;
+	}
+
+	/**
+	 * @return Device estimated for.
+	 */
+	public Device getDevice() {
+		return device;
+	}
+
+	/**
+	 * @return Tile rows of the device.
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return Tile columns of the device.
+	 */
+	public int getColumns() {
+		return cols;
+	}
+
+	private int index(int row, int col, int kind) {
+		return (row * (cols + 1) + col) * NUM_KINDS + kind;
+	}
+
+	/**
+	 * @param t        Tile to count.
+	 * @param in_sites Only count these sites of t. All sites if null.
+	 * @return Resources of each kind in the sites of t.
+	 */
+	private static int[] tileResources(Tile t, List<Site> in_sites) {
+		int[] res = new int[NUM_KINDS];
+		if (t == null || t.getSites() == null)
+			return res;
+		int ram36 = 0, ram18 = 0;
+		for (Site s : (in_sites == null) ? Arrays.asList(t.getSites()) : in_sites) {
+			String type = String.valueOf(s.getSiteTypeEnum());
+			if (type.startsWith("SLICEM")) {
+				res[SLICE]++;
+				res[SLICEM]++;
+			} else if (type.startsWith("SLICE")) {
+				res[SLICE]++;
+			} else if (type.startsWith("RAMB36") || type.startsWith("FIFO36")) {
+				ram36++;
+			} else if (type.startsWith("RAMB18") || type.startsWith("FIFO18")) {
+				ram18++;
+			} else if (type.startsWith("DSP")) {
+				res[DSP]++;
+			}
+		}
+		// RAMB18 sites are halves of the RAMB36 sites of the same tile
+		res[BRAM18] = Math.max(2 * ram36, ram18);
+		return res;
+	}
+
+	/**
+	 * @param u     Primitive counts of a module.
+	 * @param slack Extra resources (0.2 is 20% more than needed).
+	 * @return Slices, SLICEM slices, 18Kb block RAMs and DSPs needed by u
+	 *         (scaled by 1 + slack). Slices are the most of what LUTs, flip flops
+	 *         and carry chains need.
+	 */
+	public long[] demand(Utilization u, double slack) {
+		long slices = Math.max(ceilDiv(u.minLUTSites(), luts_per_slice),
+				Math.max(ceilDiv(u.ffs, ffs_per_slice), u.carries));
+		long[] need = { slices, ceilDiv(u.minLUTRAMSites(), luts_per_slice), u.bram18s, u.dsps };
+		for (int k = 0; k < NUM_KINDS; k++)
+			need[k] = (long) Math.ceil(need[k] * (1 + slack));
+		return need;
+	}
+
+	private static long ceilDiv(long a, long b) {
+		return (a + b - 1) / b;
+	}
+
+	/**
+	 * @param u      Primitive counts of a module.
+	 * @param pblock A pblock string.
+	 * @return Descriptions of the resources the pblock doesn't have enough of
+	 *         (eg. "needs 120 slices, has 80"). Empty if the module may fit or
+	 *         the pblock can't be checked.
+	 */
+	public List<String> findShortfalls(Utilization u, String pblock) {
+		List<String> shortfalls = new ArrayList<>();
+		List<Site> sites = PBlockSpec.parse(pblock).getSites(device);
+		if (sites == null)
+			return shortfalls;
+		Map<Tile, List<Site>> by_tile = new LinkedHashMap<>();
+		for (Site s : sites) {
+			List<Site> l = by_tile.get(s.getTile());
+			if (l == null) {
+				l = new ArrayList<>();
+				by_tile.put(s.getTile(), l);
+			}
+			l.add(s);
+		}
+		long[] has = new long[NUM_KINDS];
+		for (Map.Entry<Tile, List<Site>> e : by_tile.entrySet()) {
+			int[] res = tileResources(e.getKey(), e.getValue());
+			for (int k = 0; k < NUM_KINDS; k++)
+				has[k] += res[k];
+		}
+		long[] need = demand(u, 0);
+		for (int k = 0; k < NUM_KINDS; k++)
+			if (need[k] > has[k])
+				shortfalls.add("needs " + need[k] + " " + KIND_NAMES[k] + ", has " + has[k]);
+		return shortfalls;
+	}
+
+	/**
+	 * Grow a rectangle of tiles from a start tile until it has the resources a
+	 * module needs plus slack, and describe it as one site range per site type.
+	 *
+	 * @param u     Primitive counts of the module.
+	 * @param row   Row of the tile to start from.
+	 * @param col   Column of the tile to start from.
+	 * @param slack Extra resources (0.2 is 20% more than needed).
+	 * @return Canonical pblock string (see {@link PBlockSpec}). Null if the
+	 *         device doesn't have enough resources.
+	 */
+	public String propose(Utilization u, int row, int col, double slack) {
+		int[] rect = grow(demand(u, slack), row, col, new ArrayList<int[]>());
+		return (rect == null) ? null : describe(rect);
+	}
+
+	/**
+	 * Grow a rectangle of tiles from a start tile until it has the resources in
+	 * need. Each step adds the row or column that adds the most of the resource
+	 * the rectangle is shortest of, so it follows the columns of the device.
+	 *
+	 * @param need    From {@link #demand(Utilization, double)}.
+	 * @param row     Row of the tile to start from.
+	 * @param col     Column of the tile to start from.
+	 * @param blocked Rectangles (min row, min column, max row, max column of
+	 *                tiles) the result mustn't overlap.
+	 * @return Min row, min column, max row and max column of the tiles of the
+	 *         rectangle. Null if it can't grow enough.
+	 */
+	public int[] grow(long[] need, int row, int col, List<int[]> blocked) {
+		int[] rect = { Math.max(0, Math.min(row, rows - 1)), Math.max(0, Math.min(col, cols - 1)), 0, 0 };
+		rect[2] = rect[0];
+		rect[3] = rect[1];
+		if (overlaps(rect, blocked))
+			return null;
+		while (true) {
+			int short_kind = mostShort(need, rect);
+			if (short_kind < 0)
+				return rect;
+			// columns first on ties since resources come in columns
+			int[][] sides = { { rect[0], rect[1], rect[2], rect[3] + 1 }, { rect[0], rect[1] - 1, rect[2], rect[3] },
+					{ rect[0], rect[1], rect[2] + 1, rect[3] }, { rect[0] - 1, rect[1], rect[2], rect[3] } };
+			int[] best = null;
+			long best_gain = -1;
+			for (int[] s : sides) {
+				if (s[0] < 0 || s[1] < 0 || s[2] >= rows || s[3] >= cols || overlaps(s, blocked))
+					continue;
+				long gain = sum(s, short_kind) - sum(rect, short_kind);
+				if (gain > best_gain) {
+					best_gain = gain;
+					best = s;
+				}
+			}
+			if (best == null)
+				return null;
+			rect = best;
+		}
+	}
+
+	private static boolean overlaps(int[] rect, List<int[]> blocked) {
+		for (int[] b : blocked)
+			if (rect[0] <= b[2] && b[0] <= rect[2] && rect[1] <= b[3] && b[1] <= rect[3])
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return Kind the rectangle has the smallest share of what is needed. -1 if
+	 *         it has enough of everything.
+	 */
+	private int mostShort(long[] need, int[] rect) {
+		int kind = -1;
+		double worst = 1;
+		for (int k = 0; k < NUM_KINDS; k++) {
+			if (need[k] == 0)
+				continue;
+			double share = (double) sum(rect, k) / need[k];
+			if (share < worst) {
+				worst = share;
+				kind = k;
+			}
+		}
+		return kind;
+	}
+
+	/**
+	 * @return Resources of a kind in the tiles of the rectangle.
+	 */
+	private long sum(int[] rect, int kind) {
+		return prefix[index(rect[2] + 1, rect[3] + 1, kind)] - prefix[index(rect[0], rect[3] + 1, kind)]
+				- prefix[index(rect[2] + 1, rect[1], kind)] + prefix[index(rect[0], rect[1], kind)];
+	}
+
+	/**
+	 * @param rect Min row, min column, max row and max column of tiles.
+	 * @return Canonical pblock with one range per site name prefix (eg. SLICE,
+	 *         RAMB18, DSP48E2) covering the sites of the tiles of rect.
+	 */
+	public String describe(int[] rect) {
+		Map<String, int[]> boxes = new LinkedHashMap<>();
+		for (int row = rect[0]; row <= rect[2]; row++) {
+			for (int col = rect[1]; col <= rect[3]; col++) {
+				Tile t = device.getTile(row, col);
+				if (t == null || t.getSites() == null)
+					continue;
+				for (Site s : t.getSites()) {
+					String name = s.getName();
+					int x = name.lastIndexOf("_X");
+					if (x < 0)
+						continue;
+					String type = name.substring(0, x);
+					if (!(type.startsWith("SLICE") || type.startsWith("RAMB") || type.startsWith("DSP")))
+						continue;
+					int[] box = boxes.get(type);
+					if (box == null) {
+						box = new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE,
+								Integer.MIN_VALUE };
+						boxes.put(type, box);
+					}
+					box[0] = Math.min(box[0], s.getInstanceX());
+					box[1] = Math.min(box[1], s.getInstanceY());
+					box[2] = Math.max(box[2], s.getInstanceX());
+					box[3] = Math.max(box[3], s.getInstanceY());
+				}
+			}
+		}
+		List<String> ranges = new ArrayList<>();
+		for (Map.Entry<String, int[]> e : boxes.entrySet()) {
+			int[] b = e.getValue();
+			ranges.add(e.getKey() + "_X" + b[0] + "Y" + b[1] + ":" + e.getKey() + "_X" + b[2] + "Y" + b[3]);
+		}
+		return PBlockSpec.canonical(String.join(" ", ranges));
+	}
+}
@@ -0,0 +1,410 @@
+package main.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.xilinx.rapidwright.device.Device;
+import com.xilinx.rapidwright.device.Site;
+import com.xilinx.rapidwright.device.Tile;
+
+/**
+ * Canonical form of a pblock string.
+ * <p>
+ * A pblock string is a space separated list of site ranges
+ * ({@literal <type>_X<x1>Y<y1>:<type>_X<x2>Y<y2>}) or single sites. The
+ * canonical form describes the same sites but doesn't depend on how they were
+ * written: corners are ordered, duplicate and contained ranges are dropped,
+ * ranges of the same type that line up and touch are merged and the result is
+ * sorted by type then position. So 'SLICE_X0Y30:SLICE_X7Y49
+ * SLICE_X0Y0:SLICE_X7Y25' and 'SLICE_X0Y0:SLICE_X7Y25 SLICE_X0Y30:SLICE_X7Y49'
+ * are the same pblock.
+ * <p>
+ * Tokens that aren't sites or site ranges are kept as they are (sorted after
+ * the ranges).
+ * <p>
+ * The {@link #getFootprintDirName(Device) footprint} of a pblock describes its
+ * shape relative to its {@link #getOrigin(Device) origin}: the tile types of
+ * the region and where each range lies in it. Pblocks with the same footprint
+ * can hold the same placed and routed module, moved by the offset between their
+ * origins.
+ */
+public class PBlockSpec {
+	private static final Pattern SITE = Pattern.compile("(\\w+?)_X(\\d+)Y(\\d+)");
+	/**
+	 * Number of hex characters of the digest used in {@link #getDirName()}.
+	 */
+	private static final int DIR_HASH_LENGTH = 16;
+	private static final String DIR_PREFIX = "pb_";
+	private static final String FOOTPRINT_PREFIX = "fp_";
+
+	private static final Map<String, PBlockSpec> parsed = new ConcurrentHashMap<>();
+	/**
+	 * Footprint directory names by device or part name and canonical pblock.
+	 * Empty string if the pblock has no footprint on that device.
+	 */
+	private static final Map<String, String> footprints = new ConcurrentHashMap<>();
+
+	/**
+	 * An inclusive range of sites of one type.
+	 */
+	private static class Range {
+		final String type;
+		int x1, y1, x2, y2;
+
+		Range(String type, int xa, int ya, int xb, int yb) {
+			this.type = type;
+			x1 = Math.min(xa, xb);
+			y1 = Math.min(ya, yb);
+			x2 = Math.max(xa, xb);
+			y2 = Math.max(ya, yb);
+		}
+
+		boolean contains(Range o) {
+			return x1 <= o.x1 && y1 <= o.y1 && x2 >= o.x2 && y2 >= o.y2;
+		}
+
+		/**
+		 * Grow this range to also cover o if the union is a rectangle.
+		 *
+		 * @return True if merged.
+		 */
+		boolean merge(Range o) {
+			if (x1 == o.x1 && x2 == o.x2 && o.y1 <= y2 + 1 && y1 <= o.y2 + 1) {
+				y1 = Math.min(y1, o.y1);
+				y2 = Math.max(y2, o.y2);
+				return true;
+			}
+			if (y1 == o.y1 && y2 == o.y2 && o.x1 <= x2 + 1 && x1 <= o.x2 + 1) {
+				x1 = Math.min(x1, o.x1);
+				x2 = Math.max(x2, o.x2);
+				return true;
+			}
+			return false;
+		}
+
+		String lowSite() {
+			return type + "_X" + x1 + "Y" + y1;
+		}
+
+		String highSite() {
+			return type + "_X" + x2 + "Y" + y2;
+		}
+
+		@Override
+		public String toString() {
+			return (x1 == x2 && y1 == y2) ? lowSite() : lowSite() + ":" + highSite();
+		}
+	}
+
+	private static final Comparator<Range> RANGE_ORDER = new Comparator<Range>() {
+		@Override
+		public int compare(Range a, Range b) {
+			int c = a.type.compareTo(b.type);
+			if (c == 0)
+				c = Integer.compare(a.x1, b.x1);
+			if (c == 0)
+				c = Integer.compare(a.y1, b.y1);
+			if (c == 0)
+				c = Integer.compare(a.x2, b.x2);
+			if (c == 0)
+				c = Integer.compare(a.y2, b.y2);
+			return c;
+		}
+	};
+
+	private final List<Range> ranges = new ArrayList<>();
+	private final TreeSet<String> other = new TreeSet<>();
+	private final String canonical;
+
+	private PBlockSpec(String pblock) {
+		Map<String, List<Range>> by_type = new TreeMap<>();
+		for (String token : pblock.replace("{", " ").replace("}", " ").trim().split("\\s+")) {
+			if (token.isEmpty())
+				continue;
+			Range r = parseRange(token);
+			if (r == null) {
+				other.add(token);
+				continue;
+			}
+			List<Range> l = by_type.get(r.type);
+			if (l == null) {
+				l = new ArrayList<>();
+				by_type.put(r.type, l);
+			}
+			l.add(r);
+		}
+		for (List<Range> l : by_type.values())
+			ranges.addAll(normalize(l));
+		Collections.sort(ranges, RANGE_ORDER);
+
+		List<String> tokens = new ArrayList<>();
+		for (Range r : ranges)
+			tokens.add(r.toString());
+		tokens.addAll(other);
+		canonical = String.join(" ", tokens);
+	}
+
+	/**
+	 * @param pblock A pblock string.
+	 * @return Its parsed form. Null if pblock is null.
+	 */
+	public static PBlockSpec parse(String pblock) {
+		if (pblock == null)
+			return null;
+		PBlockSpec spec = parsed.get(pblock);
+		if (spec == null) {
+			spec = new PBlockSpec(pblock);
+			parsed.put(pblock, spec);
+		}
+		return spec;
+	}
+
+	/**
+	 * @param pblock A pblock string.
+	 * @return Canonical form of pblock. Null if pblock is null.
+	 */
+	public static String canonical(String pblock) {
+		return (pblock == null) ? null : parse(pblock).toString();
+	}
+
+	/**
+	 * @return Short directory name that is the same for all pblock strings with
+	 *         the same canonical form (a prefix of the SHA-256 of the canonical
+	 *         form).
+	 */
+	public String getDirName() {
+		return DIR_PREFIX + FileDigest.digest(Arrays.asList(canonical)).substring(0, DIR_HASH_LENGTH);
+	}
+
+	/**
+	 * @param device Device the pblock is for.
+	 * @return Tile at the lowest row and column of the tiles of the pblock's
+	 *         ranges. Null if the pblock has clock regions, tokens that aren't
+	 *         site ranges or sites that aren't in the device.
+	 */
+	public Tile getOrigin(Device device) {
+		int[] box = getTileBox(device);
+		return (box == null) ? null : device.getTile(box[0], box[1]);
+	}
+
+	/**
+	 * @param device Device the pblock is for.
+	 * @return Min row, min column, max row and max column of the tiles of the
+	 *         corners of the pblock's ranges. Null if the pblock has clock
+	 *         regions, tokens that aren't site ranges or sites that aren't in the
+	 *         device.
+	 */
+	public int[] getTileBounds(Device device) {
+		return getTileBox(device);
+	}
+
+	/**
+	 * @param device Device the pblock is for.
+	 * @return Directory name that is the same for all pblocks of this shape on
+	 *         this device wherever they are (a prefix of the SHA-256 of the tile
+	 *         types of the region and the ranges relative to the
+	 *         {@link #getOrigin(Device) origin}). Null if the pblock has no origin.
+	 */
+	public String getFootprintDirName(Device device) {
+		String key = device.getName() + "\n" + canonical;
+		String dir_name = footprints.get(key);
+		if (dir_name == null) {
+			dir_name = computeFootprint(device);
+			footprints.put(key, dir_name);
+		}
+		return dir_name.isEmpty() ? null : dir_name;
+	}
+
+	/**
+	 * {@link #getFootprintDirName(Device)} by part name. The device is only got
+	 * from the {@link DeviceRegistry} the first time a part and pblock are asked
+	 * for (the merge that uses the pblock needs it anyway), so naming the cache
+	 * directory of a pblock again doesn't touch the device.
+	 *
+	 * @param part Part or device name the pblock is for. May be null.
+	 * @return Footprint directory name. Null if part is null or unknown or the
+	 *         pblock has no origin.
+	 */
+	public String getFootprintDirName(String part) {
+		if (part == null)
+			return null;
+		String key = part + "\n" + canonical;
+		String dir_name = footprints.get(key);
+		if (dir_name == null) {
+			Device device = DeviceRegistry.get(part);
+			dir_name = (device == null) ? null : getFootprintDirName(device);
+			if (dir_name == null)
+				dir_name = "";
+			footprints.put(key, dir_name);
+		}
+		return dir_name.isEmpty() ? null : dir_name;
+	}
+
+	/**
+	 * @return Footprint directory name. Empty string if there is none.
+	 */
+	private String computeFootprint(Device device) {
+		int[] box = getTileBox(device);
+		if (box == null)
+			return "";
+		List<String> lines = new ArrayList<>();
+		lines.add("device=" + device.getName());
+		for (Range r : ranges) {
+			Site lo = device.getSite(r.lowSite());
+			Site hi = device.getSite(r.highSite());
+			lines.add("range=" + r.type + " " + relative(lo, box) + " " + relative(hi, box));
+		}
+		// tile types row by row, so the region must match tile for tile
+		for (int row = box[0]; row <= box[2]; row++) {
+			StringBuilder sb = new StringBuilder();
+			for (int col = box[1]; col <= box[3]; col++) {
+				Tile t = device.getTile(row, col);
+				sb.append(t == null ? "-" : t.getTileTypeEnum().toString()).append(',');
+			}
+			lines.add(sb.toString());
+		}
+		return FOOTPRINT_PREFIX + FileDigest.digest(lines).substring(0, DIR_HASH_LENGTH);
+	}
+
+	/**
+	 * @return Row, column and index in tile of site relative to the box.
+	 */
+	private static String relative(Site site, int[] box) {
+		Tile t = site.getTile();
+		return (t.getRow() - box[0]) + "," + (t.getColumn() - box[1]) + "," + site.getSiteIndexInTile();
+	}
+
+	/**
+	 * @return Min row, min column, max row and max column of the tiles of the
+	 *         corners of all ranges. Null if there is no such box.
+	 */
+	private int[] getTileBox(Device device) {
+		if (ranges.isEmpty() || !other.isEmpty())
+			return null;
+		int[] box = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+		for (Range r : ranges) {
+			if (r.type.equals("CLOCKREGION"))
+				return null;
+			for (String name : new String[] { r.lowSite(), r.highSite() }) {
+				Site s = device.getSite(name);
+				if (s == null)
+					return null;
+				Tile t = s.getTile();
+				box[0] = Math.min(box[0], t.getRow());
+				box[1] = Math.min(box[1], t.getColumn());
+				box[2] = Math.max(box[2], t.getRow());
+				box[3] = Math.max(box[3], t.getColumn());
+			}
+		}
+		return box;
+	}
+
+	/**
+	 * @param device Device the pblock is for.
+	 * @return Sites of the device in the pblock's ranges. Null if the pblock has
+	 *         clock regions or tokens that aren't site ranges.
+	 */
+	public List<Site> getSites(Device device) {
+		if (!other.isEmpty())
+			return null;
+		Set<Site> sites = new LinkedHashSet<>();
+		for (Range r : ranges) {
+			if (r.type.equals("CLOCKREGION"))
+				return null;
+			for (int x = r.x1; x <= r.x2; x++) {
+				for (int y = r.y1; y <= r.y2; y++) {
+					Site s = device.getSite(r.type + "_X" + x + "Y" + y);
+					if (s != null)
+						sites.add(s);
+				}
+			}
+		}
+		return new ArrayList<>(sites);
+	}
+
+	/**
+	 * @param device Device the pblock is for.
+	 * @return Corners of ranges that are not sites of the device. Clock regions
+	 *         and tokens that aren't site ranges (kept as written) aren't
+	 *         checked; Vivado reports them. Empty if no corner is invalid.
+	 */
+	public List<String> findInvalid(Device device) {
+		List<String> invalid = new ArrayList<>();
+		for (Range r : ranges) {
+			if (r.type.equals("CLOCKREGION"))
+				continue;
+			if (device.getSite(r.lowSite()) == null)
+				invalid.add(r.lowSite());
+			if (device.getSite(r.highSite()) == null)
+				invalid.add(r.highSite());
+		}
+		return invalid;
+	}
+
+	/**
+	 * @return The canonical form.
+	 */
+	@Override
+	public String toString() {
+		return canonical;
+	}
+
+	/**
+	 * @return Range for a site or site range. Null if token isn't one.
+	 */
+	private static Range parseRange(String token) {
+		String[] corners = token.split(":");
+		if (corners.length < 1 || corners.length > 2)
+			return null;
+		Matcher a = SITE.matcher(corners[0]);
+		Matcher b = SITE.matcher(corners[corners.length - 1]);
+		if (!a.matches() || !b.matches() || !a.group(1).equals(b.group(1)))
+			return null;
+		try {
+			return new Range(a.group(1), Integer.parseInt(a.group(2)), Integer.parseInt(a.group(3)),
+					Integer.parseInt(b.group(2)), Integer.parseInt(b.group(3)));
+		} catch (NumberFormatException nfe) {
+			return null;
+		}
+	}
+
+	/**
+	 * Drop contained ranges and merge ranges until nothing changes.
+	 */
+	private static List<Range> normalize(List<Range> in) {
+		List<Range> out = new ArrayList<>(in);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			Collections.sort(out, RANGE_ORDER);
+			outer: for (int i = 0; i < out.size(); i++) {
+				for (int j = i + 1; j < out.size(); j++) {
+					Range a = out.get(i);
+					Range b = out.get(j);
+					if (a.contains(b) || a.merge(b)) {
+						out.remove(j);
+						changed = true;
+						break outer;
+					}
+					if (b.contains(a)) {
+						out.remove(i);
+						changed = true;
+						break outer;
+					}
+				}
+			}
+		}
+		return out;
+	}
+}
@@ -0,0 +1,69 @@
+package main.worker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packs the files of a cache entry into a zip stream and back, to move entries
+ * over http.
+ */
+class CacheArchive {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Write the files (not sub directories) of dir as a zip.
+	 *
+	 * @param dir Directory of the entry.
+	 * @param out Stream to write to. Not closed.
+	 */
+	static void zip(File dir, OutputStream out) throws IOException {
+		ZipOutputStream zos = new ZipOutputStream(out);
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (!f.isFile())
+					continue;
+				zos.putNextEntry(new ZipEntry(f.getName()));
+				Files.copy(f.toPath(), zos);
+				zos.closeEntry();
+			}
+		}
+		zos.finish();
+	}
+
+	/**
+	 * Extract a zip written by {@link #zip(File, OutputStream)} into dir.
+	 *
+	 * @param in  Stream to read from. Not closed.
+	 * @param dir Existing directory to extract to.
+	 * @throws IOException If the stream can't be read or holds anything but plain
+	 *                     file names.
+	 */
+	static void unzip(InputStream in, File dir) throws IOException {
+		ZipInputStream zis = new ZipInputStream(in);
+		byte[] buf = new byte[BUFFER_SIZE];
+		ZipEntry ze;
+		while ((ze = zis.getNextEntry()) != null) {
+			String name = ze.getName();
+			if (ze.isDirectory() || name.isEmpty() || name.contains("/") || name.contains("\\")
+					|| name.startsWith("."))
+				throw new IOException("Unexpected entry '" + name + "' in cache archive.");
+			try (OutputStream out = new FileOutputStream(new File(dir, name))) {
+				int n;
+				while ((n = zis.read(buf)) > 0)
+					out.write(buf, 0, n);
+			}
+			zis.closeEntry();
+		}
+		// skip the central directory so the whole stream is consumed
+		while (in.read(buf) >= 0)
+			;
+	}
+}
@@ -0,0 +1,59 @@
+package main.worker;
+
+import java.io.File;
+import java.util.regex.Pattern;
+
+/**
+ * A store of complete module cache entries shared between machines, addressed
+ * by {@link CacheKey content key}.
+ * <p>
+ * An entry is the flat set of files of one cache directory (dcp, edif,
+ * encrypted edifs and metadata). The local moduleCache is always searched
+ * first. On a miss the entry is fetched from the backend and promoted into the
+ * local cache. Entries that are placed and routed locally are put in the
+ * backend.
+ */
+public interface CacheBackend {
+	/**
+	 * Keys are hex digests. Anything else is rejected so a key can't escape the
+	 * store.
+	 */
+	static final Pattern KEY_PATTERN = Pattern.compile("[0-9a-f]{16,128}");
+
+	/**
+	 * Copy the files of an entry into a directory.
+	 *
+	 * @param key      Content key of the entry.
+	 * @param dest_dir Existing directory to copy the files to.
+	 * @return True if the entry was found and copied.
+	 */
+	boolean get(String key, File dest_dir);
+
+	/**
+	 * Store the files of an entry. Does nothing if the entry is already stored.
+	 *
+	 * @param key     Content key of the entry.
+	 * @param src_dir Directory holding the files (sub directories are ignored).
+	 * @return True if the entry is stored.
+	 */
+	boolean put(String key, File src_dir);
+
+	/**
+	 * @param key A key.
+	 * @return True if key may be used to address an entry.
+	 */
+	static boolean isValidKey(String key) {
+		return key != null && KEY_PATTERN.matcher(key).matches();
+	}
+
+	/**
+	 * @param location Url (http:// or https://) of a {@link CacheServer} or path of
+	 *                 a directory (eg. on NFS).
+	 * @return Backend for the location.
+	 */
+	static CacheBackend forLocation(String location) {
+		if (location.startsWith("http://") || location.startsWith("https://"))
+			return new HttpCacheBackend(location);
+		return new LocalCacheBackend(new File(location));
+	}
+}
@@ -0,0 +1,185 @@
+package main.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+import main.directive.DependancyMeta;
+import main.util.FileUtils;
+
+/**
+ * Exclusive lock on one entry (module and pblock directory) of the module
+ * cache. Excludes other threads of this run and other ShellBuilder processes
+ * using the same iii_dir.
+ * <p>
+ * While holding the lock, a new version of the entry is written to a
+ * {@link #newStagingDir() staging directory} inside the entry and then
+ * {@link #publish(File) published} by renaming its files into the entry, with
+ * the metadata last. A crash leaves only the staging directory behind (it is
+ * deleted the next time the lock is acquired) and readers never see a partly
+ * written dcp or edif.
+ * <p>
+ * The lock is reentrant within a thread. The lock file is never deleted since
+ * another process may be waiting on it.
+ */
+public class CacheEntryLock implements AutoCloseable {
+	public static final String LOCK_FILENAME = ".lock";
+	private static final String STAGING_PREFIX = ".staging_";
+
+	/**
+	 * A file lock is held by the whole process, so threads of this run are
+	 * excluded by these first.
+	 */
+	private static final Map<String, ReentrantLock> thread_locks = new HashMap<>();
+
+	private final File impl_dir;
+	private final ReentrantLock thread_lock;
+	private RandomAccessFile lock_file = null;
+	private FileLock file_lock = null;
+	private boolean waited = false;
+
+	private CacheEntryLock(File impl_dir, ReentrantLock thread_lock) {
+		this.impl_dir = impl_dir;
+		this.thread_lock = thread_lock;
+	}
+
+	/**
+	 * Lock a cache entry. Blocks until no other thread or process holds it.
+	 *
+	 * @param impl_dir Directory of the cache entry. Created if it doesn't exist.
+	 * @param verbose  Print a message when waiting.
+	 * @return The held lock. Close it to release.
+	 */
+	public static CacheEntryLock acquire(File impl_dir, boolean verbose) {
+		impl_dir = impl_dir.getAbsoluteFile();
+		if (!impl_dir.isDirectory())
+			impl_dir.mkdirs();
+
+		ReentrantLock thread_lock;
+		synchronized (thread_locks) {
+			thread_lock = thread_locks.get(impl_dir.getPath());
+			if (thread_lock == null) {
+				thread_lock = new ReentrantLock();
+				thread_locks.put(impl_dir.getPath(), thread_lock);
+			}
+		}
+
+		CacheEntryLock lock = new CacheEntryLock(impl_dir, thread_lock);
+		if (!thread_lock.tryLock()) {
+			printIfVerbose("\nWaiting for another build of '" + impl_dir.getPath() + "' to finish.", verbose);
+			lock.waited = true;
+			thread_lock.lock();
+		}
+		if (thread_lock.getHoldCount() > 1)
+			return lock; // this thread already holds the file lock
+
+		try {
+			lock.lock_file = new RandomAccessFile(new File(impl_dir, LOCK_FILENAME), "rw");
+			lock.file_lock = lock.lock_file.getChannel().tryLock();
+			if (lock.file_lock == null) {
+				MessageGenerator.briefMessage(
+						"\nWaiting for another ShellBuilder to finish writing '" + impl_dir.getPath() + "'.");
+				lock.waited = true;
+				lock.file_lock = lock.lock_file.getChannel().lock();
+			}
+		} catch (IOException ioe) {
+			lock.close();
+			MessageGenerator.briefErrorAndExit("Failed to lock cache entry '" + impl_dir.getPath() + "'.\nExiting.");
+		}
+		lock.removeStaleStaging();
+		return lock;
+	}
+
+	/**
+	 * @return True if another thread or process held the lock when it was
+	 *         requested. The entry may have been written in the meantime.
+	 */
+	public boolean waited() {
+		return waited;
+	}
+
+	/**
+	 * @return A new empty directory to write the next version of the entry to.
+	 */
+	public File newStagingDir() {
+		File staging_dir = new File(impl_dir, STAGING_PREFIX + Long.toHexString(System.nanoTime()));
+		staging_dir.mkdirs();
+		return staging_dir;
+	}
+
+	/**
+	 * Move all files in staging_dir into the entry, replacing the old ones, then
+	 * delete staging_dir.
+	 * <p>
+	 * If a new metadata file is staged the old one (and the
+	 * {@link ValidSitesIndex valid sites} and {@link ModuleSignature signature} of
+	 * the old dcp) is deleted first and the
+	 * new one is moved last, so the entry isn't found in the cache while its files
+	 * are being replaced.
+	 *
+	 * @param staging_dir Directory from {@link #newStagingDir()}.
+	 */
+	public void publish(File staging_dir) {
+		File[] files = staging_dir.listFiles();
+		if (files == null)
+			return;
+		File staged_meta = new File(staging_dir, DependancyMeta.META_FILENAME);
+		File meta = new File(impl_dir, DependancyMeta.META_FILENAME);
+		if (staged_meta.isFile()) {
+			meta.delete();
+			ValidSitesIndex.delete(impl_dir);
+			ModuleSignature.delete(impl_dir);
+		}
+		for (File f : files)
+			if (f.isFile() && !f.equals(staged_meta))
+				FileUtils.moveAtomically(f, new File(impl_dir, f.getName()));
+		if (staged_meta.isFile())
+			FileUtils.moveAtomically(staged_meta, meta);
+		FileUtils.deleteRecursively(staging_dir);
+		Merger.invalidateCacheResults(impl_dir);
+	}
+
+	/**
+	 * Staging directories left by a build that crashed (only called with the lock
+	 * held).
+	 */
+	private void removeStaleStaging() {
+		File[] children = impl_dir.listFiles();
+		if (children == null)
+			return;
+		for (File f : children)
+			if (f.isDirectory() && f.getName().startsWith(STAGING_PREFIX))
+				FileUtils.deleteRecursively(f);
+	}
+
+	/**
+	 * Release the lock.
+	 */
+	@Override
+	public void close() {
+		try {
+			if (file_lock != null)
+				file_lock.release();
+			if (lock_file != null)
+				lock_file.close();
+		} catch (IOException ioe) {
+			MessageGenerator.briefError("Failed to release lock on cache entry '" + impl_dir.getPath() + "'.");
+		} finally {
+			file_lock = null;
+			lock_file = null;
+			if (thread_lock.isHeldByCurrentThread())
+				thread_lock.unlock();
+		}
+	}
+
+	private static void printIfVerbose(String msg, boolean verbose) {
+		if (verbose)
+			MessageGenerator.briefMessage(msg);
+	}
+}
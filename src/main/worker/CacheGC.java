@@ -0,0 +1,300 @@
+package main.worker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+import main.directive.CacheIndex;
+import main.directive.DependancyMeta;
+import main.directive.Directive;
+import main.directive.DirectiveBuilder;
+import main.parser.ArgsContainer;
+
+/**
+ * Evicts entries from the module cache.
+ * <p>
+ * An entry is a directory in the cache holding a cached dcp and its edif,
+ * metadata, constraints and encrypted edifs (not including the entries of
+ * other pblocks below it). Entries are evicted if they haven't been used for
+ * longer than the max age, and then in order of the policy until the cache fits
+ * in the byte budget.
+ * <ul>
+ * <li>LRU: least recently looked up first.</li>
+ * <li>LFU: looked up in the fewest runs first (least recently used among
+ * equals).</li>
+ * </ul>
+ * Entries used by the current directive file are {@link #pin pinned} and are
+ * never evicted. When and how often entries were used comes from the
+ * {@link CacheIndex}. Entries it doesn't know about count as used when their
+ * files were last modified.
+ */
+public class CacheGC {
+	/**
+	 * Order in which entries are evicted.
+	 */
+	public static enum Policy {
+		LRU("lru"), LFU("lfu");
+
+		private final String name;
+
+		Policy(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		/**
+		 * @param name Name of a policy (case insensitive).
+		 * @return Matching policy. Null if there is none.
+		 */
+		public static Policy fromString(String name) {
+			if (name == null)
+				return null;
+			for (Policy p : values())
+				if (p.name.equalsIgnoreCase(name.trim()))
+					return p;
+			return null;
+		}
+	}
+
+	private static final long MS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	private final Policy policy;
+	private final long budget;
+	private final long max_age_ms;
+	private final boolean verbose;
+	private final Set<String> pinned = new HashSet<>();
+
+	/**
+	 * A cache entry that may be evicted.
+	 */
+	private static class Item {
+		File dir;
+		long bytes;
+		long last_used;
+		int uses;
+	}
+
+	/**
+	 * @param policy       Order of eviction. Null for LRU.
+	 * @param budget       Max bytes the cache may use. Less than 0 for no limit.
+	 * @param max_age_days Evict entries unused for longer than this. Less than 1
+	 *                     for no limit.
+	 * @param verbose      Print every evicted entry.
+	 */
+	public CacheGC(Policy policy, long budget, int max_age_days, boolean verbose) {
+		this.policy = (policy == null) ? Policy.LRU : policy;
+		this.budget = budget;
+		this.max_age_ms = (max_age_days < 1) ? -1 : max_age_days * MS_PER_DAY;
+		this.verbose = verbose;
+	}
+
+	/**
+	 * @param args Arguments from command line.
+	 */
+	public CacheGC(ArgsContainer args) {
+		this(args.cachePolicy(), args.cacheBudget(), args.cacheMaxAge(), args.verbose());
+	}
+
+	/**
+	 * Pin the cache entries of all directives of this builder and its descendant
+	 * builders.
+	 *
+	 * @param directive_builder Builder whose entries must be kept.
+	 * @param args              Arguments from command line.
+	 */
+	public void pin(DirectiveBuilder directive_builder, ArgsContainer args) {
+		for (Directive dir : directive_builder.getDirectives()) {
+			if (dir.isWrite() || dir.isOnlyWires())
+				continue;
+			File impl_dir = Merger.getCacheImplDir(dir, args);
+			if (impl_dir != null)
+				pinned.add(impl_dir.getAbsolutePath());
+			if (dir.isSubBuilder()) {
+				// the merged (not yet placed in pblock) design is kept beside the pblocks
+				String module_name = dir.getSubBuilder().getHeader().getModuleName();
+				if (module_name != null)
+					pinned.add(new File(new File(dir.getIII(), Merger.MODULE_CACHE), module_name).getAbsolutePath());
+				pin(dir.getSubBuilder(), args);
+			}
+		}
+	}
+
+	/**
+	 * @return Set of all cache directories used by this builder and its
+	 *         descendants.
+	 */
+	public static Set<File> getCacheDirs(DirectiveBuilder directive_builder) {
+		Set<File> dirs = new HashSet<>();
+		for (Directive dir : directive_builder.getDirectives()) {
+			if (dir.getIII() != null)
+				dirs.add(new File(dir.getIII(), Merger.MODULE_CACHE).getAbsoluteFile());
+			if (dir.isSubBuilder())
+				dirs.addAll(getCacheDirs(dir.getSubBuilder()));
+		}
+		return dirs;
+	}
+
+	/**
+	 * @return True if a budget or max age was set (otherwise nothing is ever
+	 *         evicted).
+	 */
+	public boolean isBounded() {
+		return budget >= 0 || max_age_ms > 0;
+	}
+
+	/**
+	 * Evict entries from a cache.
+	 *
+	 * @param cache_dir Root of the cache (iii_dir/moduleCache).
+	 * @param dry_run   Only report what would be evicted.
+	 * @return Number of bytes evicted (or that would be evicted).
+	 */
+	public long collect(File cache_dir, boolean dry_run) {
+		if (!cache_dir.isDirectory())
+			return 0;
+		CacheIndex index = CacheIndex.forCache(cache_dir);
+		List<Item> items = new ArrayList<>();
+		findEntries(cache_dir, true, index, items);
+
+		long total = 0;
+		long pinned_bytes = 0;
+		List<Item> candidates = new ArrayList<>();
+		for (Item item : items) {
+			total += item.bytes;
+			if (pinned.contains(item.dir.getAbsolutePath()))
+				pinned_bytes += item.bytes;
+			else
+				candidates.add(item);
+		}
+		Collections.sort(candidates, comparator());
+
+		long now = System.currentTimeMillis();
+		long remaining = total;
+		long reclaimed = 0;
+		int num_evicted = 0;
+		for (Item item : candidates) {
+			boolean too_old = max_age_ms > 0 && now - item.last_used > max_age_ms;
+			boolean over_budget = budget >= 0 && remaining > budget;
+			if (!too_old && !over_budget)
+				continue;
+			printIfVerbose((dry_run ? "Would evict '" : "Evicting '") + item.dir.getAbsolutePath() + "' ("
+					+ formatBytes(item.bytes) + ").");
+			if (!dry_run)
+				evict(item.dir, index);
+			remaining -= item.bytes;
+			reclaimed += item.bytes;
+			num_evicted++;
+		}
+
+		MessageGenerator.briefMessage("\nCache '" + cache_dir.getAbsolutePath() + "': " + items.size() + " entries, "
+				+ formatBytes(total) + " (" + formatBytes(pinned_bytes) + " pinned by this directive file).");
+		MessageGenerator.briefMessage((dry_run ? "Reclaimable: " : "Reclaimed: ") + formatBytes(reclaimed) + " in "
+				+ num_evicted + " entries (policy " + policy + ", budget "
+				+ (budget < 0 ? "none" : formatBytes(budget)) + ", max age "
+				+ (max_age_ms < 0 ? "none" : (max_age_ms / MS_PER_DAY) + " days") + ").");
+		return reclaimed;
+	}
+
+	private Comparator<Item> comparator() {
+		if (policy == Policy.LFU) {
+			return new Comparator<Item>() {
+				@Override
+				public int compare(Item a, Item b) {
+					if (a.uses != b.uses)
+						return Integer.compare(a.uses, b.uses);
+					return Long.compare(a.last_used, b.last_used);
+				}
+			};
+		}
+		return new Comparator<Item>() {
+			@Override
+			public int compare(Item a, Item b) {
+				return Long.compare(a.last_used, b.last_used);
+			}
+		};
+	}
+
+	/**
+	 * Add an item for every directory below dir that directly contains files.
+	 * Files at the root of the cache (eg. the index) are not part of any entry.
+	 * Hidden files and directories (locks, staging and temporary files) are
+	 * skipped.
+	 */
+	private void findEntries(File dir, boolean is_root, CacheIndex index, List<Item> items) {
+		File[] children = dir.listFiles();
+		if (children == null)
+			return;
+		Item item = null;
+		for (File f : children) {
+			if (f.getName().startsWith("."))
+				continue;
+			if (f.isDirectory()) {
+				findEntries(f, false, index, items);
+			} else if (!is_root) {
+				if (item == null) {
+					item = new Item();
+					item.dir = dir;
+				}
+				item.bytes += f.length();
+				item.last_used = Math.max(item.last_used, f.lastModified());
+			}
+		}
+		if (item != null) {
+			long used = index.getLastUsed(dir);
+			if (used > 0)
+				item.last_used = used;
+			item.uses = index.getUses(dir);
+			items.add(item);
+		}
+	}
+
+	/**
+	 * Delete the files of an entry (but not the entries of pblocks below it). Waits
+	 * if the entry is being written. The directory and its lock file are kept.
+	 */
+	private void evict(File dir, CacheIndex index) {
+		try (CacheEntryLock lock = CacheEntryLock.acquire(dir, verbose)) {
+			// metadata first so the entry is never found without its dcp
+			File meta = new File(dir, DependancyMeta.META_FILENAME);
+			if (meta.isFile() && !meta.delete())
+				MessageGenerator.briefError("Failed to delete '" + meta.getAbsolutePath() + "'.");
+			File[] children = dir.listFiles();
+			if (children != null)
+				for (File f : children)
+					if (f.isFile() && !f.getName().startsWith(".") && !f.delete())
+						MessageGenerator.briefError("Failed to delete '" + f.getAbsolutePath() + "'.");
+			index.remove(dir);
+			Merger.invalidateCacheResults(dir);
+		}
+	}
+
+	/**
+	 * @param bytes Number of bytes.
+	 * @return Human readable size (eg. "1.5 GB").
+	 */
+	static String formatBytes(long bytes) {
+		String[] units = { "B", "KB", "MB", "GB", "TB" };
+		double val = bytes;
+		int unit = 0;
+		while (val >= 1024 && unit < units.length - 1) {
+			val /= 1024;
+			unit++;
+		}
+		return (unit == 0) ? bytes + " B" : String.format("%.1f %s", val, units[unit]);
+	}
+
+	private void printIfVerbose(String msg) {
+		if (verbose)
+			MessageGenerator.briefMessage(msg);
+	}
+}
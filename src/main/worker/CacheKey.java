@@ -0,0 +1,95 @@
+package main.worker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import main.directive.Directive;
+import main.parser.ArgsContainer;
+import main.tcl.TCLScript;
+import main.util.FileDigest;
+import main.util.PBlockSpec;
+
+/**
+ * Computes the content based key of a cache entry.
+ * <p>
+ * The key of a "merge" is a digest of the input dcp's bytes, its pblock, the
+ * synth and initial designs, the constraints file written for it, the place and
+ * route flow used and the Vivado version. The key of a "build" replaces the
+ * input dcp with the keys of all its subdirectives (in order), so a change
+ * anywhere below a build changes the build's key.
+ * <p>
+ * Unlike comparing modification times, this doesn't change when files are
+ * touched or copied to another machine, and it does change when anything that
+ * affects the result of place and route changes.
+ */
+public class CacheKey {
+	/**
+	 * Increase when the place and route flow in {@link Merger} changes in a way
+	 * that isn't captured below, to invalidate all existing keys.
+	 */
+	public static final int FLOW_VERSION = 1;
+
+	/**
+	 * @param directive Merge or build directive.
+	 * @param args      Arguments from command line.
+	 * @return Hex digest identifying the result of placing and routing this
+	 *         directive. Null if an input can't be read.
+	 */
+	public static String compute(Directive directive, ArgsContainer args) {
+		List<String> lines = new ArrayList<>();
+		lines.add("flow=" + FLOW_VERSION + " " + flowOptions(directive));
+		lines.add("vivado=" + TCLScript.getVivadoVersion());
+		lines.add("module=" + Merger.getModuleName(directive, args));
+		String pblock = PBlockSpec.canonical(directive.getPBlockStr());
+		// relocatable entries are shared by all pblocks of the same shape
+		if (args.relocate() && pblock != null)
+			lines.add("footprint=" + Merger.getPblockPath(directive, args));
+		else
+			lines.add("pblock=" + (pblock == null ? "" : pblock));
+
+		File synth = directive.getHeader().getTopLevelSynth();
+		lines.add("synth=" + (synth == null ? "" : FileDigest.digest(synth)));
+		File initial = directive.getHeader().getInitial();
+		lines.add("initial=" + (initial == null ? "" : FileDigest.digest(initial)));
+
+		File impl_dir = Merger.getCacheImplDir(directive, args);
+		String constrs = (impl_dir == null) ? null
+				: FileDigest.digest(new File(impl_dir, XDCWriter.CONSTRAINTS_FILE));
+		lines.add("constraints=" + (constrs == null ? "" : constrs));
+
+		if (directive.isSubBuilder()) {
+			for (Directive dir : directive.getSubBuilder().getDirectives()) {
+				if (dir.isWrite())
+					continue;
+				if (dir.isOnlyWires()) {
+					// copied from synth which is already part of the key. Only
+					// wires usually have no dcp, so name them by instance then
+					if (dir.getDCP() != null)
+						lines.add("wires=" + Merger.getModuleName(dir, args));
+					else if (dir.getInstName() != null)
+						lines.add("wires_inst=" + dir.getInstName());
+					continue;
+				}
+				String sub_key = compute(dir, args);
+				if (sub_key == null)
+					return null;
+				lines.add("sub=" + sub_key);
+			}
+		} else {
+			String dcp = FileDigest.digest(directive.getDCP());
+			if (dcp == null)
+				return null;
+			lines.add("dcp=" + dcp);
+		}
+		return FileDigest.digest(lines);
+	}
+
+	/**
+	 * @return Options of {@link Merger#placeRouteOOC} that change its result.
+	 */
+	private static String flowOptions(Directive directive) {
+		boolean buffered = directive.isSubBuilder() && directive.getSubBuilder().getHeader().isBufferedInputs();
+		return buffered ? "read_xdc=-unmanaged" : "read_xdc=-unmanaged -mode out_of_context";
+	}
+}
@@ -0,0 +1,115 @@
+package main.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+import main.util.FileUtils;
+
+/**
+ * Minimal http server for a shared {@link LocalCacheBackend} (see
+ * {@link HttpCacheBackend} for the protocol).
+ * <p>
+ * Usage: {@code java main.worker.CacheServer <port> <cache_dir>}
+ */
+public class CacheServer {
+	private static final int NUM_THREADS = 8;
+
+	private final LocalCacheBackend store;
+	private final File root;
+	private HttpServer server = null;
+
+	/**
+	 * @param root Directory of the store.
+	 */
+	public CacheServer(File root) {
+		this.root = root.getAbsoluteFile();
+		this.store = new LocalCacheBackend(this.root);
+	}
+
+	/**
+	 * Start serving. Returns immediately.
+	 *
+	 * @param port Port to listen on.
+	 */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(NUM_THREADS));
+		server.start();
+		MessageGenerator.briefMessage("Serving cache '" + root.getPath() + "' on port " + port + ".");
+	}
+
+	/**
+	 * Stop serving.
+	 */
+	public void stop() {
+		if (server != null)
+			server.stop(0);
+		server = null;
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		// a streamed PUT can't be retried if it's sent on a kept alive connection
+		// that the server drops, so don't keep connections alive
+		exchange.getResponseHeaders().set("Connection", "close");
+		String path = exchange.getRequestURI().getPath();
+		String key = path.substring(path.lastIndexOf('/') + 1);
+		if (!CacheBackend.isValidKey(key)) {
+			exchange.sendResponseHeaders(400, -1);
+			return;
+		}
+		String method = exchange.getRequestMethod();
+		if (method.equals("GET")) {
+			File dir = store.getEntryDir(key);
+			if (dir == null) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", "application/zip");
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream out = exchange.getResponseBody()) {
+				CacheArchive.zip(dir, out);
+			}
+		} else if (method.equals("PUT")) {
+			File incoming = new File(root, ".upload_" + Long.toHexString(System.nanoTime()));
+			incoming.mkdirs();
+			try (InputStream in = exchange.getRequestBody()) {
+				CacheArchive.unzip(in, incoming);
+				boolean stored = store.put(key, incoming);
+				exchange.sendResponseHeaders(stored ? 201 : 500, -1);
+			} catch (IOException ioe) {
+				exchange.sendResponseHeaders(400, -1);
+			} finally {
+				FileUtils.deleteRecursively(incoming);
+			}
+		} else {
+			exchange.sendResponseHeaders(405, -1);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			MessageGenerator.briefMessage("Usage: java main.worker.CacheServer <port> <cache_dir>");
+			return;
+		}
+		new CacheServer(new File(args[1])).start(Integer.parseInt(args[0]));
+	}
+}
@@ -0,0 +1,327 @@
+package main.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+import main.directive.CacheIndex;
+import main.directive.DependancyMeta;
+import main.util.FileDigest;
+import main.util.FileUtils;
+
+/**
+ * Checks the files of cache entries against the
+ * {@link DependancyMeta.Checksum checksums} stored in their metadata and moves
+ * corrupt entries to a quarantine directory so they are rebuilt instead of
+ * failing when loaded.
+ * <p>
+ * How much is read depends on the {@link Level}. The dcp is always checked for
+ * the end of its zip directory (a dcp cut short by a killed Vivado doesn't have
+ * one), which is all entries written before checksums were stored get.
+ * <p>
+ * The constraints file is an input of the entry that {@link XDCWriter}
+ * rewrites. A changed constraints file makes the entry outdated (see
+ * {@link #constraintsChanged}) but not corrupt.
+ */
+public class CacheVerifier {
+	/**
+	 * How thoroughly to check an entry.
+	 */
+	public static enum Level {
+		/**
+		 * Only compare file sizes.
+		 */
+		SIZE("size"),
+		/**
+		 * Also compare the {@link FileDigest#sampleDigest(File) sample digests}.
+		 */
+		SAMPLE("sample"),
+		/**
+		 * Also compare the digests of the whole files.
+		 */
+		FULL("full");
+
+		private final String name;
+
+		Level(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		/**
+		 * @param name Name of a level (case insensitive).
+		 * @return Matching level. Null if there is none.
+		 */
+		public static Level fromString(String name) {
+			if (name == null)
+				return null;
+			for (Level l : values())
+				if (l.name.equalsIgnoreCase(name.trim()))
+					return l;
+			return null;
+		}
+	}
+
+	/**
+	 * Directory in the root of the module cache that corrupt entries are moved to.
+	 */
+	public static final String QUARANTINE_DIR = ".quarantine";
+	private static final byte[] ZIP_END_SIGNATURE = { 'P', 'K', 5, 6 };
+	/**
+	 * The end of central directory record is 22 bytes plus a comment of up to
+	 * 64KB.
+	 */
+	private static final int ZIP_END_MAX = 22 + (1 << 16);
+
+	/**
+	 * Check the files of a cache entry.
+	 *
+	 * @param dcp   Cached dcp of the entry.
+	 * @param meta  Metadata of the entry.
+	 * @param level How thoroughly to check.
+	 * @return Null if the entry is intact. Otherwise a description of the
+	 *         problem.
+	 */
+	public static String verify(File dcp, DependancyMeta meta, Level level) {
+		File impl_dir = dcp.getParentFile();
+		for (DependancyMeta.Checksum c : meta.getChecksums()) {
+			if (c.getName().equals(XDCWriter.CONSTRAINTS_FILE))
+				continue;
+			File f = new File(impl_dir, c.getName());
+			if (!f.isFile())
+				return "'" + c.getName() + "' is missing";
+			if (f.length() != c.getSize())
+				return "'" + c.getName() + "' has " + f.length() + " bytes instead of " + c.getSize();
+			if (level == Level.SAMPLE && !c.getSample().isEmpty() && !c.getSample().equals(FileDigest.sampleDigest(f)))
+				return "'" + c.getName() + "' doesn't match its sampled checksum";
+			if (level == Level.FULL && !c.getDigest().equals(FileDigest.digest(f)))
+				return "'" + c.getName() + "' doesn't match its checksum";
+		}
+		// also catches a dcp that was cut short before its checksum was taken
+		return verifyDCP(dcp);
+	}
+
+	/**
+	 * Check that a dcp was written completely (without metadata to compare to).
+	 *
+	 * @param dcp Dcp to check.
+	 * @return Null if dcp exists and has the end of its zip directory. Otherwise a
+	 *         description of the problem.
+	 */
+	public static String verifyDCP(File dcp) {
+		if (!dcp.isFile())
+			return "'" + dcp.getName() + "' is missing";
+		if (!hasZipEnd(dcp))
+			return "'" + dcp.getName() + "' is truncated";
+		return null;
+	}
+
+	/**
+	 * @param impl_dir Directory of a cache entry.
+	 * @param meta     Metadata of the entry.
+	 * @return True if the constraints file of the entry differs from the one the
+	 *         entry was built with.
+	 */
+	public static boolean constraintsChanged(File impl_dir, DependancyMeta meta) {
+		for (DependancyMeta.Checksum c : meta.getChecksums()) {
+			if (!c.getName().equals(XDCWriter.CONSTRAINTS_FILE))
+				continue;
+			File f = new File(impl_dir, c.getName());
+			return f.length() != c.getSize() || !c.getDigest().equals(FileDigest.digest(f));
+		}
+		return false;
+	}
+
+	/**
+	 * Move the files of a cache entry (except its constraints and the entries of
+	 * pblocks below it) to {@value #QUARANTINE_DIR} in the root of the cache.
+	 * <p>
+	 * If another thread or process held the entry when it was locked, it may
+	 * have rewritten the entry, so the entry is checked again first and left
+	 * alone if it is now intact.
+	 *
+	 * @param dcp     Cached dcp of the entry.
+	 * @param level   How thoroughly the entry was checked.
+	 * @param reason  Why the entry is quarantined.
+	 * @param verbose Print extra messages.
+	 * @return False if the entry turned out to be intact. True if it was
+	 *         quarantined or removed in the meantime.
+	 */
+	public static boolean quarantine(File dcp, Level level, String reason, boolean verbose) {
+		File impl_dir = dcp.getParentFile();
+		File cache_dir = findCacheDir(impl_dir);
+		try (CacheEntryLock lock = CacheEntryLock.acquire(impl_dir, verbose)) {
+			if (lock.waited()) {
+				File meta_file = new File(impl_dir, DependancyMeta.META_FILENAME);
+				if (!meta_file.isFile())
+					return true; // removed in the meantime
+				reason = verify(dcp, new DependancyMeta(meta_file, verbose), level);
+				if (reason == null) {
+					printIfVerbose("\nCache entry '" + impl_dir.getAbsolutePath() + "' was rewritten and is intact.",
+							verbose);
+					return false;
+				}
+			}
+			MessageGenerator.briefMessage("\nCache entry '" + impl_dir.getAbsolutePath() + "' is corrupt (" + reason
+					+ "). Moving it to " + QUARANTINE_DIR + ".");
+			String rel = impl_dir.getAbsolutePath().substring(cache_dir.getAbsolutePath().length());
+			String stamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(new Date());
+			File dest = new File(new File(cache_dir, QUARANTINE_DIR + rel), stamp);
+			dest.mkdirs();
+
+			// metadata first so the entry is never found with some files missing
+			File meta = new File(impl_dir, DependancyMeta.META_FILENAME);
+			if (meta.isFile())
+				FileUtils.moveAtomically(meta, new File(dest, meta.getName()));
+			File[] files = impl_dir.listFiles();
+			if (files != null)
+				for (File f : files)
+					if (f.isFile() && !f.getName().startsWith(".")
+							&& !f.getName().equals(XDCWriter.CONSTRAINTS_FILE))
+						FileUtils.moveAtomically(f, new File(dest, f.getName()));
+			FileUtils.writeLinesAtomically(Arrays.asList(reason), new File(dest, "reason.txt"));
+			CacheIndex.forCache(cache_dir).remove(impl_dir);
+			Merger.invalidateCacheResults(impl_dir);
+		}
+		return true;
+	}
+
+	/**
+	 * Fully verify every entry of a cache in parallel. Corrupt entries are
+	 * quarantined.
+	 *
+	 * @param cache_dir   Root of the cache (iii_dir/moduleCache).
+	 * @param num_threads Number of entries to check at once.
+	 * @param verbose     Print every entry checked.
+	 * @return Number of corrupt entries.
+	 */
+	public static int verifyAll(File cache_dir, int num_threads, boolean verbose) {
+		List<File> entries = new ArrayList<>();
+		findEntries(cache_dir, entries);
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, num_threads));
+		List<Future<Boolean>> results = new ArrayList<>();
+		for (final File impl_dir : entries) {
+			results.add(pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return verifyEntry(cache_dir, impl_dir, verbose);
+				}
+			}));
+		}
+		int num_corrupt = 0;
+		int num_failed = 0;
+		try {
+			for (Future<Boolean> f : results) {
+				try {
+					if (!f.get())
+						num_corrupt++;
+				} catch (ExecutionException e) {
+					num_failed++;
+				}
+			}
+		} catch (InterruptedException e) {
+			MessageGenerator.briefError("Interrupted while verifying cache '" + cache_dir.getAbsolutePath() + "'.");
+		} finally {
+			pool.shutdown();
+		}
+		if (num_failed > 0)
+			MessageGenerator.briefError("Failed to verify " + num_failed + " entries of cache '"
+					+ cache_dir.getAbsolutePath() + "'.");
+		MessageGenerator.briefMessage("\nVerified " + entries.size() + " entries of cache '"
+				+ cache_dir.getAbsolutePath() + "'. " + num_corrupt + " corrupt entries were quarantined.");
+		return num_corrupt;
+	}
+
+	/**
+	 * @return True if the entry is intact.
+	 */
+	private static boolean verifyEntry(File cache_dir, File impl_dir, boolean verbose) {
+		// the module is the first directory below the cache root
+		String rel = impl_dir.getAbsolutePath().substring(cache_dir.getAbsolutePath().length() + 1);
+		String module_name = rel.split("/")[0];
+		String problem;
+		try (CacheEntryLock lock = CacheEntryLock.acquire(impl_dir, verbose)) {
+			File meta_file = new File(impl_dir, DependancyMeta.META_FILENAME);
+			if (!meta_file.isFile())
+				return true; // removed since it was found
+			DependancyMeta meta = new DependancyMeta(meta_file, verbose);
+			File dcp = new File(impl_dir, module_name + ".dcp");
+			problem = verify(dcp, meta, Level.FULL);
+			if (problem != null)
+				quarantine(dcp, Level.FULL, problem, verbose);
+		}
+		if (problem == null)
+			printIfVerbose("Cache entry '" + impl_dir.getAbsolutePath() + "' is intact.", verbose);
+		return problem == null;
+	}
+
+	/**
+	 * Add every directory below dir holding metadata (skips hidden directories).
+	 */
+	private static void findEntries(File dir, List<File> entries) {
+		File[] children = dir.listFiles();
+		if (children == null)
+			return;
+		for (File f : children) {
+			if (f.getName().startsWith("."))
+				continue;
+			if (f.isDirectory())
+				findEntries(f, entries);
+			else if (f.getName().equals(DependancyMeta.META_FILENAME))
+				entries.add(dir);
+		}
+	}
+
+	/**
+	 * @return Root of the module cache containing impl_dir.
+	 */
+	private static File findCacheDir(File impl_dir) {
+		File dir = impl_dir.getAbsoluteFile();
+		while (dir != null && !dir.getName().equals(Merger.MODULE_CACHE))
+			dir = dir.getParentFile();
+		return (dir == null) ? impl_dir.getAbsoluteFile().getParentFile() : dir;
+	}
+
+	/**
+	 * @return True if the end of central directory record of a zip file is in its
+	 *         last {@value #ZIP_END_MAX} bytes.
+	 */
+	private static boolean hasZipEnd(File f) {
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+			long length = raf.length();
+			int n = (int) Math.min(length, ZIP_END_MAX);
+			byte[] buf = new byte[n];
+			raf.seek(length - n);
+			raf.readFully(buf);
+			for (int i = n - 22; i >= 0; i--)
+				if (buf[i] == ZIP_END_SIGNATURE[0] && buf[i + 1] == ZIP_END_SIGNATURE[1]
+						&& buf[i + 2] == ZIP_END_SIGNATURE[2] && buf[i + 3] == ZIP_END_SIGNATURE[3])
+					return true;
+		} catch (IOException ioe) {
+			return false;
+		}
+		return false;
+	}
+
+	private static void printIfVerbose(String msg, boolean verbose) {
+		if (verbose)
+			MessageGenerator.briefMessage(msg);
+	}
+}
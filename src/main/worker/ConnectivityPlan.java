@@ -0,0 +1,414 @@
+package main.worker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.xilinx.rapidwright.edif.EDIFCell;
+import com.xilinx.rapidwright.edif.EDIFCellInst;
+import com.xilinx.rapidwright.edif.EDIFDirection;
+import com.xilinx.rapidwright.edif.EDIFNet;
+import com.xilinx.rapidwright.edif.EDIFPort;
+import com.xilinx.rapidwright.edif.EDIFPortInst;
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+import main.util.FileDigest;
+import main.util.FileUtils;
+import main.util.NetlistRegistry;
+
+/**
+ * Connectivity of a cell of a top level synth: its ports and, for each net, the
+ * (instance, port, bit) pins on it.
+ * <p>
+ * A plan is compiled once from the synth netlist and stored in
+ * {@value #PLAN_CACHE} under the iii dir, named by the
+ * {@link FileDigest#digest(File) digest} of the synth dcp and the cell name.
+ * Later runs (and other builders using the same synth) read it instead of
+ * loading the synth design. Names are stored once in a table and referred to
+ * by index.
+ * <p>
+ * Primitive cell instances of the synth top still need their cells from the
+ * synth netlist, so {@link Merger} only skips loading the synth if the plan
+ * {@link #hasPrimitives() has none}.
+ */
+class ConnectivityPlan {
+	static final String PLAN_CACHE = "connectivityCache";
+	private static final int MAGIC = 0x5342434e; // "SBCN"
+	private static final int VERSION = 1;
+
+	/**
+	 * Plans loaded or compiled this run by digest and cell name.
+	 */
+	private static final Map<String, ConnectivityPlan> plans = new ConcurrentHashMap<>();
+
+	/**
+	 * A top level port of the cell.
+	 */
+	static class Port {
+		final String name;
+		final String bus_name;
+		final EDIFDirection direction;
+		final int width;
+
+		Port(String name, String bus_name, EDIFDirection direction, int width) {
+			this.name = name;
+			this.bus_name = bus_name;
+			this.direction = direction;
+			this.width = width;
+		}
+	}
+
+	/**
+	 * A bit of a port on a net.
+	 */
+	static class Pin {
+		final String net;
+		final String port;
+		final int index;
+
+		Pin(String net, String port, int index) {
+			this.net = net;
+			this.port = port;
+			this.index = index;
+		}
+	}
+
+	private final String cell_name;
+	private final boolean has_primitives;
+	private final String[] names;
+	// one entry per port
+	private final int[] port_names;
+	private final int[] port_bus_names;
+	private final int[] port_dirs;
+	private final int[] port_widths;
+	// one entry per net, pins of net i are net_starts[i] to net_starts[i + 1]
+	private final int[] net_names;
+	private final int[] net_starts;
+	// one entry per pin, instance -1 for top level ports
+	private final int[] pin_insts;
+	private final int[] pin_ports;
+	private final int[] pin_indices;
+
+	private ConnectivityPlan(String cell_name, boolean has_primitives, String[] names, int[] port_names,
+			int[] port_bus_names, int[] port_dirs, int[] port_widths, int[] net_names, int[] net_starts,
+			int[] pin_insts, int[] pin_ports, int[] pin_indices) {
+		this.cell_name = cell_name;
+		this.has_primitives = has_primitives;
+		this.names = names;
+		this.port_names = port_names;
+		this.port_bus_names = port_bus_names;
+		this.port_dirs = port_dirs;
+		this.port_widths = port_widths;
+		this.net_names = net_names;
+		this.net_starts = net_starts;
+		this.pin_insts = pin_insts;
+		this.pin_ports = pin_ports;
+		this.pin_indices = pin_indices;
+	}
+
+	/**
+	 * @param synth_top Cell of a synth netlist.
+	 * @return Plan of synth_top's connectivity.
+	 */
+	static ConnectivityPlan compile(EDIFCell synth_top) {
+		Map<String, Integer> codes = new LinkedHashMap<>();
+		boolean has_primitives = false;
+		for (EDIFCellInst ci : synth_top.getCellInsts())
+			if (ci.getCellType().isPrimitive())
+				has_primitives = true;
+
+		List<EDIFPort> ports = new ArrayList<>(synth_top.getPorts());
+		int[] port_names = new int[ports.size()], port_bus_names = new int[ports.size()];
+		int[] port_dirs = new int[ports.size()], port_widths = new int[ports.size()];
+		for (int i = 0; i < ports.size(); i++) {
+			EDIFPort p = ports.get(i);
+			port_names[i] = code(codes, p.getName());
+			port_bus_names[i] = code(codes, p.getBusName());
+			port_dirs[i] = code(codes, String.valueOf(p.getDirection()));
+			port_widths[i] = p.getWidth();
+		}
+
+		List<EDIFNet> nets = new ArrayList<>(synth_top.getNets());
+		int[] net_names = new int[nets.size()], net_starts = new int[nets.size() + 1];
+		List<int[]> pins = new ArrayList<>();
+		for (int i = 0; i < nets.size(); i++) {
+			net_names[i] = code(codes, nets.get(i).getName());
+			net_starts[i] = pins.size();
+			for (EDIFPortInst pi : nets.get(i).getPortInsts()) {
+				int inst = pi.isTopLevelPort() ? -1 : code(codes, pi.getCellInst().getName());
+				pins.add(new int[] { inst, code(codes, pi.getPort().getBusName()), pi.getIndex() });
+			}
+		}
+		net_starts[nets.size()] = pins.size();
+		int[] pin_insts = new int[pins.size()], pin_ports = new int[pins.size()], pin_indices = new int[pins.size()];
+		for (int i = 0; i < pins.size(); i++) {
+			pin_insts[i] = pins.get(i)[0];
+			pin_ports[i] = pins.get(i)[1];
+			pin_indices[i] = pins.get(i)[2];
+		}
+		return new ConnectivityPlan(synth_top.getName(), has_primitives, codes.keySet().toArray(new String[0]),
+				port_names, port_bus_names, port_dirs, port_widths, net_names, net_starts, pin_insts, pin_ports,
+				pin_indices);
+	}
+
+	private static int code(Map<String, Integer> codes, String name) {
+		Integer c = codes.get(name);
+		if (c == null) {
+			c = codes.size();
+			codes.put(name, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Get the plan of a cell of a synth dcp. Loads the stored plan if there is
+	 * one, otherwise loads the synth, compiles the plan and stores it.
+	 *
+	 * @param synth     Top level synth dcp.
+	 * @param cell_name Cell of the synth netlist.
+	 * @param iii_dir   Directory the plan is stored under.
+	 * @param verbose   Print extra messages.
+	 * @return The plan. Null if the synth doesn't have the cell.
+	 */
+	static ConnectivityPlan forSynth(File synth, String cell_name, File iii_dir, boolean verbose) {
+		ConnectivityPlan plan = load(synth, cell_name, iii_dir, verbose);
+		if (plan != null)
+			return plan;
+		EDIFCell synth_top = NetlistRegistry.get(synth, verbose, iii_dir).getCell(cell_name);
+		if (synth_top == null)
+			return null;
+		plan = compile(synth_top);
+		plan.store(synth, iii_dir, verbose);
+		return plan;
+	}
+
+	private static File getPlanFile(String digest, String cell_name, File iii_dir) {
+		return new File(new File(iii_dir, PLAN_CACHE), digest + "_" + cell_name + ".bin");
+	}
+
+	/**
+	 * Load the plan of a cell of a synth dcp if one was compiled this run or
+	 * stored for the same synth contents.
+	 *
+	 * @return The plan. Null if there is none.
+	 */
+	static ConnectivityPlan load(File synth, String cell_name, File iii_dir, boolean verbose) {
+		String digest = FileDigest.digest(synth);
+		if (digest == null)
+			return null;
+		ConnectivityPlan plan = plans.get(digest + "_" + cell_name);
+		if (plan != null || iii_dir == null)
+			return plan;
+
+		File f = getPlanFile(digest, cell_name, iii_dir);
+		if (!f.isFile())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			if (!digest.equals(in.readUTF()) || !cell_name.equals(in.readUTF()))
+				return null;
+			boolean has_primitives = in.readBoolean();
+			String[] names = new String[in.readInt()];
+			for (int i = 0; i < names.length; i++)
+				names[i] = in.readUTF();
+			int n = in.readInt();
+			int[] port_names = new int[n], port_bus_names = new int[n], port_dirs = new int[n];
+			int[] port_widths = new int[n];
+			for (int i = 0; i < n; i++) {
+				port_names[i] = in.readInt();
+				port_bus_names[i] = in.readInt();
+				port_dirs[i] = in.readInt();
+				port_widths[i] = in.readInt();
+			}
+			n = in.readInt();
+			int[] net_names = new int[n], net_starts = new int[n + 1];
+			for (int i = 0; i < n; i++)
+				net_names[i] = in.readInt();
+			for (int i = 0; i <= n; i++)
+				net_starts[i] = in.readInt();
+			n = in.readInt();
+			int[] pin_insts = new int[n], pin_ports = new int[n], pin_indices = new int[n];
+			for (int i = 0; i < n; i++) {
+				pin_insts[i] = in.readInt();
+				pin_ports[i] = in.readInt();
+				pin_indices[i] = in.readInt();
+			}
+			plan = new ConnectivityPlan(cell_name, has_primitives, names, port_names, port_bus_names, port_dirs,
+					port_widths, net_names, net_starts, pin_insts, pin_ports, pin_indices);
+			if (!plan.isValid())
+				return null;
+		} catch (IOException ioe) {
+			printIfVerbose("Failed to read connectivity plan from '" + f.getAbsolutePath() + "'.", verbose);
+			return null;
+		}
+		printIfVerbose("Loaded connectivity plan from '" + f.getAbsolutePath() + "'.", verbose);
+		plans.put(digest + "_" + cell_name, plan);
+		return plan;
+	}
+
+	/**
+	 * @return True if every name index is in the table, directions are known and
+	 *         the nets' pin ranges are in order.
+	 */
+	private boolean isValid() {
+		int[][] refs = { port_names, port_bus_names, port_dirs, net_names, pin_ports };
+		for (int[] ref : refs)
+			for (int r : ref)
+				if (r < 0 || r >= names.length)
+					return false;
+		for (int r : pin_insts)
+			if (r < -1 || r >= names.length)
+				return false;
+		for (int d : port_dirs)
+			if (!isDirection(names[d]))
+				return false;
+		if (net_starts[0] != 0 || net_starts[net_names.length] != pin_insts.length)
+			return false;
+		for (int i = 0; i < net_names.length; i++)
+			if (net_starts[i] > net_starts[i + 1])
+				return false;
+		return true;
+	}
+
+	private static boolean isDirection(String name) {
+		for (EDIFDirection d : EDIFDirection.values())
+			if (d.toString().equals(name))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Store the plan under the iii dir. Replaces the file atomically.
+	 */
+	void store(File synth, File iii_dir, boolean verbose) {
+		String digest = FileDigest.digest(synth);
+		if (digest == null)
+			return;
+		plans.put(digest + "_" + cell_name, this);
+		if (iii_dir == null)
+			return;
+		File f = getPlanFile(digest, cell_name, iii_dir);
+		f.getParentFile().mkdirs();
+		File tmp = FileUtils.tempSibling(f);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(digest);
+			out.writeUTF(cell_name);
+			out.writeBoolean(has_primitives);
+			out.writeInt(names.length);
+			for (String name : names)
+				out.writeUTF(name);
+			out.writeInt(port_names.length);
+			for (int i = 0; i < port_names.length; i++) {
+				out.writeInt(port_names[i]);
+				out.writeInt(port_bus_names[i]);
+				out.writeInt(port_dirs[i]);
+				out.writeInt(port_widths[i]);
+			}
+			out.writeInt(net_names.length);
+			for (int n : net_names)
+				out.writeInt(n);
+			for (int s : net_starts)
+				out.writeInt(s);
+			out.writeInt(pin_insts.length);
+			for (int i = 0; i < pin_insts.length; i++) {
+				out.writeInt(pin_insts[i]);
+				out.writeInt(pin_ports[i]);
+				out.writeInt(pin_indices[i]);
+			}
+		} catch (IOException ioe) {
+			MessageGenerator.briefError("Failed to write connectivity plan to '" + f.getAbsolutePath() + "'.");
+			tmp.delete();
+			return;
+		}
+		if (FileUtils.moveAtomically(tmp, f))
+			printIfVerbose("Stored connectivity plan in '" + f.getAbsolutePath() + "'.", verbose);
+	}
+
+	/**
+	 * @return True if the cell instantiates primitives directly.
+	 */
+	boolean hasPrimitives() {
+		return has_primitives;
+	}
+
+	/**
+	 * @return Top level ports of the cell.
+	 */
+	List<Port> getPorts() {
+		List<Port> ports = new ArrayList<>();
+		for (int i = 0; i < port_names.length; i++)
+			ports.add(new Port(names[port_names[i]], names[port_bus_names[i]],
+					EDIFDirection.valueOf(names[port_dirs[i]]), port_widths[i]));
+		return ports;
+	}
+
+	/**
+	 * @return Pins on top level ports.
+	 */
+	List<Pin> getTopPins() {
+		List<Pin> pins = new ArrayList<>();
+		for (int n = 0; n < net_names.length; n++)
+			for (int i = net_starts[n]; i < net_starts[n + 1]; i++)
+				if (pin_insts[i] < 0)
+					pins.add(new Pin(names[net_names[n]], names[pin_ports[i]], pin_indices[i]));
+		return pins;
+	}
+
+	/**
+	 * @return Pins of cell instances by instance name. A new map each call.
+	 */
+	Map<String, List<Pin>> getPinsByInstance() {
+		Map<String, List<Pin>> by_inst = new HashMap<>();
+		for (int n = 0; n < net_names.length; n++) {
+			for (int i = net_starts[n]; i < net_starts[n + 1]; i++) {
+				if (pin_insts[i] < 0)
+					continue;
+				String inst = names[pin_insts[i]];
+				List<Pin> pins = by_inst.get(inst);
+				if (pins == null) {
+					pins = new ArrayList<>();
+					by_inst.put(inst, pins);
+				}
+				pins.add(new Pin(names[net_names[n]], names[pin_ports[i]], pin_indices[i]));
+			}
+		}
+		return by_inst;
+	}
+
+	/**
+	 * @return Names of the cell instances on each net.
+	 */
+	List<Set<String>> getNetInstances() {
+		List<Set<String>> nets = new ArrayList<>();
+		for (int n = 0; n < net_names.length; n++) {
+			Set<String> insts = new LinkedHashSet<>();
+			for (int i = net_starts[n]; i < net_starts[n + 1]; i++)
+				if (pin_insts[i] >= 0)
+					insts.add(names[pin_insts[i]]);
+			nets.add(Collections.unmodifiableSet(insts));
+		}
+		return nets;
+	}
+
+	private static void printIfVerbose(String msg, boolean verbose) {
+		if (verbose)
+			MessageGenerator.briefMessage(msg);
+	}
+}
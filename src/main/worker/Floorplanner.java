@@ -0,0 +1,498 @@
+package main.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import com.xilinx.rapidwright.design.Design;
+import com.xilinx.rapidwright.device.Device;
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import main.directive.Directive;
+import main.directive.DirectiveBuilder;
+import main.parser.ArgsContainer;
+import main.parser.XMLParser;
+import main.util.DesignUtils;
+import main.util.DeviceRegistry;
+import main.util.FileUtils;
+import main.util.NetlistRegistry;
+import main.util.PBlockEstimator;
+import main.util.PBlockSpec;
+
+/**
+ * Packs pblocks for many modules onto a device at once.
+ * <p>
+ * Each module needs the resources {@link PBlockEstimator#demand estimated}
+ * from its primitives. Modules are placed one at a time, largest and most
+ * connected to the modules already placed first. Each is grown from several
+ * start tiles (near the modules it connects to, on a grid over the device and
+ * at random) into a rectangle that doesn't overlap the pblocks placed so far
+ * or fixed ones, and the rectangle closest to its connections is kept.
+ * Rectangles are kept one tile apart so pblocks with CONTAIN_ROUTING don't
+ * share interconnect tiles.
+ * <p>
+ * The order and start tiles are varied over several restarts run in parallel.
+ * The plan with the least wirelength (connections times distance between
+ * rectangle centers) plus area is kept. Restarts are seeded by their number,
+ * so the result doesn't depend on the number of threads.
+ */
+public class Floorplanner {
+	private static final int RESTARTS = 16;
+	/**
+	 * Start tiles per dimension of the device grid tried for each module.
+	 */
+	private static final int GRID = 4;
+	private static final int RANDOM_STARTS = 4;
+	/**
+	 * Tiles between rectangles.
+	 */
+	private static final int HALO = 1;
+
+	private final PBlockEstimator estimator;
+	private final double slack;
+	private final boolean verbose;
+	private final List<String> names = new ArrayList<>();
+	private final List<long[]> demands = new ArrayList<>();
+	private final Map<String, Integer> module_index = new HashMap<>();
+	private final List<int[]> fixed = new ArrayList<>();
+	/**
+	 * Connections between each pair of modules, by (smaller index << 32 | larger
+	 * index).
+	 */
+	private final Map<Long, Integer> connections = new HashMap<>();
+
+	/**
+	 * @param device  Device to plan on.
+	 * @param slack   Extra resources each pblock has (0.2 is 20% more than
+	 *                needed).
+	 * @param verbose Print extra messages.
+	 */
+	public Floorplanner(Device device, double slack, boolean verbose) {
+		estimator = PBlockEstimator.forDevice(device);
+		this.slack = slack;
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Add a module to place.
+	 *
+	 * @param name        Unique name of the module.
+	 * @param utilization Primitive counts of the module.
+	 */
+	public void addModule(String name, PBlockEstimator.Utilization utilization) {
+		if (module_index.containsKey(name))
+			return;
+		module_index.put(name, names.size());
+		names.add(name);
+		demands.add(estimator.demand(utilization, slack));
+	}
+
+	/**
+	 * Keep new pblocks out of an existing one.
+	 *
+	 * @param pblock A pblock string.
+	 * @return False if the pblock can't be mapped onto the device (eg. it has
+	 *         clock regions), so it isn't avoided.
+	 */
+	public boolean addFixed(String pblock) {
+		int[] box = PBlockSpec.parse(pblock).getTileBounds(estimator.getDevice());
+		if (box == null)
+			return false;
+		fixed.add(box);
+		return true;
+	}
+
+	/**
+	 * Add a net connecting modules. Names that weren't added are ignored.
+	 *
+	 * @param members Names of the modules on the net.
+	 */
+	public void addNet(Collection<String> members) {
+		List<Integer> ids = new ArrayList<>();
+		for (String name : new LinkedHashSet<>(members)) {
+			Integer i = module_index.get(name);
+			if (i != null)
+				ids.add(i);
+		}
+		for (int a = 0; a < ids.size(); a++) {
+			for (int b = a + 1; b < ids.size(); b++) {
+				long key = pairKey(ids.get(a), ids.get(b));
+				Integer w = connections.get(key);
+				connections.put(key, (w == null) ? 1 : w + 1);
+			}
+		}
+	}
+
+	private static long pairKey(int a, int b) {
+		return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+	}
+
+	/**
+	 * A placement of all modules.
+	 */
+	private static class Plan {
+		final int[][] rects;
+		final long cost;
+
+		Plan(int[][] rects, long cost) {
+			this.rects = rects;
+			this.cost = cost;
+		}
+	}
+
+	/**
+	 * Place all modules.
+	 *
+	 * @param threads Restarts to run at once.
+	 * @return Pblock of each module by name. Empty if they don't all fit.
+	 */
+	public Map<String, String> run(int threads) {
+		Map<String, String> pblocks = new LinkedHashMap<>();
+		if (names.isEmpty())
+			return pblocks;
+		final int[][] weights = new int[names.size()][names.size()];
+		for (Map.Entry<Long, Integer> e : connections.entrySet()) {
+			int a = (int) (e.getKey() >>> 32);
+			int b = (int) (e.getKey() & 0xffffffffL);
+			weights[a][b] = e.getValue();
+			weights[b][a] = e.getValue();
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, RESTARTS)));
+		List<Future<Plan>> results = new ArrayList<>();
+		for (int i = 0; i < RESTARTS; i++) {
+			final long seed = i;
+			results.add(pool.submit(new Callable<Plan>() {
+				@Override
+				public Plan call() {
+					return plan(seed, weights);
+				}
+			}));
+		}
+		Plan best = null;
+		try {
+			for (Future<Plan> f : results) {
+				Plan p = f.get();
+				if (p != null && (best == null || p.cost < best.cost))
+					best = p;
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			MessageGenerator.briefError("Floorplanning failed.");
+		} finally {
+			pool.shutdown();
+		}
+		if (best == null) {
+			MessageGenerator.briefError("\nCould not fit pblocks for all " + names.size() + " modules on device "
+					+ estimator.getDevice().getName() + ".");
+			return pblocks;
+		}
+		for (int i = 0; i < names.size(); i++)
+			pblocks.put(names.get(i), estimator.describe(best.rects[i]));
+		printIfVerbose("\nFloorplanned " + names.size() + " modules (cost " + best.cost + ").");
+		return pblocks;
+	}
+
+	/**
+	 * One restart. Restart 0 uses the order by size and connections as is.
+	 *
+	 * @return Null if a module didn't fit.
+	 */
+	private Plan plan(long seed, int[][] weights) {
+		Random random = new Random(seed);
+		int n = names.size();
+		int[][] rects = new int[n][];
+		List<int[]> blocked = new ArrayList<>();
+		for (int[] f : fixed)
+			blocked.add(withHalo(f));
+
+		for (int m : order(random, seed == 0, weights)) {
+			int[] best = null;
+			long best_cost = Long.MAX_VALUE;
+			for (int[] start : starts(m, rects, weights, random)) {
+				int[] rect = estimator.grow(demands.get(m), start[0], start[1], blocked);
+				if (rect == null)
+					continue;
+				long cost = area(rect);
+				for (int j = 0; j < n; j++)
+					if (rects[j] != null)
+						cost += (long) weights[m][j] * distance(rect, rects[j]);
+				if (cost < best_cost) {
+					best_cost = cost;
+					best = rect;
+				}
+			}
+			if (best == null)
+				return null;
+			rects[m] = best;
+			blocked.add(withHalo(best));
+		}
+
+		long cost = 0;
+		for (int a = 0; a < n; a++) {
+			cost += area(rects[a]);
+			for (int b = a + 1; b < n; b++)
+				cost += (long) weights[a][b] * distance(rects[a], rects[b]);
+		}
+		return new Plan(rects, cost);
+	}
+
+	/**
+	 * @return Modules in the order to place them: the largest first, then the
+	 *         one most connected to those placed (by size on ties). Sizes are
+	 *         jittered unless exact.
+	 */
+	private List<Integer> order(Random random, boolean exact, int[][] weights) {
+		int n = names.size();
+		double[] size = new double[n];
+		for (int i = 0; i < n; i++) {
+			long[] d = demands.get(i);
+			// a block RAM or DSP column takes about as much room as a few slices
+			size[i] = d[0] + 4 * (d[2] + d[3]);
+			if (!exact)
+				size[i] *= 0.5 + random.nextDouble();
+		}
+		List<Integer> order = new ArrayList<>();
+		long[] link = new long[n];
+		Set<Integer> left = new LinkedHashSet<>();
+		for (int i = 0; i < n; i++)
+			left.add(i);
+		while (!left.isEmpty()) {
+			int next = -1;
+			for (int i : left)
+				if (next < 0 || link[i] > link[next] || (link[i] == link[next] && size[i] > size[next]))
+					next = i;
+			left.remove(next);
+			order.add(next);
+			for (int i : left)
+				link[i] += weights[next][i];
+		}
+		return order;
+	}
+
+	/**
+	 * @return Start tiles (row, column) to grow module m from.
+	 */
+	private List<int[]> starts(int m, int[][] rects, int[][] weights, Random random) {
+		int rows = estimator.getRows();
+		int cols = estimator.getColumns();
+		List<int[]> starts = new ArrayList<>();
+		long total = 0, row_sum = 0, col_sum = 0;
+		for (int j = 0; j < rects.length; j++) {
+			if (rects[j] == null || weights[m][j] == 0)
+				continue;
+			total += weights[m][j];
+			row_sum += (long) weights[m][j] * (rects[j][0] + rects[j][2]) / 2;
+			col_sum += (long) weights[m][j] * (rects[j][1] + rects[j][3]) / 2;
+		}
+		if (total > 0)
+			starts.add(new int[] { (int) (row_sum / total), (int) (col_sum / total) });
+		for (int i = 0; i < GRID; i++)
+			for (int j = 0; j < GRID; j++)
+				starts.add(new int[] { (2 * i + 1) * rows / (2 * GRID), (2 * j + 1) * cols / (2 * GRID) });
+		for (int i = 0; i < RANDOM_STARTS; i++)
+			starts.add(new int[] { random.nextInt(rows), random.nextInt(cols) });
+		return starts;
+	}
+
+	private static int[] withHalo(int[] rect) {
+		return new int[] { rect[0] - HALO, rect[1] - HALO, rect[2] + HALO, rect[3] + HALO };
+	}
+
+	private static long area(int[] rect) {
+		return (long) (rect[2] - rect[0] + 1) * (rect[3] - rect[1] + 1);
+	}
+
+	/**
+	 * @return Manhattan distance (in tiles) between the centers of two
+	 *         rectangles.
+	 */
+	private static long distance(int[] a, int[] b) {
+		return (Math.abs((a[0] + a[2]) - (b[0] + b[2])) + Math.abs((a[1] + a[3]) - (b[1] + b[3]))) / 2;
+	}
+
+	/**
+	 * Floorplan the merge directives of a directive file that have no pblock and
+	 * write their pblocks back into the file. The old file is kept with a .bak
+	 * suffix.
+	 * <p>
+	 * Pblocks that are already given are kept and avoided. Children of a build
+	 * that has a pblock are left alone. Connections come from the top level
+	 * synth of each builder.
+	 *
+	 * @param xml_file Directive file builder was parsed from.
+	 * @param builder  Top directive builder.
+	 * @param args     Arguments from command line.
+	 * @return Number of pblocks written.
+	 */
+	public static int floorplan(File xml_file, DirectiveBuilder builder, ArgsContainer args) {
+		Map<Directive, String> to_plan = new LinkedHashMap<>();
+		List<String> fixed_pblocks = new ArrayList<>();
+		collect(builder, "", to_plan, fixed_pblocks);
+		if (to_plan.isEmpty()) {
+			printIfVerbose("\nNo modules without pblocks to floorplan.", args.verbose());
+			return 0;
+		}
+
+		Device device = null;
+		for (Directive d : to_plan.keySet()) {
+			String part = DesignUtils.readPartName(d.getDCP());
+			if (part != null) {
+				device = DeviceRegistry.get(part);
+				break;
+			}
+		}
+		if (device == null) {
+			MessageGenerator.briefError("\nCould not find the part of any module to floorplan.");
+			return 0;
+		}
+
+		Floorplanner planner = new Floorplanner(device, args.pblockSlack(), args.verbose());
+		for (String pblock : fixed_pblocks)
+			if (!planner.addFixed(pblock))
+				printIfVerbose("Not avoiding pblock '" + pblock + "' (not site ranges).", args.verbose());
+		Map<String, PBlockEstimator.Utilization> utilizations = new HashMap<>();
+		for (Map.Entry<Directive, String> e : to_plan.entrySet()) {
+			Directive d = e.getKey();
+			String dcp = d.getDCP().getAbsolutePath();
+			PBlockEstimator.Utilization u = utilizations.get(dcp);
+			if (u == null) {
+				Design design = DesignUtils.safeReadCheckpoint(dcp, args.verbose(), d.getIII());
+				u = PBlockEstimator.Utilization.of(design.getNetlist().getTopCell());
+				utilizations.put(dcp, u);
+			}
+			planner.addModule(e.getValue(), u);
+		}
+		addNets(builder, "", planner, args);
+
+		Map<String, String> pblocks = planner.run(args.threads());
+		if (pblocks.isEmpty())
+			return 0;
+
+		Document doc = XMLParser.parse(xml_file);
+		Map<Directive, String> planned = new HashMap<>();
+		for (Map.Entry<Directive, String> e : to_plan.entrySet())
+			planned.put(e.getKey(), pblocks.get(e.getValue()));
+		setPBlocks(doc.getDocumentElement(), builder, planned);
+		try {
+			Transformer transformer = TransformerFactory.newInstance().newTransformer();
+			StringWriter sw = new StringWriter();
+			transformer.transform(new DOMSource(doc), new StreamResult(sw));
+			Files.copy(xml_file.toPath(), new File(xml_file.getAbsolutePath() + ".bak").toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			FileUtils.writeLinesAtomically(Arrays.asList(sw.toString()), xml_file);
+		} catch (TransformerException | IOException e) {
+			MessageGenerator.briefError("Failed to write pblocks to '" + xml_file.getAbsolutePath() + "'.");
+			return 0;
+		}
+		MessageGenerator.briefMessage("\nWrote " + planned.size() + " pblocks to '" + xml_file.getAbsolutePath()
+				+ "'.");
+		return planned.size();
+	}
+
+	/**
+	 * Find merge directives without pblocks (named by their path of instance
+	 * names) and the pblocks that are given.
+	 */
+	private static void collect(DirectiveBuilder builder, String path, Map<Directive, String> to_plan,
+			List<String> fixed_pblocks) {
+		for (Directive d : builder.getDirectives()) {
+			if (d.isWrite() || d.isOnlyWires())
+				continue;
+			String pblock = d.getPBlockStr();
+			if (pblock != null && !pblock.trim().isEmpty())
+				fixed_pblocks.add(pblock);
+			else if (d.isSubBuilder())
+				collect(d.getSubBuilder(), path + d.getInstName() + "/", to_plan, fixed_pblocks);
+			else if (d.isMerge() && d.getDCP() != null)
+				to_plan.put(d, path + d.getInstName());
+		}
+	}
+
+	/**
+	 * Add the nets between the instances of each builder from the
+	 * {@link ConnectivityPlan connectivity plan} of its top level synth.
+	 */
+	private static void addNets(DirectiveBuilder builder, String path, Floorplanner planner, ArgsContainer args) {
+		File synth = builder.getHeader().getTopLevelSynth();
+		// sub builders usually share the synth, so it is only read once
+		NetlistRegistry.retain(synth);
+		if (synth != null && builder.getHeader().getModuleName() != null) {
+			ConnectivityPlan plan = ConnectivityPlan.forSynth(synth, builder.getHeader().getModuleName(),
+					builder.getHeader().getIII(), args.verbose());
+			if (plan != null) {
+				for (Set<String> net_insts : plan.getNetInstances()) {
+					List<String> members = new ArrayList<>();
+					for (String inst_name : net_insts)
+						members.add(path + inst_name);
+					planner.addNet(members);
+				}
+			}
+		}
+		for (Directive d : builder.getDirectives())
+			if (d.isSubBuilder())
+				addNets(d.getSubBuilder(), path + d.getInstName() + "/", planner, args);
+		NetlistRegistry.release(synth, args.verbose());
+	}
+
+	/**
+	 * Set the pblock of planned directives in the elements they were parsed from.
+	 * Inst elements are parsed into directives in order.
+	 */
+	private static void setPBlocks(Element element, DirectiveBuilder builder, Map<Directive, String> planned) {
+		Iterator<Directive> directives = builder.getDirectives().iterator();
+		for (Element elem : XMLParser.getChildElementsFromTagName(element, Directive.inst.key)) {
+			if (!directives.hasNext())
+				return;
+			Directive d = directives.next();
+			if (d.isSubBuilder())
+				setPBlocks(elem, d.getSubBuilder(), planned);
+			String pblock = planned.get(d);
+			if (pblock == null)
+				continue;
+			List<Element> pblock_elems = new ArrayList<>(
+					XMLParser.getChildElementsFromTagName(elem, Directive.INST.pblock.key));
+			if (pblock_elems.isEmpty()) {
+				Element pblock_elem = elem.getOwnerDocument().createElement(Directive.INST.pblock.key);
+				elem.appendChild(pblock_elem);
+				pblock_elems.add(pblock_elem);
+			}
+			pblock_elems.get(0).setTextContent(pblock);
+		}
+	}
+
+	private void printIfVerbose(String msg) {
+		printIfVerbose(msg, verbose);
+	}
+
+	private static void printIfVerbose(String msg, boolean verbose) {
+		if (verbose)
+			MessageGenerator.briefMessage(msg);
+	}
+}
@@ -0,0 +1,381 @@
+package main.worker;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import com.xilinx.rapidwright.design.Design;
+import com.xilinx.rapidwright.design.ModuleInst;
+import com.xilinx.rapidwright.design.SiteInst;
+import com.xilinx.rapidwright.device.Device;
+import com.xilinx.rapidwright.device.Site;
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+/**
+ * Places all module instances of a design together by simulated annealing,
+ * minimizing the wirelength of the nets between them.
+ * <p>
+ * The cost is the half perimeter (in tiles) of each net between module
+ * instances, weighted by the number of synth nets connecting the same
+ * instances, plus the distance of each instance from its anchor target (its
+ * pblock) so instances without connections stay where they were put. An
+ * instance is at the center of its sites.
+ * <p>
+ * A move puts one instance at another of its valid placements (nearby while the
+ * temperature is low) or swaps two instances of the same implementation. A move is only
+ * made if the instance's sites don't overlap sites used by the rest of the
+ * design, tracked in an {@link OccupancyMap}. The result still has to be
+ * confirmed with RapidWright when the instances are placed.
+ * <p>
+ * Runs are deterministic.
+ */
+class GlobalPlacer {
+	private static final long SEED = 1;
+	/**
+	 * Cooling factor per temperature step.
+	 */
+	private static final double COOLING = 0.9;
+	private static final int MAX_STEPS = 200;
+	private static final int MOVES_PER_INST = 20;
+	private static final double SWAP_PROBABILITY = 0.3;
+	/**
+	 * Tries to find a candidate within the move window before taking any.
+	 */
+	private static final int WINDOW_TRIES = 10;
+
+	/**
+	 * A module instance being placed.
+	 */
+	private static class Inst {
+		ModuleInst mi;
+		Object impl;
+		List<Site> candidates;
+		int[] footprint;
+		/**
+		 * Column and row offset of the center of the instance's sites from its
+		 * anchor.
+		 */
+		int center_col, center_row;
+		Point target;
+		Site site;
+		List<Integer> nets = new ArrayList<>();
+	}
+
+	private final Device device;
+	private final boolean verbose;
+	private final List<Inst> insts = new ArrayList<>();
+	private final Map<ModuleInst, Integer> inst_index = new HashMap<>();
+	/**
+	 * Instances of each net and how many synth nets connect them.
+	 */
+	private final Map<String, int[]> net_members = new LinkedHashMap<>();
+	private final Map<String, Integer> net_weights = new HashMap<>();
+	private int[][] nets;
+	private int[] weights;
+	private final Random random = new Random(SEED);
+
+	/**
+	 * @param device  Device of the design.
+	 * @param verbose Print progress.
+	 */
+	GlobalPlacer(Device device, boolean verbose) {
+		this.device = device;
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Add a placed module instance to be moved.
+	 *
+	 * @param mi         Placed instance.
+	 * @param impl       Identifies the implementation of its module (eg. the
+	 *                   cached dcp). Instances of the same implementation may be
+	 *                   swapped. May be null.
+	 * @param candidates Valid anchor sites of its module.
+	 * @param footprint  Sites of its module relative to the anchor (see
+	 *                   {@link OccupancyMap#footprint}).
+	 * @param target     Column (x) and row (y) of the tile it should be near. May
+	 *                   be null.
+	 */
+	void addInstance(ModuleInst mi, Object impl, List<Site> candidates, int[] footprint, Point target) {
+		if (mi.getAnchor() == null || candidates == null || candidates.isEmpty())
+			return;
+		Inst inst = new Inst();
+		inst.mi = mi;
+		inst.impl = impl;
+		inst.candidates = candidates;
+		inst.footprint = footprint;
+		inst.target = target;
+		inst.site = mi.getAnchor();
+		long rows = 0, cols = 0;
+		int n = 0;
+		for (SiteInst si : mi.getSiteInsts()) {
+			if (si.getSite() == null)
+				continue;
+			rows += si.getSite().getTile().getRow() - inst.site.getTile().getRow();
+			cols += si.getSite().getTile().getColumn() - inst.site.getTile().getColumn();
+			n++;
+		}
+		if (n > 0) {
+			inst.center_row = (int) (rows / n);
+			inst.center_col = (int) (cols / n);
+		}
+		inst_index.put(mi, insts.size());
+		insts.add(inst);
+	}
+
+	/**
+	 * Add a synth net connecting module instances. Instances that weren't added
+	 * are ignored.
+	 *
+	 * @param members Instances on the net.
+	 */
+	void addNet(Collection<ModuleInst> members) {
+		TreeSet<Integer> ids = new TreeSet<>();
+		for (ModuleInst mi : members) {
+			Integer i = inst_index.get(mi);
+			if (i != null)
+				ids.add(i);
+		}
+		if (ids.size() < 2)
+			return;
+		String key = ids.toString();
+		Integer w = net_weights.get(key);
+		if (w == null) {
+			int[] m = new int[ids.size()];
+			int j = 0;
+			for (int i : ids)
+				m[j++] = i;
+			net_members.put(key, m);
+			w = 0;
+		}
+		net_weights.put(key, w + 1);
+	}
+
+	/**
+	 * Anneal the placement.
+	 *
+	 * @param design Design the instances are placed in. Sites used by anything
+	 *               other than the added instances are kept free.
+	 * @return New anchor of each instance that moved.
+	 */
+	Map<ModuleInst, Site> run(Design design) {
+		Map<ModuleInst, Site> moved = new LinkedHashMap<>();
+		if (insts.size() < 2 || net_members.isEmpty())
+			return moved;
+
+		nets = new int[net_members.size()][];
+		weights = new int[nets.length];
+		int k = 0;
+		for (Map.Entry<String, int[]> e : net_members.entrySet()) {
+			nets[k] = e.getValue();
+			weights[k] = net_weights.get(e.getKey());
+			for (int i : nets[k])
+				insts.get(i).nets.add(k);
+			k++;
+		}
+
+		OccupancyMap used = new OccupancyMap(device);
+		used.claim(design.getSiteInsts());
+		for (Inst inst : insts)
+			used.release(inst.footprint, inst.site);
+		for (Inst inst : insts)
+			used.claim(inst.footprint, inst.site);
+
+		Site[] original = new Site[insts.size()];
+		for (int i = 0; i < insts.size(); i++)
+			original[i] = insts.get(i).site;
+
+		long cost = totalCost();
+		long start_cost = cost;
+		long best_cost = cost;
+		Site[] best = original.clone();
+
+		double temp = initialTemperature(used);
+		double start_temp = temp;
+		int span = Math.max(device.getRows(), device.getColumns());
+		int moves_per_step = MOVES_PER_INST * insts.size();
+		for (int step = 0; step < MAX_STEPS && temp > start_temp * 1e-3; step++) {
+			int window = Math.max(2, (int) (span * temp / start_temp));
+			int accepted = 0;
+			for (int m = 0; m < moves_per_step; m++) {
+				long delta = tryMove(used, window);
+				if (delta == Long.MIN_VALUE)
+					continue;
+				if (delta <= 0 || random.nextDouble() < Math.exp(-delta / temp)) {
+					cost += delta;
+					accepted++;
+					if (cost < best_cost) {
+						best_cost = cost;
+						for (int i = 0; i < insts.size(); i++)
+							best[i] = insts.get(i).site;
+					}
+				} else {
+					undo(used);
+				}
+			}
+			if (accepted == 0 && step > 0)
+				break;
+			temp *= COOLING;
+		}
+
+		for (int i = 0; i < insts.size(); i++)
+			if (!best[i].equals(original[i]))
+				moved.put(insts.get(i).mi, best[i]);
+		printIfVerbose("\nGlobal placement: wirelength cost " + start_cost + " -> " + best_cost + ", "
+				+ moved.size() + " of " + insts.size() + " module instances moved.");
+		return moved;
+	}
+
+	// last move, for undo
+	private int last_a = -1, last_b = -1;
+	private Site last_site_a, last_site_b;
+
+	/**
+	 * Make a random move.
+	 *
+	 * @return Change in cost. Long.MIN_VALUE if no move was made.
+	 */
+	private long tryMove(OccupancyMap used, int window) {
+		int a = random.nextInt(insts.size());
+		Inst ia = insts.get(a);
+		last_a = a;
+		last_b = -1;
+		last_site_a = ia.site;
+
+		if (random.nextDouble() < SWAP_PROBABILITY) {
+			int b = random.nextInt(insts.size());
+			Inst ib = insts.get(b);
+			// same implementation, so the same sites relative to the anchor
+			if (b != a && ia.impl != null && ia.impl.equals(ib.impl)) {
+				long before = instCost(a) + instCost(b) - sharedCost(a, b);
+				last_b = b;
+				last_site_b = ib.site;
+				ib.site = ia.site;
+				ia.site = last_site_b;
+				return instCost(a) + instCost(b) - sharedCost(a, b) - before;
+			}
+		}
+
+		Site to = pickCandidate(ia, window);
+		if (to == null || to.equals(ia.site))
+			return Long.MIN_VALUE;
+		used.release(ia.footprint, ia.site);
+		if (used.overlaps(ia.footprint, to)) {
+			used.claim(ia.footprint, ia.site);
+			return Long.MIN_VALUE;
+		}
+		long before = instCost(a);
+		ia.site = to;
+		used.claim(ia.footprint, to);
+		return instCost(a) - before;
+	}
+
+	private void undo(OccupancyMap used) {
+		Inst ia = insts.get(last_a);
+		if (last_b >= 0) {
+			Inst ib = insts.get(last_b);
+			ib.site = ia.site;
+			ia.site = last_site_a;
+			return;
+		}
+		used.release(ia.footprint, ia.site);
+		ia.site = last_site_a;
+		used.claim(ia.footprint, ia.site);
+	}
+
+	private Site pickCandidate(Inst inst, int window) {
+		int row = inst.site.getTile().getRow();
+		int col = inst.site.getTile().getColumn();
+		Site any = null;
+		for (int i = 0; i < WINDOW_TRIES; i++) {
+			Site s = inst.candidates.get(random.nextInt(inst.candidates.size()));
+			any = s;
+			if (Math.abs(s.getTile().getRow() - row) + Math.abs(s.getTile().getColumn() - col) <= window)
+				return s;
+		}
+		return any;
+	}
+
+	/**
+	 * @return Average cost change of random moves (all undone).
+	 */
+	private double initialTemperature(OccupancyMap used) {
+		long sum = 0;
+		int n = 0;
+		int span = Math.max(device.getRows(), device.getColumns());
+		for (int i = 0; i < 10 * insts.size(); i++) {
+			long delta = tryMove(used, span);
+			if (delta == Long.MIN_VALUE)
+				continue;
+			sum += Math.abs(delta);
+			n++;
+			undo(used);
+		}
+		return (n == 0 || sum == 0) ? 1 : (double) sum / n;
+	}
+
+	private long totalCost() {
+		long cost = 0;
+		for (int k = 0; k < nets.length; k++)
+			cost += netCost(k);
+		for (int i = 0; i < insts.size(); i++)
+			cost += targetCost(insts.get(i));
+		return cost;
+	}
+
+	/**
+	 * @return Cost of the nets of an instance and its distance from its target.
+	 */
+	private long instCost(int i) {
+		Inst inst = insts.get(i);
+		long cost = targetCost(inst);
+		for (int k : inst.nets)
+			cost += netCost(k);
+		return cost;
+	}
+
+	/**
+	 * @return Cost of the nets of both a and b (counted twice by instCost).
+	 */
+	private long sharedCost(int a, int b) {
+		long cost = 0;
+		for (int k : insts.get(a).nets)
+			if (Arrays.binarySearch(nets[k], b) >= 0)
+				cost += netCost(k);
+		return cost;
+	}
+
+	private long netCost(int k) {
+		int min_row = Integer.MAX_VALUE, max_row = Integer.MIN_VALUE;
+		int min_col = Integer.MAX_VALUE, max_col = Integer.MIN_VALUE;
+		for (int i : nets[k]) {
+			Inst inst = insts.get(i);
+			int row = inst.site.getTile().getRow() + inst.center_row;
+			int col = inst.site.getTile().getColumn() + inst.center_col;
+			min_row = Math.min(min_row, row);
+			max_row = Math.max(max_row, row);
+			min_col = Math.min(min_col, col);
+			max_col = Math.max(max_col, col);
+		}
+		return (long) weights[k] * ((max_row - min_row) + (max_col - min_col));
+	}
+
+	private long targetCost(Inst inst) {
+		if (inst.target == null)
+			return 0;
+		return Math.abs(inst.site.getTile().getRow() - inst.target.y)
+				+ Math.abs(inst.site.getTile().getColumn() - inst.target.x);
+	}
+
+	private void printIfVerbose(String msg) {
+		if (verbose)
+			MessageGenerator.briefMessage(msg);
+	}
+}
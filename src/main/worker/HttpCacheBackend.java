@@ -0,0 +1,95 @@
+package main.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+/**
+ * {@link CacheBackend} served over http, eg. by {@link CacheServer}.
+ * <p>
+ * GET base_url/key returns the entry as a zip (404 if it isn't stored). PUT
+ * base_url/key stores the zip in the request body.
+ */
+public class HttpCacheBackend implements CacheBackend {
+	private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+	private static final int READ_TIMEOUT_MS = 10 * 60 * 1000;
+
+	private final String base_url;
+
+	/**
+	 * @param base_url Url of the store (eg. http://host:8080/).
+	 */
+	public HttpCacheBackend(String base_url) {
+		this.base_url = base_url.endsWith("/") ? base_url : base_url + "/";
+	}
+
+	@Override
+	public boolean get(String key, File dest_dir) {
+		if (!CacheBackend.isValidKey(key))
+			return false;
+		HttpURLConnection conn = null;
+		try {
+			conn = open(key, "GET");
+			int code = conn.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_FOUND)
+				return false;
+			if (code != HttpURLConnection.HTTP_OK) {
+				MessageGenerator.briefError("Remote cache returned " + code + " for '" + key + "'.");
+				return false;
+			}
+			try (InputStream in = conn.getInputStream()) {
+				CacheArchive.unzip(in, dest_dir);
+			}
+			return true;
+		} catch (IOException ioe) {
+			MessageGenerator.briefError("Failed to get '" + key + "' from remote cache '" + base_url + "'. "
+					+ ioe.getMessage());
+			return false;
+		} finally {
+			if (conn != null)
+				conn.disconnect();
+		}
+	}
+
+	@Override
+	public boolean put(String key, File src_dir) {
+		if (!CacheBackend.isValidKey(key))
+			return false;
+		HttpURLConnection conn = null;
+		try {
+			conn = open(key, "PUT");
+			conn.setDoOutput(true);
+			conn.setChunkedStreamingMode(0);
+			conn.setRequestProperty("Content-Type", "application/zip");
+			try (OutputStream out = conn.getOutputStream()) {
+				CacheArchive.zip(src_dir, out);
+			}
+			int code = conn.getResponseCode();
+			if (code / 100 != 2) {
+				MessageGenerator.briefError("Remote cache returned " + code + " when putting '" + key + "'.");
+				return false;
+			}
+			return true;
+		} catch (IOException ioe) {
+			MessageGenerator.briefError("Failed to put '" + key + "' in remote cache '" + base_url + "'. "
+					+ ioe.getMessage());
+			return false;
+		} finally {
+			if (conn != null)
+				conn.disconnect();
+		}
+	}
+
+	private HttpURLConnection open(String key, String method) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(base_url + key).openConnection();
+		conn.setRequestMethod(method);
+		conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+		conn.setReadTimeout(READ_TIMEOUT_MS);
+		return conn;
+	}
+}
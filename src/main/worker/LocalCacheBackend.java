@@ -0,0 +1,94 @@
+package main.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+import main.util.FileUtils;
+
+/**
+ * {@link CacheBackend} in a directory that may be shared by several machines
+ * (eg. over NFS). Also the store behind {@link CacheServer}.
+ * <p>
+ * Entry with key k is stored in root/k[0..1]/k. An entry is copied into a
+ * hidden directory in root and then renamed into place, so it appears
+ * complete or not at all. Entries are never modified once stored.
+ */
+public class LocalCacheBackend implements CacheBackend {
+	private final File root;
+
+	/**
+	 * @param root Directory of the store. Created if it doesn't exist.
+	 */
+	public LocalCacheBackend(File root) {
+		this.root = root.getAbsoluteFile();
+		if (!this.root.isDirectory() && !this.root.mkdirs())
+			MessageGenerator.briefError("Failed to create remote cache directory '" + this.root.getPath() + "'.");
+	}
+
+	/**
+	 * @param key Content key of an entry.
+	 * @return Directory of the entry. Null if the key is invalid or the entry
+	 *         isn't stored.
+	 */
+	File getEntryDir(String key) {
+		if (!CacheBackend.isValidKey(key))
+			return null;
+		File dir = new File(new File(root, key.substring(0, 2)), key);
+		return dir.isDirectory() ? dir : null;
+	}
+
+	@Override
+	public boolean get(String key, File dest_dir) {
+		File dir = getEntryDir(key);
+		if (dir == null)
+			return false;
+		return copyFiles(dir, dest_dir);
+	}
+
+	@Override
+	public boolean put(String key, File src_dir) {
+		if (!CacheBackend.isValidKey(key))
+			return false;
+		if (getEntryDir(key) != null)
+			return true;
+		File incoming = new File(root, ".incoming_" + Long.toHexString(System.nanoTime()));
+		if (!incoming.mkdirs() || !copyFiles(src_dir, incoming)) {
+			FileUtils.deleteRecursively(incoming);
+			return false;
+		}
+		File dir = new File(new File(root, key.substring(0, 2)), key);
+		dir.getParentFile().mkdirs();
+		try {
+			Files.move(incoming.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ioe) {
+			// someone else stored the same entry first
+			FileUtils.deleteRecursively(incoming);
+			return dir.isDirectory();
+		}
+		return true;
+	}
+
+	/**
+	 * Copy the files (not sub directories) of one directory into another.
+	 */
+	private static boolean copyFiles(File src_dir, File dest_dir) {
+		File[] files = src_dir.listFiles();
+		if (files == null)
+			return false;
+		try {
+			for (File f : files)
+				if (f.isFile())
+					Files.copy(f.toPath(), new File(dest_dir, f.getName()).toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ioe) {
+			MessageGenerator.briefError("Failed to copy cache entry from '" + src_dir.getAbsolutePath() + "' to '"
+					+ dest_dir.getAbsolutePath() + "'.");
+			return false;
+		}
+		return true;
+	}
+}
@@ -2,18 +2,23 @@ package main.worker;
 
 import java.awt.Point;
 import java.io.File;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import com.xilinx.rapidwright.design.Cell;
 import com.xilinx.rapidwright.design.Design;
@@ -47,8 +52,14 @@ import main.tcl.TCLScript;
 import main.directive.Directive;
 import main.directive.DirectiveBuilder;
 import main.directive.DirectiveHeader;
+import main.directive.CacheIndex;
 import main.directive.DependancyMeta;
 import main.util.DesignUtils;
+import main.util.DeviceRegistry;
+import main.util.FileUtils;
+import main.util.NetlistRegistry;
+import main.util.PBlockEstimator;
+import main.util.PBlockSpec;
 
 /**
  * Main worker to cache and merge dcps.
@@ -71,9 +82,52 @@ import main.util.DesignUtils;
 public class Merger {
 	private Design design = null;
 	private Device device = null;
+	/**
+	 * Top level synth of the design and the dir to load it with. The netlist is
+	 * only loaded if needed (see {@link #getSynthNetlist(boolean)}).
+	 */
+	private File synth_dcp = null;
+	private File synth_iii = null;
+	/**
+	 * Read by this merger alone since its cells are moved into the design.
+	 */
 	private EDIFNetlist synth_netlist = null;
+	/**
+	 * Connectivity of the top cell of the top level synth.
+	 */
+	private ConnectivityPlan plan = null;
+	/**
+	 * Pins of the top level synth cell by the name of the cell instance they are
+	 * on. Built in {@link #init(Design, DirectiveHeader, ArgsContainer) init} so
+	 * each merge only connects the pins of the instance it adds. Removed once
+	 * connected.
+	 */
+	private Map<String, List<ConnectivityPlan.Pin>> synth_pins = new HashMap<>();
 	private Map<String, EDIFCellInst> wire_cells = new HashMap<>();
 	private File final_dcp = null;
+	/**
+	 * Pblock a relocated module was placed and routed in (see
+	 * {@link #getPblockPath(Directive, ArgsContainer)}).
+	 */
+	private Map<Module, String> reference_pblocks = new HashMap<>();
+	/**
+	 * Cached dcp each module was loaded from.
+	 */
+	private Map<Module, File> module_dcps = new HashMap<>();
+	/**
+	 * Sites used by the design. Created when the first module is placed.
+	 */
+	private OccupancyMap occupancy = null;
+	/**
+	 * Sites of each module relative to its anchor (see
+	 * {@link OccupancyMap#footprint(Module)}).
+	 */
+	private Map<Module, int[]> module_footprints = new HashMap<>();
+	/**
+	 * Module instances placed by insertOOC (except with the hand placer) and their
+	 * directives, for {@link #globalPlace(ArgsContainer)}.
+	 */
+	private Map<ModuleInst, Directive> placed = new LinkedHashMap<>();
 
 	/**
 	 * Name of cache folder in iii directory.
@@ -107,32 +161,72 @@ public class Merger {
 	 */
 	public void init(Design d, DirectiveHeader head, ArgsContainer args) {
 		design = d;
+		occupancy = null;
+		placed.clear();
 		design.setDesignOutOfContext(!head.isBufferedInputs());
 		design.setAutoIOBuffers(head.isBufferedInputs());
 		device = design.getDevice();
+		synth_pins.clear();
+		synth_netlist = null;
+		plan = null;
 
-		File synth_dcp = head.getTopLevelSynth();
+		synth_dcp = head.getTopLevelSynth();
+		synth_iii = head.getIII();
 		if (synth_dcp == null)
 			return;
 
-		Design synth = DesignUtils.safeReadCheckpoint(synth_dcp, args.verbose(), head.getIII());
-		synth_netlist = synth.getNetlist();
-
+		// The synth design is only loaded if there is no stored plan or the synth top
+		// has primitives to copy
 		EDIFCell top = design.getNetlist().getTopCell();
-		EDIFCell synth_top = synth_netlist.getCell(top.getName());
-		if (synth_top == null)
-			return;
+		plan = ConnectivityPlan.load(synth_dcp, top.getName(), synth_iii, args.verbose());
+		if (plan == null || plan.hasPrimitives()) {
+			EDIFCell synth_top = getSynthNetlist(args.verbose()).getCell(top.getName());
+			if (synth_top == null)
+				return;
+
+			for (EDIFCellInst synth_inst : synth_top.getCellInsts()) {
+				EDIFCell synth_cell = synth_inst.getCellType();
+				design.getNetlist().migrateCellAndSubCells(synth_cell);
+				if (synth_cell.isPrimitive())
+					new EDIFCellInst(synth_inst.getName(), synth_cell, top);
+			}
+			if (plan == null) {
+				plan = ConnectivityPlan.compile(synth_top);
+				plan.store(synth_dcp, synth_iii, args.verbose());
+			}
+		}
+
+		for (ConnectivityPlan.Port synth_port : plan.getPorts())
+			if (top.getPort(synth_port.bus_name) == null)
+				top.createPort(synth_port.name, synth_port.direction, synth_port.width);
 
-		for (EDIFCellInst synth_inst : synth_top.getCellInsts()) {
-			EDIFCell synth_cell = synth_inst.getCellType();
-			design.getNetlist().migrateCellAndSubCells(synth_cell);
-			if (synth_cell.isPrimitive())
-				new EDIFCellInst(synth_inst.getName(), synth_cell, top);
+		// Connect the top level ports and primitives now and each module as it is merged
+		synth_pins.putAll(plan.getPinsByInstance());
+		for (ConnectivityPlan.Pin synth_pin : plan.getTopPins()) {
+			EDIFPort port = top.getPort(synth_pin.port);
+			if (port != null)
+				getOrMakeEDIFNet(synth_pin.net, top).createPortInst(port, synth_pin.index);
 		}
+		if (plan.hasPrimitives())
+			for (EDIFCellInst ci : new ArrayList<>(top.getCellInsts()))
+				connectInst(ci.getName(), top);
+	}
 
-		for (EDIFPort synth_port : synth_top.getPorts())
-			if (top.getPort(synth_port.getBusName()) == null)
-				top.createPort(synth_port.getName(), synth_port.getDirection(), synth_port.getWidth());
+	/**
+	 * The netlist isn't shared through the {@link NetlistRegistry}:
+	 * migrateCellAndSubCells moves its cells into this merger's design, so
+	 * sharing it would alias the same cells between the designs of several
+	 * builders.
+	 * 
+	 * @param verbose Print extra messages.
+	 * @return Netlist of the top level synth given to
+	 *         {@link #init(Design, DirectiveHeader, ArgsContainer) init}, loaded
+	 *         the first time it is needed. Null if there is none.
+	 */
+	private EDIFNetlist getSynthNetlist(boolean verbose) {
+		if (synth_netlist == null && synth_dcp != null)
+			synth_netlist = DesignUtils.safeReadCheckpoint(synth_dcp, verbose, synth_iii).getNetlist();
+		return synth_netlist;
 	}
 
 	/**
@@ -149,13 +243,13 @@ public class Merger {
 		if (design == null) {
 			// design hasn't been initialized yet
 			if (directive.getHeader().getModuleName() != null)
-				init(new Design(directive.getHeader().getModuleName(), mod.getDevice().getDeviceName()),
+				init(DeviceRegistry.newDesign(directive.getHeader().getModuleName(), mod.getDevice().getDeviceName()),
 						directive.getHeader(), args);
 			else
-				init(new Design("top", mod.getDevice().getDeviceName()), directive.getHeader(), args);
+				init(DeviceRegistry.newDesign("top", mod.getDevice().getDeviceName()), directive.getHeader(), args);
 		}
-		insertOOC(mod, directive);
-		connectAll(args);
+		ModuleInst mi = insertOOC(mod, directive);
+		connectAll((mi == null) ? null : mi.getName(), args);
 		// TODO lock P&R here?
 	}
 
@@ -183,7 +277,7 @@ public class Merger {
 			EDIFCell top = null;
 			if (directive.getDCP() == null) {
 				top = design.getNetlist().getTopCell();
-				EDIFCell synth_top = synth_netlist.getCell(top.getName());
+				EDIFCell synth_top = getSynthNetlist(verbose).getCell(top.getName());
 				wire_cells.put(directive.getInstName(), synth_top.getCellInst(top.getName()));
 			} else {
 				Design d = DesignUtils.safeReadCheckpoint(directive.getDCP(), directive.getHeader().isVerbose(),
@@ -202,9 +296,15 @@ public class Merger {
 		boolean was_already_cached = false;
 		String cached_dcp_str = null;
 
+		// Use the implementation that was already produced this run if there is one.
+		if (directive.getImplDCP() != null) {
+			cached_dcp_str = directive.getImplDCP().getAbsolutePath();
+			was_already_cached = true;
+		}
+
 		// Try to find in cache. If is in the cache and is newer than all it's
 		// dependancies, then use it.
-		if (!directive.isRefresh()) {
+		if (cached_dcp_str == null && !directive.isRefresh()) {
 			File cached_dcp = findModuleInCache(directive, args, false);
 			if (cached_dcp != null) {
 				// TODO reuse module if already loaded?
@@ -234,19 +334,29 @@ public class Merger {
 		d.getNetlist().getTopCellInst();
 		d.getNetlist().renameNetlistAndTopCell(d.getName());
 		mod = new Module(d);
+		module_dcps.put(mod, new File(cached_dcp_str));
 
 		String mod_name = FileTools.removeFileExtension(directive.getDCP().getName());
 		mod.setName(mod_name);
 		if (directive.getPBlockStr() != null)
 			mod.setPBlock(directive.getPBlockStr());
+		if (args != null && args.relocate() && directive.getPBlockStr() != null) {
+			File meta_file = DependancyMeta.dcpToMeta(new File(cached_dcp_str));
+			String ref_pblock = (meta_file == null || !meta_file.isFile()) ? null
+					: new DependancyMeta(meta_file, verbose).getPBlock();
+			if (ref_pblock != null && !ref_pblock.equals(PBlockSpec.canonical(directive.getPBlockStr()))) {
+				printIfVerbose("Relocating '" + mod_name + "' from pblock '" + ref_pblock + "'.", verbose);
+				reference_pblocks.put(mod, ref_pblock);
+			}
+		}
 
 		if (design == null) {
 			// design hasn't been initialized yet
 			if (directive.getHeader().getModuleName() != null)
-				init(new Design(directive.getHeader().getModuleName(), mod.getDevice().getDeviceName()),
+				init(DeviceRegistry.newDesign(directive.getHeader().getModuleName(), mod.getDevice().getDeviceName()),
 						directive.getHeader(), args);
 			else
-				init(new Design("top", mod.getDevice().getDeviceName()), directive.getHeader(), args);
+				init(DeviceRegistry.newDesign("top", mod.getDevice().getDeviceName()), directive.getHeader(), args);
 		}
 		// intended to remove black box (will end up removing any previous
 		// implementation of the cell)
@@ -281,11 +391,13 @@ public class Merger {
 	 * <p>
 	 * A given design may be cached multiple times with different pblocks.
 	 * <p>
-	 * Pblock specification must be exactly consistant when searching cache
-	 * especially when a pblock string consists of multiple rectangles.
-	 * '{@literal <rect_1>}&nbsp;{@literal <rect_2>}' is not the same as
-	 * '{@literal <rect_2>}&nbsp;{@literal <rect_1>}' even though they are the same
-	 * in tcl.
+	 * Pblocks are compared in their {@link PBlockSpec canonical form}, so
+	 * '{@literal <rect_1>}&nbsp;{@literal <rect_2>}' and
+	 * '{@literal <rect_2>}&nbsp;{@literal <rect_1>}' (or two rectangles that
+	 * together make up a third) find the same cached design.
+	 * <p>
+	 * Results are remembered for the rest of the run until the entry (or an entry
+	 * it depends on) is written again (see {@link #invalidateCacheResults(File)}).
 	 * 
 	 * @param directive      Merge or build directive to search for in cache.
 	 * @param args           Arguments from command line.
@@ -296,80 +408,118 @@ public class Merger {
 	 *         date. Null otherwise.
 	 */
 	public static File findModuleInCache(Directive directive, ArgsContainer args, boolean ignore_refresh) {
-		return findModuleInCache(directive, args, new DependancyMeta.DepSet(), ignore_refresh);
+		if (!ignore_refresh && requestsRefresh(directive, args))
+			return null;
+		return resolveInCache(directive, args);
 	}
 
 	/**
-	 * Searches cache for a design assuming visited designs exist and are up to
-	 * date.
-	 * <p>
-	 * Returns null if directive is a build and any of the subdirectives are to be
-	 * refreshed.
+	 * Results of searching the cache this run.
+	 */
+	private static final ResolutionTable resolutions = new ResolutionTable();
+
+	/**
+	 * Search the cache ignoring refresh requests. Returns the remembered result if
+	 * this entry was already searched for this run.
 	 * 
-	 * @param directive      Merge or build directive to search for in cache.
-	 * @param args           Arguments from command line.
-	 * @param visited        Already visited modules.
-	 * @param ignore_refresh If true does not check whether submodules have
-	 *                       requested a refresh. If false returns null if any
-	 *                       submodule requested a refresh.
+	 * @param directive Merge or build directive to search for in cache.
+	 * @param args      Arguments from command line.
 	 * @return File if found in cache, matches dependancies and pblock, and up to
 	 *         date. Null otherwise.
+	 */
+	private static File resolveInCache(Directive directive, ArgsContainer args) {
+		File impl_dir = getCacheImplDir(directive, args);
+		if (impl_dir == null)
+			return null;
+		String key = ResolutionTable.key(impl_dir, directive.getHeader().getTopLevelSynth(),
+				directive.getHeader().getInitial());
+		ResolutionTable.Result r = resolutions.get(key);
+		if (r != null)
+			return r.dcp;
+
+		List<String> sub_keys = new ArrayList<>();
+		File cached_dcp = findModuleInCache(directive, args, sub_keys);
+		resolutions.put(key, impl_dir, cached_dcp, sub_keys);
+		return cached_dcp;
+	}
+
+	/**
+	 * Forget results of searching the cache that depend on the entry in impl_dir.
+	 * Call whenever a cache entry is (re)written.
 	 * 
-	 * @see #findModuleInCache(Directive, ArgsContainer)
+	 * @param impl_dir Directory of the cache entry.
 	 */
-	public static File findModuleInCache(Directive directive, ArgsContainer args, DependancyMeta.DepSet visited,
-			boolean ignore_refresh) {
-		if (visited == null)
-			visited = new DependancyMeta.DepSet();
+	public static void invalidateCacheResults(File impl_dir) {
+		if (impl_dir != null)
+			resolutions.invalidate(impl_dir);
+	}
 
-		File cache_dir = new File(directive.getIII(), MODULE_CACHE);
-		if (!cache_dir.isDirectory()) {
-			printIfVerbose("\nCache directory was not found at '" + cache_dir.getAbsolutePath() + "'.", args.verbose());
-			return null;
+	/**
+	 * @param directive Merge or build directive.
+	 * @param args      Arguments from command line.
+	 * @return True if directive is a build and it or any of its descendants
+	 *         requested a refresh.
+	 */
+	private static boolean requestsRefresh(Directive directive, ArgsContainer args) {
+		if (!directive.isSubBuilder())
+			return false;
+		if (directive.isRefresh()) {
+			printIfVerbose("Module " + getModuleName(directive, args) + " requested a refresh.", args.verbose());
+			return true;
 		}
+		for (Directive dir : directive.getSubBuilder().getDirectives()) {
+			if (dir.isOnlyWires() || dir.isWrite())
+				continue;
+			if (dir.isRefresh() || dir.getHeader().isRefresh()) {
+				printIfVerbose("Module " + getModuleName(dir, args) + " requested a refresh.", args.verbose());
+				return true;
+			}
+			if (requestsRefresh(dir, args))
+				return true;
+		}
+		return false;
+	}
 
+	/**
+	 * Searches cache for a design ignoring refresh requests. Subdirectives are
+	 * searched through the results remembered this run.
+	 * 
+	 * @param directive Merge or build directive to search for in cache.
+	 * @param args      Arguments from command line.
+	 * @param sub_keys  Keys of the searches of subdirectives are added to this.
+	 * @return File if found in cache, matches dependancies and pblock, and up to
+	 *         date. Null otherwise.
+	 * 
+	 * @see #findModuleInCache(Directive, ArgsContainer, boolean)
+	 */
+	private static File findModuleInCache(Directive directive, ArgsContainer args, List<String> sub_keys) {
+		File cache_dir = new File(directive.getIII(), MODULE_CACHE);
 		String module_name = getModuleName(directive, args);
 		if (module_name == null)
 			return null;
 
-		File mod_dir = new File(cache_dir, module_name);
-		if (!mod_dir.isDirectory()) {
-			printIfVerbose("\nCan't find module '" + module_name + "' in cache.", args.verbose());
-			return null;
-		}
 		String pblock = directive.getPBlockStr();
-		File impl_dir;
-		if (pblock != null) {
-			impl_dir = new File(mod_dir, getPblockPath(pblock));
-		} else {
+		if (pblock == null)
 			printIfVerbose("\nNo pblock specified for module '" + module_name + "'.", args.verbose());
-			impl_dir = mod_dir;
-		}
+		File impl_dir = getCacheImplDir(directive, args);
 
-		if (!impl_dir.isDirectory()) {
+		// read metadata (from the index unless it changed on disk)
+		CacheIndex.Entry entry = CacheIndex.forCache(cache_dir).lookup(impl_dir, module_name, args.verbose());
+		if (entry == null) {
 			printIfVerbose("\nCan't find module '" + module_name + "' in cache.", args.verbose());
 			return null;
 		}
-		File cached_dcp = new File(impl_dir, module_name + ".dcp");
-		if (!cached_dcp.isFile()) {
-			printIfVerbose("\nCan't find module '" + module_name + "' in cache.", args.verbose());
-			return null;
-		}
-		File meta_file = new File(impl_dir, DependancyMeta.META_FILENAME);
-		if (!meta_file.isFile()) {
-			printIfVerbose("\nCan't find metadata for module '" + module_name + "' in cache.", args.verbose());
-			return null;
-		}
-
-		// read metadata
-		DependancyMeta meta = new DependancyMeta(meta_file, args.verbose());
+		File cached_dcp = entry.getDCP();
+		DependancyMeta meta = entry.getMeta();
 		DependancyMeta.DepSet dep_set = new DependancyMeta.DepSet(meta);
 		DependancyMeta.DepSet dep_set2 = new DependancyMeta.DepSet(dep_set);
 
+		// the content key already covers synth and initial (even if they moved)
+		boolean content_hash = args.contentHash();
 		String s1 = directive.getHeader().getTopLevelSynth() == null ? ""
 				: directive.getHeader().getTopLevelSynth().getAbsolutePath();
 		String s2 = meta.getTopLevelSynth() == null ? "" : meta.getTopLevelSynth().getAbsolutePath();
-		if (!s1.equals(s2)) {
+		if (!content_hash && !s1.equals(s2)) {
 			printIfVerbose(
 					"Synth file from build directives '" + directive.getHeader().getTopLevelSynth()
 							+ "' does not match synth file from dependancies '" + meta.getTopLevelSynth() + "'.",
@@ -378,7 +528,7 @@ public class Merger {
 		}
 		s1 = directive.getHeader().getInitial() == null ? "" : directive.getHeader().getInitial().getAbsolutePath();
 		s2 = meta.getInitial() == null ? "" : meta.getInitial().getAbsolutePath();
-		if (!s1.equals(s2)) {
+		if (!content_hash && !s1.equals(s2)) {
 			printIfVerbose(
 					"Initial file from build directives '" + directive.getHeader().getInitial()
 							+ "' does not match initial file from dependancies '" + meta.getInitial() + "'.",
@@ -388,23 +538,13 @@ public class Merger {
 
 		// for each subbuilder directive
 		if (directive.isSubBuilder()) {
-			if (directive.isRefresh() && !ignore_refresh) {
-				printIfVerbose("Module " + module_name + " requested a refresh.", args.verbose());
-				return null;
-			}
-
 			for (Directive dir : directive.getSubBuilder().getDirectives()) {
 				if (dir.isOnlyWires())
 					continue;
-				// if sub module requested refresh don't use cached module
-				if ((dir.isRefresh() || dir.getHeader().isRefresh()) && !ignore_refresh) {
-					printIfVerbose("Module " + getModuleName(dir, args) + " requested a refresh.", args.verbose());
-					return null;
-				}
 				String sub_mod = getModuleName(dir, args);
 				String sub_pblock = (dir.getPBlockStr() == null) ? "" : dir.getPBlockStr();
 
-				String sub_pblock_plus = getPblockPath(sub_pblock);
+				String sub_pblock_plus = getPblockPath(dir, args);
 				if (!dep_set.contains(sub_mod, sub_pblock_plus)) {
 					printIfVerbose("\nModule '" + sub_mod + "' with pblock '" + sub_pblock
 							+ "' was not found the dependancies of " + module_name + ".", args.verbose());
@@ -412,21 +552,21 @@ public class Merger {
 				}
 				dep_set2.remove(sub_mod, sub_pblock_plus);
 
-				if (visited.contains(sub_mod, sub_pblock))
-					continue;
-				visited.put(sub_mod, sub_pblock);
-
-				File sub = findModuleInCache(dir, args, visited, ignore_refresh);
+				File sub_dir = getCacheImplDir(dir, args);
+				if (sub_dir != null)
+					sub_keys.add(ResolutionTable.key(sub_dir, dir.getHeader().getTopLevelSynth(),
+							dir.getHeader().getInitial()));
+				File sub = resolveInCache(dir, args);
 				if (sub == null)
 					return null;
 
-				if (!FileTools.isFileNewer(cached_dcp.getAbsolutePath(), sub.getAbsolutePath())) {
+				if (!content_hash && entry.getDCPTime() <= sub.lastModified()) {
 					printIfVerbose("\nModule '" + module_name + "' is outdated.", args.verbose());
 					return null;
 				}
 			}
 		} else {
-			if (!FileTools.isFileNewer(cached_dcp.getAbsolutePath(), directive.getDCP().getAbsolutePath())) {
+			if (!content_hash && entry.getDCPTime() <= directive.getDCP().lastModified()) {
 				printIfVerbose("\nModule '" + module_name + "' is outdated.", args.verbose());
 				return null;
 			}
@@ -437,18 +577,44 @@ public class Merger {
 			printIfVerbose("Not all dependancies of " + module_name + " were specified", args.verbose());
 			return null;
 		}
+		if (content_hash) {
+			String key = CacheKey.compute(directive, args);
+			if (key == null || !key.equals(meta.getCacheKey())) {
+				printIfVerbose("\nModule '" + module_name + "' is outdated (inputs changed).", args.verbose());
+				return null;
+			}
+		}
+		if (CacheVerifier.constraintsChanged(impl_dir, meta)) {
+			printIfVerbose("\nModule '" + module_name + "' is outdated (constraints changed).", args.verbose());
+			return null;
+		}
+		// check the files before they are loaded so a corrupt entry is rebuilt
+		String problem = CacheVerifier.verify(cached_dcp, meta, args.cacheVerifyLevel());
+		if (problem != null
+				&& CacheVerifier.quarantine(cached_dcp, args.cacheVerifyLevel(), problem, args.verbose()))
+			return null;
 		printIfVerbose("Module '" + module_name + "' was found in cache.", args.verbose());
 		return cached_dcp;
 	}
 
 	/**
 	 * Places and routes the design out of context in the specified pblock.
+	 * <p>
+	 * May be called concurrently for directives that resolve to different
+	 * {@link #getCacheImplDir(Directive, ArgsContainer) cache directories}. The
+	 * cache entry is {@link CacheEntryLock locked} while it is built and the dcp,
+	 * edif and metadata are published together once place and route succeeds. If
+	 * another thread or ShellBuilder was building the same entry, its result is
+	 * used instead (unless a refresh was requested).
+	 * <p>
+	 * Exits with an error, leaving the entry as it was, if Vivado fails or the dcp
+	 * it wrote isn't complete.
 	 * 
 	 * @param directive Merge type directive containing design for place and route.
 	 * @param args      Arguments from command line.
 	 * @return String where output was written.
 	 */
-	private static String placeRouteOOC(Directive directive, ArgsContainer args) {
+	public static String placeRouteOOC(Directive directive, ArgsContainer args) {
 		String module_name = getModuleName(directive, args);
 		if (module_name == null)
 			return null;
@@ -458,24 +624,171 @@ public class Merger {
 			printIfVerbose("\nNo pblock specified for '" + module_name + "'.", args.verbose());
 			// return null;
 		}
-		File cache_impl_dir;
-		if (directive.getPBlockStr() == null)
-			cache_impl_dir = new File(directive.getIII(), MODULE_CACHE + "/" + module_name);
-		else
-			cache_impl_dir = new File(directive.getIII(),
-					MODULE_CACHE + "/" + module_name + "/" + getPblockPath(directive.getPBlockStr()));
-		// create cache folder in iii
-		if (!cache_impl_dir.isDirectory())
-			cache_impl_dir.mkdirs();
+		File cache_impl_dir = getCacheImplDir(directive, args);
+		// create cache folder in iii (if needed) and lock it
+		try (CacheEntryLock lock = CacheEntryLock.acquire(cache_impl_dir, args.verbose())) {
+			if (lock.waited() && !directive.isRefresh()) {
+				invalidateCacheResults(cache_impl_dir);
+				File cached_dcp = findModuleInCache(directive, args, false);
+				if (cached_dcp != null) {
+					printIfVerbose("\nUsing '" + module_name + "' placed and routed by another build.",
+							args.verbose());
+					return cached_dcp.getAbsolutePath();
+				}
+			}
+			if (!directive.isRefresh() && !requestsRefresh(directive, args)
+					&& fetchRemoteEntry(directive, args, lock))
+				return new File(cache_impl_dir, module_name + ".dcp").getAbsolutePath();
+
+			File staging_dir = lock.newStagingDir();
+			PBlockEstimator.Utilization utilization = placeRouteOOC(directive, args, module_name, cache_impl_dir,
+					staging_dir);
+			String problem = "Vivado failed";
+			if (utilization != null) {
+				// write metadata for cache
+				DependancyMeta.writeMeta(staging_dir, directive, null, utilization, args);
+				problem = CacheVerifier.verify(new File(staging_dir, module_name + ".dcp"), new DependancyMeta(
+						new File(staging_dir, DependancyMeta.META_FILENAME), args.verbose()), CacheVerifier.Level.SIZE);
+			}
+			if (problem != null) {
+				FileUtils.deleteRecursively(staging_dir);
+				MessageGenerator.briefErrorAndExit("\nPlace and route of module '" + module_name + "' failed ("
+						+ problem + "). Its cache entry was left as it was.\nExiting.");
+			}
+			putRemoteEntry(staging_dir, args);
+			lock.publish(staging_dir);
+		}
+		return new File(cache_impl_dir, module_name + ".dcp").getAbsolutePath();
+	}
+
+	/**
+	 * Shared cache given on the command line. Null until first used.
+	 */
+	private static CacheBackend remote_cache = null;
+
+	/**
+	 * @param args Arguments from command line.
+	 * @return The {@link CacheBackend remote cache}. Null if none was given.
+	 */
+	private static synchronized CacheBackend getRemoteCache(ArgsContainer args) {
+		if (remote_cache == null && args != null && args.remoteCache() != null)
+			remote_cache = CacheBackend.forLocation(args.remoteCache());
+		return remote_cache;
+	}
+
+	/**
+	 * Fetch a module from the {@link CacheBackend remote cache} and promote it into
+	 * the local cache. For a build, subdirectives missing from the local cache are
+	 * fetched first since the entry is only valid with them.
+	 * 
+	 * @param directive Merge or build directive to fetch.
+	 * @param args      Arguments from command line.
+	 * @return The dcp in the local cache. Null if there is no remote cache, a
+	 *         refresh was requested or the remote cache doesn't have it.
+	 */
+	public static File findModuleInRemoteCache(Directive directive, ArgsContainer args) {
+		if (getRemoteCache(args) == null || directive.isRefresh() || requestsRefresh(directive, args))
+			return null;
+		if (directive.isSubBuilder()) {
+			for (Directive dir : directive.getSubBuilder().getDirectives()) {
+				if (dir.isOnlyWires() || dir.isWrite())
+					continue;
+				if (findModuleInCache(dir, args, true) == null && findModuleInRemoteCache(dir, args) == null)
+					return null;
+			}
+		}
+		File impl_dir = getCacheImplDir(directive, args);
+		if (impl_dir == null)
+			return null;
+		try (CacheEntryLock lock = CacheEntryLock.acquire(impl_dir, args.verbose())) {
+			if (lock.waited())
+				invalidateCacheResults(impl_dir);
+			File cached_dcp = findModuleInCache(directive, args, false);
+			if (cached_dcp != null)
+				return cached_dcp;
+			if (!fetchRemoteEntry(directive, args, lock))
+				return null;
+		}
+		return findModuleInCache(directive, args, false);
+	}
 
-		// write metadata for cache
-		DependancyMeta.writeMeta(cache_impl_dir, directive, null, args);
+	/**
+	 * Fetch the entry of directive from the remote cache into its locked local
+	 * entry. The fetched files are {@link CacheVerifier#verify checked} against
+	 * their metadata before they are published. An entry that fails is treated
+	 * as missing.
+	 * 
+	 * @return True if the entry was fetched and published.
+	 */
+	private static boolean fetchRemoteEntry(Directive directive, ArgsContainer args, CacheEntryLock lock) {
+		CacheBackend remote = getRemoteCache(args);
+		if (remote == null)
+			return false;
+		String key = CacheKey.compute(directive, args);
+		if (key == null)
+			return false;
+		File staging_dir = lock.newStagingDir();
+		File meta_file = new File(staging_dir, DependancyMeta.META_FILENAME);
+		DependancyMeta meta = (remote.get(key, staging_dir) && meta_file.isFile())
+				? new DependancyMeta(meta_file, args.verbose())
+				: null;
+		String problem = (meta == null) ? "missing"
+				: !key.equals(meta.getCacheKey()) ? "its key doesn't match"
+				: CacheVerifier.verify(new File(staging_dir, getModuleName(directive, args) + ".dcp"), meta,
+						CacheVerifier.Level.SAMPLE);
+		if (problem != null) {
+			if (meta != null)
+				printIfVerbose("\nIgnoring remote cache entry '" + key + "' (" + problem + ").", args.verbose());
+			FileUtils.deleteRecursively(staging_dir);
+			return false;
+		}
+		lock.publish(staging_dir);
+		printIfVerbose("\nFetched module '" + getModuleName(directive, args) + "' from remote cache.",
+				args.verbose());
+		return true;
+	}
 
+	/**
+	 * Put a newly built entry in the remote cache (if there is one). Only called
+	 * once the entry was verified, since an entry is never replaced once it is in
+	 * the remote cache.
+	 * 
+	 * @param staging_dir Directory holding the entry's files and metadata.
+	 * @param args        Arguments from command line.
+	 */
+	private static void putRemoteEntry(File staging_dir, ArgsContainer args) {
+		CacheBackend remote = getRemoteCache(args);
+		if (remote == null)
+			return;
+		String key = new DependancyMeta(new File(staging_dir, DependancyMeta.META_FILENAME), args.verbose())
+				.getCacheKey();
+		if (key != null && remote.put(key, staging_dir))
+			printIfVerbose("Stored '" + key + "' in remote cache.", args.verbose());
+	}
+
+	/**
+	 * Run place and route for {@link #placeRouteOOC(Directive, ArgsContainer)}.
+	 * <p>
+	 * Exits with an error before running Vivado if the pblock can't hold the
+	 * primitives of the module (see {@link PBlockEstimator}), suggesting a pblock
+	 * that can. With {@link ArgsContainer#ignorePBlockEstimate()} this is only a
+	 * warning.
+	 * 
+	 * @param staging_dir Directory the dcp and edif are written to.
+	 * @return Primitive counts of the module. Null if Vivado failed (also after
+	 *         the retry).
+	 */
+	private static PBlockEstimator.Utilization placeRouteOOC(Directive directive, ArgsContainer args, String module_name,
+			File cache_impl_dir, File staging_dir) {
 		String options = (args == null) ? "f" : args.options("f");
 		String input_dcp = directive.getDCP().getAbsolutePath();
-		String output_dcp = cache_impl_dir.getAbsolutePath() + "/" + module_name + ".dcp";
-		String tcl_script_file = directive.getIII().getAbsolutePath() + "/pblock_place_route_step.tcl";
+		String output_dcp = staging_dir.getAbsolutePath() + "/" + module_name + ".dcp";
+		String tcl_script_file = directive.getIII().getAbsolutePath() + "/" + module_name
+				+ (directive.getPBlockStr() == null ? "" : "_" + getPblockPath(directive, args))
+				+ "_pblock_place_route_step.tcl";
+		String job_pblock = (directive.getPBlockStr() == null) ? "no_pblock" : getPblockPath(directive, args);
 		TCLScript script = new TCLScript(input_dcp, output_dcp, options, tcl_script_file);
+		script.setJobKey(directive.getIII(), module_name, job_pblock);
 
 		File src_constrs = new File(cache_impl_dir, XDCWriter.CONSTRAINTS_FILE);
 		if (!(directive.isSubBuilder() && directive.getSubBuilder().getHeader().isBufferedInputs()))
@@ -491,13 +804,37 @@ public class Merger {
 
 		Design d = DesignUtils.safeReadCheckpoint(input_dcp, directive.getHeader().isVerbose(), directive.getIII());
 		EDIFCell top = d.getNetlist().getTopCell();
+		String pblock = PBlockSpec.canonical(directive.getPBlockStr());
+		if (pblock != null) {
+			List<String> invalid = PBlockSpec.parse(pblock).findInvalid(d.getDevice());
+			if (!invalid.isEmpty())
+				MessageGenerator.briefErrorAndExit("Pblock '" + directive.getPBlockStr() + "' of module '" + module_name
+						+ "' has sites that aren't in device " + d.getDevice().getName() + ": " + invalid
+						+ "\nExiting.");
+		}
+		PBlockEstimator.Utilization utilization = PBlockEstimator.Utilization.of(top);
+		if (pblock != null) {
+			PBlockEstimator estimator = PBlockEstimator.forDevice(d.getDevice());
+			List<String> shortfalls = estimator.findShortfalls(utilization, pblock);
+			if (!shortfalls.isEmpty()) {
+				Tile origin = PBlockSpec.parse(pblock).getOrigin(d.getDevice());
+				String proposal = (origin == null) ? null
+						: estimator.propose(utilization, origin.getRow(), origin.getColumn(), args.pblockSlack());
+				String msg = "Pblock '" + directive.getPBlockStr() + "' of module '" + module_name
+						+ "' is too small (" + String.join("; ", shortfalls) + ")."
+						+ ((proposal == null) ? "" : "\nA pblock that fits: '" + proposal + "'.");
+				if (!args.ignorePBlockEstimate())
+					MessageGenerator.briefErrorAndExit(msg + "\nExiting.");
+				MessageGenerator.briefError("\nWarning: " + msg + "\nPlacing and routing anyway.\n");
+			}
+		}
 
 		if (!top.getCellInsts().isEmpty()) {
-			if (directive.getPBlockStr() != null) {
+			if (pblock != null) {
 				String pblock_name = "[get_property TOP [current_design ]]" + "_pblock";
 				script.addCustomCmd("create_pblock " + pblock_name);
 				script.addCustomCmd(
-						"resize_pblock -add {" + directive.getPBlockStr() + "} [get_pblocks " + pblock_name + "]");
+						"resize_pblock -add {" + pblock + "} [get_pblocks " + pblock_name + "]");
 				script.addCustomCmd("add_cells_to_pblock [get_pblocks " + pblock_name + "] [get_cells]");
 				script.addCustomCmd("set_property CONTAIN_ROUTING 1 [get_pblocks " + pblock_name + "]");
 				script.addCustomCmd("set_property SNAPPING_MODE ROUTING [get_pblocks " + pblock_name + "]");
@@ -511,20 +848,21 @@ public class Merger {
 		script.add(TCLEnum.WRITE_EDIF);
 		// script.run();
 
-		int ret = script.run(false);
-		if (ret != 0) {
+		Integer ret = script.run(false);
+		if (ret == null || ret != 0) {
 			TCLScript script2 = new TCLScript(input_dcp, output_dcp, options, tcl_script_file);
+			script2.setJobKey(directive.getIII(), module_name, job_pblock);
 			if (directive.isSubBuilder())
 				insertEncryptedModules(input_dcp, script, directive.getSubBuilder().getDirectives(), args);
 			else
 				insertEncryptedModules(input_dcp, script, Arrays.asList(directive), args);
 
 			if (!top.getCellInsts().isEmpty()) {
-				if (directive.getPBlockStr() != null) {
+				if (pblock != null) {
 					String pblock_name = "[get_property TOP [current_design ]]" + "_pblock";
 					script2.addCustomCmd("create_pblock " + pblock_name);
 					script2.addCustomCmd(
-							"resize_pblock -add {" + directive.getPBlockStr() + "} [get_pblocks " + pblock_name + "]");
+							"resize_pblock -add {" + pblock + "} [get_pblocks " + pblock_name + "]");
 					script2.addCustomCmd("add_cells_to_pblock [get_pblocks " + pblock_name + "] [get_cells]");
 					script2.addCustomCmd("set_property CONTAIN_ROUTING 1 [get_pblocks " + pblock_name + "]");
 					script2.addCustomCmd("set_property SNAPPING_MODE ROUTING [get_pblocks " + pblock_name + "]");
@@ -534,10 +872,9 @@ public class Merger {
 			}
 			script2.add(TCLEnum.WRITE_DCP);
 			script2.add(TCLEnum.WRITE_EDIF);
-			script2.run();
+			ret = script2.run(false);
 		}
-
-		return output_dcp;
+		return (ret != null && ret == 0) ? utilization : null;
 	}
 
 	/**
@@ -568,6 +905,67 @@ public class Merger {
 		return module_name;
 	}
 
+	/**
+	 * Find the directory in the cache where the implementation of a directive is
+	 * stored. The directory is not created.
+	 * 
+	 * @param directive Merge or build directive.
+	 * @param args      Arguments from command line.
+	 * @return Directory of the cache entry. Null if the module name can't be
+	 *         determined.
+	 */
+	public static File getCacheImplDir(Directive directive, ArgsContainer args) {
+		String module_name = getModuleName(directive, args);
+		if (module_name == null)
+			return null;
+
+		File mod_dir = new File(new File(directive.getIII(), MODULE_CACHE), module_name);
+		if (directive.getPBlockStr() == null)
+			return mod_dir;
+		return new File(mod_dir, getPblockPath(directive, args));
+	}
+
+	/**
+	 * Find the part a directive is implemented for from its dcp (or the dcps of
+	 * its descendants, or the synth or initial dcp).
+	 * 
+	 * @return Part name. Null if no dcp names its part.
+	 */
+	private static String findPartName(Directive directive) {
+		String part = DesignUtils.readPartName(directive.getDCP());
+		if (part == null && directive.isSubBuilder())
+			for (Directive dir : directive.getSubBuilder().getDirectives())
+				if (part == null && !dir.isOnlyWires() && !dir.isWrite())
+					part = findPartName(dir);
+		if (part == null)
+			part = DesignUtils.readPartName(directive.getHeader().getTopLevelSynth());
+		if (part == null)
+			part = DesignUtils.readPartName(directive.getHeader().getInitial());
+		return part;
+	}
+
+	/**
+	 * @return Site in the directive's pblock at the same place relative to it as
+	 *         the module's anchor is to the pblock the module was placed and routed
+	 *         in. Null if the module isn't being relocated or there is no such
+	 *         site.
+	 */
+	private Site getRelocatedAnchor(Module mod, Directive directive) {
+		String ref_pblock = reference_pblocks.get(mod);
+		Site ref_anchor = mod.getAnchor();
+		if (ref_pblock == null || ref_anchor == null || directive.getPBlockStr() == null)
+			return null;
+		Tile ref_origin = PBlockSpec.parse(ref_pblock).getOrigin(device);
+		Tile origin = PBlockSpec.parse(directive.getPBlockStr()).getOrigin(device);
+		if (ref_origin == null || origin == null)
+			return null;
+		Tile t = device.getTile(ref_anchor.getTile().getRow() + origin.getRow() - ref_origin.getRow(),
+				ref_anchor.getTile().getColumn() + origin.getColumn() - ref_origin.getColumn());
+		if (t == null || t.getSites() == null || ref_anchor.getSiteIndexInTile() >= t.getSites().length)
+			return null;
+		return t.getSites()[ref_anchor.getSiteIndexInTile()];
+	}
+
 	private Point getAnchorTarget(Directive directive) {
 		if (directive == null)
 			return null;
@@ -653,16 +1051,24 @@ public class Merger {
 		mi = design.createModuleInst(mi_name, mod);
 		mi.getCellInst().setCellType(mod.getNetlist().getTopCell());
 
-		List<Site> valid_placements = new ArrayList<Site>();
-		// TODO verify that storing and loading placements succeeds properly
-		// loadValidSitesFromMeta(valid_placements, directive, device);
-		if (valid_placements.size() <= 0) {
-			printIfVerbose("No valid placements found in metadata. Finding all valid placements for module '"
-					+ mod.getName() + "'", directive.getHeader().isVerbose());
-			valid_placements = mi.getAllValidPlacements();
-			// writeValidSitesToMeta(valid_placements, directive);
+		// a relocated module goes to the same place in its pblock as in the pblock it
+		// was placed and routed in
+		Site relocated = getRelocatedAnchor(mod, directive);
+		if (relocated != null && !getOccupancy().overlaps(getFootprint(mod), relocated)
+				&& mod.isValidPlacement(relocated, device, design)) {
+			printIfVerbose("Placing relocated module instance '" + mi.getName() + "' at '" + relocated.getName()
+					+ "'.", directive.getHeader().isVerbose());
+			mi.place(relocated);
+			getOccupancy().claim(mi.getSiteInsts());
+			if (directive.isHandPlacer())
+				HandPlacer.openDesign(design);
+			else
+				placed.put(mi, directive);
+			return mi;
 		}
 
+		List<Site> valid_placements = getValidPlacements(mi, directive.getHeader().isVerbose());
+
 		int left_pblock_row = 0, bot_pblock_col = 0;
 		// if (directive.getPBlockStr() != null) {
 		// PBlock block = new PBlock(device, directive.getPBlockStr());
@@ -699,21 +1105,18 @@ public class Merger {
 			left_pblock_row = p.y;
 		}
 
-		int min_manhattan_distance = Integer.MAX_VALUE;
-		for (Site s : valid_placements) {
-			Tile t = s.getTile();
-			int distance = java.lang.Math.abs(t.getRow() - left_pblock_row)
-					+ java.lang.Math.abs(t.getColumn() - bot_pblock_col);
-			if (mod.isValidPlacement(s, device, design) && distance < min_manhattan_distance) {
-				anchor_site = s;
-				min_manhattan_distance = distance;
-			}
-		}
+		// validating is the expensive part, so try the closest sites first and stop at
+		// the first that fits
+		anchor_site = findFirstValidPlacement(mod,
+				sortByDistance(valid_placements, left_pblock_row, bot_pblock_col));
 
 		if (anchor_site != null) {
 			printIfVerbose("Placing module instance '" + mi.getName() + "' at '" + anchor_site.getName() + "'.",
 					directive.getHeader().isVerbose());
 			mi.place(anchor_site);
+			getOccupancy().claim(mi.getSiteInsts());
+			if (!directive.isHandPlacer())
+				placed.put(mi, directive);
 		} else
 			MessageGenerator.briefError("\nCould not find anywhere to place module instance '" + mi_name + "'.\n");
 
@@ -748,55 +1151,211 @@ public class Merger {
 	}
 
 	/**
-	 * Read in the sites that have been stored as valid sites in the metadata file.
+	 * Valid placements only depend on the implementation and device, so they are
+	 * stored beside the cached dcp (see {@link ValidSitesIndex}). They are the
+	 * anchors where the module's {@link ModuleSignature signature} matches the
+	 * device, or all valid placements from RapidWright if it has no signature.
 	 * 
-	 * @param valid_placements Append valid placements retrieved from metadata to
-	 *                         this list.
-	 * @param directive        The module to which the metadata belongs.
-	 * @param device           Device for the design. Used to parse strings into
-	 *                         Sites.
+	 * @param mi      Instance of the module.
+	 * @param verbose Print extra messages.
+	 * @return Candidate anchor sites of the instance's module.
 	 */
-	public static void loadValidSitesFromMeta(List<Site> valid_placements, Directive directive, Device device) {
-		File impl_dir = XDCWriter.findOrMakeCacheDir(directive, null);
-		File metadata = new File(impl_dir, DependancyMeta.META_FILENAME);
+	private List<Site> getValidPlacements(ModuleInst mi, boolean verbose) {
+		Module mod = mi.getModule();
+		File cached_dcp = module_dcps.get(mod);
+		List<Site> valid_placements = (cached_dcp == null) ? null : ValidSitesIndex.load(cached_dcp, device, verbose);
+		if (valid_placements == null) {
+			printIfVerbose("No valid placements found in the cache. Finding all valid placements for module '"
+					+ mod.getName() + "'", verbose);
+			ModuleSignature sig = ModuleSignature.forModule(mod, cached_dcp, device, verbose);
+			valid_placements = (sig == null) ? mi.getAllValidPlacements() : sig.findAnchors(device);
+			if (cached_dcp != null)
+				ValidSitesIndex.store(cached_dcp, device, valid_placements, verbose);
+		}
+		return valid_placements;
+	}
 
-		if (!metadata.isFile()) {
-			printIfVerbose(
-					"Can't load valid sites from metadata file '" + metadata.getAbsolutePath() + "'. It doesn't exist.",
-					directive.getHeader().isVerbose());
+	/**
+	 * Move the module instances placed so far to shorten the nets between them
+	 * (see {@link GlobalPlacer}). Nets come from the top level synth. Instances
+	 * placed with the hand placer are not moved.
+	 * <p>
+	 * Each new anchor is checked with RapidWright before placing. An instance
+	 * whose new anchor isn't valid goes back to its old one, or else to the
+	 * closest valid anchor to its target.
+	 * 
+	 * @param args Arguments from command line.
+	 */
+	public void globalPlace(ArgsContainer args) {
+		if (design == null || plan == null || placed.size() < 2) {
+			printIfVerbose("\nNothing to place globally (needs a top level synth and two module instances).",
+					args.verbose());
 			return;
 		}
-		printIfVerbose("Loading valid sites from metadata.", directive.getHeader().isVerbose());
 
-		DependancyMeta meta = new DependancyMeta(metadata, directive.getHeader().isVerbose());
-		for (String site_str : meta.getValidSiteStrs()) {
-			Site s = device.getSite(site_str);
-			if (s != null)
-				valid_placements.add(s);
+		GlobalPlacer placer = new GlobalPlacer(device, args.verbose());
+		Map<String, ModuleInst> by_name = new HashMap<>();
+		for (Entry<ModuleInst, Directive> e : placed.entrySet()) {
+			ModuleInst mi = e.getKey();
+			placer.addInstance(mi, module_dcps.get(mi.getModule()), getValidPlacements(mi, args.verbose()),
+					getFootprint(mi.getModule()), getAnchorTarget(e.getValue()));
+			by_name.put(mi.getName(), mi);
+		}
+		for (Set<String> net_insts : plan.getNetInstances()) {
+			List<ModuleInst> members = new ArrayList<>();
+			for (String inst_name : net_insts) {
+				ModuleInst mi = by_name.get(inst_name);
+				if (mi != null)
+					members.add(mi);
+			}
+			placer.addNet(members);
+		}
+
+		Map<ModuleInst, Site> moved = placer.run(design);
+		Map<ModuleInst, Site> old_anchors = new HashMap<>();
+		for (ModuleInst mi : moved.keySet()) {
+			old_anchors.put(mi, mi.getAnchor());
+			mi.unplace();
+		}
+		// The moved instances' old sites are free now
+		occupancy = null;
+		for (Entry<ModuleInst, Site> e : moved.entrySet()) {
+			ModuleInst mi = e.getKey();
+			Module mod = mi.getModule();
+			Site site = e.getValue();
+			if (!mod.isValidPlacement(site, device, design))
+				site = old_anchors.get(mi);
+			if (site == null || !mod.isValidPlacement(site, device, design)) {
+				Point p = getAnchorTarget(placed.get(mi));
+				site = findFirstValidPlacement(mod, sortByDistance(getValidPlacements(mi, args.verbose()),
+						(p == null) ? 0 : p.y, (p == null) ? 0 : p.x));
+			}
+			if (site == null) {
+				MessageGenerator.briefError("\nCould not find anywhere to place module instance '" + mi.getName()
+						+ "' after global placement.\n");
+				continue;
+			}
+			printIfVerbose("Moving module instance '" + mi.getName() + "' to '" + site.getName() + "'.",
+					args.verbose());
+			mi.place(site);
+			getOccupancy().claim(mi.getSiteInsts());
 		}
 	}
 
 	/**
-	 * Append a list of Sites to a metadata file.
-	 * <p>
-	 * To do this, the metadata file is read in, then overwritten with the loaded
-	 * results plus the valid_placements.
+	 * Checks candidate anchors for {@link #findFirstValidPlacement}.
+	 */
+	private static final ForkJoinPool placement_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	/**
+	 * Number of candidates one task checks by itself.
+	 */
+	private static final int PLACEMENT_GRAIN = 4;
+
+	/**
+	 * Find the first candidate that is a valid placement of mod in the current
+	 * design. Candidates are checked concurrently in batches (in order) so the
+	 * result is the same as checking them one at a time.
 	 * 
-	 * @param valid_placements Write this list of placements to the metadata.
-	 * @param directive        The module to which the metadata belongs.
+	 * @param mod        Module to place.
+	 * @param candidates Anchor sites in order of preference.
+	 * @return First valid anchor site. Null if none is valid.
 	 */
-	public static void writeValidSitesToMeta(List<Site> valid_placements, Directive directive) {
-		File impl_dir = XDCWriter.findOrMakeCacheDir(directive, null);
-		File metadata = new File(impl_dir, DependancyMeta.META_FILENAME);
-
-		printIfVerbose("Writing valid sites to metadata.", directive.getHeader().isVerbose());
-
-		DependancyMeta meta = new DependancyMeta(metadata, directive.getHeader().isVerbose());
-		ArrayDeque<String> site_strs = new ArrayDeque<>();
-		for (Site s : valid_placements)
-			site_strs.offer(s.getName());
-		meta.setValidSites(site_strs);
-		meta.writeMeta(impl_dir, null);
+	private Site findFirstValidPlacement(Module mod, List<Site> candidates) {
+		int batch = PLACEMENT_GRAIN * placement_pool.getParallelism();
+		OccupancyMap occupancy = getOccupancy();
+		int[] footprint = getFootprint(mod);
+		for (int lo = 0; lo < candidates.size(); lo += batch) {
+			int hi = Math.min(candidates.size(), lo + batch);
+			int i = placement_pool.invoke(new FirstValidPlacement(mod, occupancy, footprint, candidates, lo, hi));
+			if (i >= 0)
+				return candidates.get(i);
+		}
+		return null;
+	}
+
+	/**
+	 * @return Map of the sites used by the design, created from the design's site
+	 *         instances the first time.
+	 */
+	private OccupancyMap getOccupancy() {
+		if (occupancy == null) {
+			occupancy = new OccupancyMap(device);
+			occupancy.claim(design.getSiteInsts());
+		}
+		return occupancy;
+	}
+
+	private int[] getFootprint(Module mod) {
+		int[] footprint = module_footprints.get(mod);
+		if (footprint == null) {
+			footprint = OccupancyMap.footprint(mod);
+			module_footprints.put(mod, footprint);
+		}
+		return footprint;
+	}
+
+	/**
+	 * Index of the first valid placement in a range of candidates. -1 if there is
+	 * none. Candidates that would land on a used site are skipped without asking
+	 * RapidWright. Only reads the design.
+	 */
+	private class FirstValidPlacement extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		private final Module mod;
+		private final OccupancyMap occupancy;
+		private final int[] footprint;
+		private final List<Site> candidates;
+		private final int lo, hi;
+
+		FirstValidPlacement(Module mod, OccupancyMap occupancy, int[] footprint, List<Site> candidates, int lo,
+				int hi) {
+			this.mod = mod;
+			this.occupancy = occupancy;
+			this.footprint = footprint;
+			this.candidates = candidates;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (hi - lo <= PLACEMENT_GRAIN) {
+				for (int i = lo; i < hi; i++)
+					if (!occupancy.overlaps(footprint, candidates.get(i))
+							&& mod.isValidPlacement(candidates.get(i), device, design))
+						return i;
+				return -1;
+			}
+			int mid = (lo + hi) >>> 1;
+			FirstValidPlacement left = new FirstValidPlacement(mod, occupancy, footprint, candidates, lo, mid);
+			left.fork();
+			int right = new FirstValidPlacement(mod, occupancy, footprint, candidates, mid, hi).compute();
+			int first = left.join();
+			return (first >= 0) ? first : right;
+		}
+	}
+
+	/**
+	 * @param sites Sites to sort. Not modified.
+	 * @param row   Row of the target tile.
+	 * @param col   Column of the target tile.
+	 * @return Sites in increasing Manhattan distance of their tile from the target
+	 *         tile. Sites at the same distance keep their order.
+	 */
+	private static List<Site> sortByDistance(List<Site> sites, final int row, final int col) {
+		final Map<Site, Integer> distances = new HashMap<>();
+		for (Site s : sites) {
+			Tile t = s.getTile();
+			distances.put(s, Math.abs(t.getRow() - row) + Math.abs(t.getColumn() - col));
+		}
+		List<Site> sorted = new ArrayList<>(sites);
+		Collections.sort(sorted, new Comparator<Site>() {
+			@Override
+			public int compare(Site a, Site b) {
+				return Integer.compare(distances.get(a), distances.get(b));
+			}
+		});
+		return sorted;
 	}
 
 	/**
@@ -815,22 +1374,26 @@ public class Merger {
 	}
 
 	/**
-	 * Use synth_netlist loaded in
+	 * Use the connectivity plan of the top level synth loaded in
 	 * {@link #init(Design, DirectiveHeader, ArgsContainer) init} as template to
-	 * connect module instances together and to top level ports.
+	 * connect a new module instance and any new wire cells to the nets of the
+	 * design. Nets are shared by name, so pins of instances merged later join the
+	 * same nets.
 	 * 
-	 * @param args Arguments from the command line.
+	 * @param inst_name Name of the instance just merged. Null if none.
+	 * @param args      Arguments from the command line.
 	 */
-	private void connectAll(ArgsContainer args) {
-		if (synth_netlist == null) {
+	private void connectAll(String inst_name, ArgsContainer args) {
+		if (plan == null) {
 			printIfVerbose("\nNo top level synth loaded. Can't make any connections.", args.verbose());
 			return;
 		}
 
 		EDIFCell top = design.getNetlist().getTopCell();
-		EDIFCell synth_top = synth_netlist.getCell(top.getName());
 
-		for (Entry<String, EDIFCellInst> e : wire_cells.entrySet()) {
+		Iterator<Entry<String, EDIFCellInst>> it = wire_cells.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<String, EDIFCellInst> e = it.next();
 			String ci_name = e.getKey();
 			EDIFCellInst synth_ci = e.getValue();
 
@@ -845,7 +1408,7 @@ public class Merger {
 			EDIFDesign edifdsgn = new EDIFDesign(cell_name);
 			edifdsgn.setTopCell(cell);
 			edifnetlist.setDesign(edifdsgn);
-			Design d = new Design(ci_name, design.getPartName());
+			Design d = DeviceRegistry.newDesign(ci_name, design.getPartName());
 			d.setNetlist(edifnetlist);
 
 			// EDIFCell sub_top = d.getNetlist().getTopCell();
@@ -866,26 +1429,32 @@ public class Merger {
 			Module mod = new Module(d);
 			ModuleInst mi = design.createModuleInst(ci_name, mod);
 			mi.getCellInst().setCellType(mod.getNetlist().getTopCell());
-			wire_cells.remove(ci_name);
+			it.remove();
+			connectInst(ci_name, top);
 		}
 
-		for (EDIFNet synth_net : synth_top.getNets()) {
-			for (EDIFPortInst synth_pi : synth_net.getPortInsts()) {
-				if (synth_pi.isTopLevelPort()) {
-					EDIFPort port = top.getPort(synth_pi.getPort().getBusName());
-					if (port == null)
-						continue;
-					getOrMakeEDIFNet(synth_net.getName(), top).createPortInst(port, synth_pi.getIndex());
-				} else {
-					EDIFCellInst ci = top.getCellInst(synth_pi.getCellInst().getName());
-					if (ci == null)
-						continue;
-					EDIFPort port = ci.getCellType().getPort(synth_pi.getPort().getBusName());
-					if (port == null)
-						continue;
-					getOrMakeEDIFNet(synth_net.getName(), top).createPortInst(port, synth_pi.getIndex(), ci);
-				}
-			}
+		if (inst_name != null)
+			connectInst(inst_name, top);
+	}
+
+	/**
+	 * Connect the pins of a cell instance of the design as in the top level synth.
+	 * Each instance is only connected once.
+	 * 
+	 * @param ci_name Name of the cell instance in top (and in the synth top).
+	 * @param top     Top cell of the design.
+	 */
+	private void connectInst(String ci_name, EDIFCell top) {
+		EDIFCellInst ci = top.getCellInst(ci_name);
+		if (ci == null)
+			return;
+		List<ConnectivityPlan.Pin> pins = synth_pins.remove(ci_name);
+		if (pins == null)
+			return;
+		for (ConnectivityPlan.Pin synth_pin : pins) {
+			EDIFPort port = ci.getCellType().getPort(synth_pin.port);
+			if (port != null)
+				getOrMakeEDIFNet(synth_pin.net, top).createPortInst(port, synth_pin.index, ci);
 		}
 	}
 
@@ -896,6 +1465,11 @@ public class Merger {
 	 * Calls
 	 * {@link #insertEncryptedModules(TCLScript, DirectiveBuilder, ArgsContainer)
 	 * insertEncryptedModules}.
+	 * <p>
+	 * The cache directory of inout_file is {@link CacheEntryLock locked} and the
+	 * routed dcp and edif replace the input once place and route succeeds. Exits
+	 * with an error, leaving the input as it was, if Vivado fails or the dcp it
+	 * wrote isn't complete.
 	 * 
 	 * @param inout_file File where input dcp is located and where final design will
 	 *                   be written.
@@ -905,39 +1479,53 @@ public class Merger {
 	 */
 	public void placeAndRoute(File inout_file, DirectiveBuilder directive_builder, ArgsContainer args) {
 		DirectiveHeader head = directive_builder.getHeader();
-
-		String options = (args == null) ? "f" : args.options("f");
-		String inout_dcp = inout_file.getAbsolutePath();
-		String tcl_script_file = head.getIII().getAbsolutePath() + "/place_route_step.tcl";
-
-		TCLScript script = new TCLScript(inout_dcp, inout_dcp, options, tcl_script_file);
-		insertEncryptedModules(inout_dcp, script, directive_builder.getDirectives(), args);
-
 		File cache_impl_dir = inout_file.getParentFile();
-		File src_constrs = new File(cache_impl_dir, XDCWriter.CONSTRAINTS_FILE);
-		if (!head.isBufferedInputs())
-			script.add(TCLEnum.READ_XDC, args.options(), "-unmanaged -mode out_of_context",
-					src_constrs.getAbsolutePath());
-		else
-			script.add(TCLEnum.READ_XDC, args.options(), "-unmanaged", src_constrs.getAbsolutePath());
+		try (CacheEntryLock lock = CacheEntryLock.acquire(cache_impl_dir, args.verbose())) {
+			File staging_dir = lock.newStagingDir();
+			String options = (args == null) ? "f" : args.options("f");
+			String inout_dcp = inout_file.getAbsolutePath();
+			String output_dcp = new File(staging_dir, inout_file.getName()).getAbsolutePath();
+			String tcl_script_file = head.getIII().getAbsolutePath() + "/" + head.getModuleName()
+					+ "_place_route_step.tcl";
+
+			TCLScript script = new TCLScript(inout_dcp, output_dcp, options, tcl_script_file);
+			script.setJobKey(head.getIII(), head.getModuleName(), "merged");
+			insertEncryptedModules(inout_dcp, script, directive_builder.getDirectives(), args);
 
-		// todo opt?
-		// script.add(TCLEnum.OPT);
-		script.add(TCLEnum.PLACE);
-		script.add(TCLEnum.ROUTE);
-		script.add(TCLEnum.WRITE_DCP);
-		script.add(TCLEnum.WRITE_EDIF);
-		// script.run();
+			File src_constrs = new File(cache_impl_dir, XDCWriter.CONSTRAINTS_FILE);
+			if (!head.isBufferedInputs())
+				script.add(TCLEnum.READ_XDC, args.options(), "-unmanaged -mode out_of_context",
+						src_constrs.getAbsolutePath());
+			else
+				script.add(TCLEnum.READ_XDC, args.options(), "-unmanaged", src_constrs.getAbsolutePath());
 
-		int ret = script.run(false);
-		if (ret != 0) {
-			TCLScript script2 = new TCLScript(inout_dcp, inout_dcp, options, tcl_script_file);
-			insertEncryptedModules(inout_dcp, script, directive_builder.getDirectives(), args);
-			script2.add(TCLEnum.PLACE);
-			script2.add(TCLEnum.ROUTE);
-			script2.add(TCLEnum.WRITE_DCP);
-			script2.add(TCLEnum.WRITE_EDIF);
-			script2.run();
+			// todo opt?
+			// script.add(TCLEnum.OPT);
+			script.add(TCLEnum.PLACE);
+			script.add(TCLEnum.ROUTE);
+			script.add(TCLEnum.WRITE_DCP);
+			script.add(TCLEnum.WRITE_EDIF);
+			// script.run();
+
+			Integer ret = script.run(false);
+			if (ret == null || ret != 0) {
+				TCLScript script2 = new TCLScript(inout_dcp, output_dcp, options, tcl_script_file);
+				script2.setJobKey(head.getIII(), head.getModuleName(), "merged");
+				insertEncryptedModules(inout_dcp, script, directive_builder.getDirectives(), args);
+				script2.add(TCLEnum.PLACE);
+				script2.add(TCLEnum.ROUTE);
+				script2.add(TCLEnum.WRITE_DCP);
+				script2.add(TCLEnum.WRITE_EDIF);
+				ret = script2.run(false);
+			}
+			String problem = (ret == null || ret != 0) ? "Vivado failed"
+					: CacheVerifier.verifyDCP(new File(output_dcp));
+			if (problem != null) {
+				FileUtils.deleteRecursively(staging_dir);
+				MessageGenerator.briefErrorAndExit("\nPlace and route of '" + inout_dcp + "' failed (" + problem
+						+ "). It was left as it was.\nExiting.");
+			}
+			lock.publish(staging_dir);
 		}
 	}
 
@@ -1000,14 +1588,45 @@ public class Merger {
 	}
 
 	/**
-	 * Transform pblock path into a path that is acceptable to vivado but is still
-	 * human readable as well.
+	 * Transform pblock into the name of its directory in the cache. Pblocks that
+	 * cover the same sites get the same name however they are written (see
+	 * {@link PBlockSpec}). The name is a short hash so it stays usable as a path
+	 * for pblocks of many rectangles; the readable pblock is stored in the
+	 * metadata of the entry.
 	 * 
 	 * @param pblock PBlock string to transform.
-	 * @return A human and vivado readable representation of pblock.
+	 * @return Directory name for pblock. Empty if pblock is null or empty.
 	 */
 	public static String getPblockPath(String pblock) {
-		return pblock == null ? "" : pblock.replaceAll("_", "").replaceAll(":", "_").replaceAll(" ", "__");
+		PBlockSpec spec = PBlockSpec.parse(pblock);
+		return (spec == null || spec.toString().isEmpty()) ? "" : spec.getDirName();
+	}
+
+	/**
+	 * Directory name of the pblock of a directive in the cache.
+	 * <p>
+	 * With {@link ArgsContainer#relocate() relocate} it is the
+	 * {@link PBlockSpec#getFootprintDirName(Device) footprint} of the pblock, so
+	 * one implementation is shared by all pblocks of the same shape and moved to
+	 * each of them when merged. The first pblock it is placed and routed in is
+	 * stored in the metadata as its reference. Pblocks without a footprint (eg.
+	 * clock regions, or no dcp names its part) fall back to
+	 * {@link #getPblockPath(String)}.
+	 * 
+	 * @param directive Merge or build directive.
+	 * @param args      Arguments from command line. May be null.
+	 * @return Directory name for the directive's pblock. Empty if it has none.
+	 */
+	public static String getPblockPath(Directive directive, ArgsContainer args) {
+		String pblock = directive.getPBlockStr();
+		if (args == null || !args.relocate() || PBlockSpec.parse(pblock) == null)
+			return getPblockPath(pblock);
+		String footprint = PBlockSpec.parse(pblock).getFootprintDirName(findPartName(directive));
+		if (footprint == null) {
+			printIfVerbose("Pblock '" + pblock + "' can't be relocated.", args.verbose());
+			return getPblockPath(pblock);
+		}
+		return footprint;
 	}
 
 	/**
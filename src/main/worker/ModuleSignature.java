@@ -0,0 +1,341 @@
+package main.worker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.xilinx.rapidwright.design.Module;
+import com.xilinx.rapidwright.design.SiteInst;
+import com.xilinx.rapidwright.device.Device;
+import com.xilinx.rapidwright.device.Site;
+import com.xilinx.rapidwright.device.SiteTypeEnum;
+import com.xilinx.rapidwright.device.Tile;
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+import main.util.FileDigest;
+import main.util.FileUtils;
+
+/**
+ * Sites a module uses, relative to its anchor: the X and Y offset of each
+ * site's tile, the tile's root name, the site's index in the tile and its type.
+ * <p>
+ * Offsets are in the coordinates of tile names (ROOT_X#Y#), which is how
+ * RapidWright moves a module's sites to a new anchor. Grid rows and columns
+ * would not work: clock rows and other tiles between them shift the grid
+ * differently in different clock regions.
+ * <p>
+ * An anchor can only hold the module if every site lands on a tile of the same
+ * root name and a site of the same type, so the anchors a signature {@link #findAnchors(Device)
+ * matches} are the candidates for placing the module. They are found once per
+ * device and signature and looked up by the signature's hash after that, so
+ * modules of the same shape (eg. one implementation in several pblocks of the
+ * same {@link main.util.PBlockSpec#getFootprintDirName footprint}) share them.
+ * Whether the module can be placed at a candidate in the current design is
+ * still checked with RapidWright.
+ * <p>
+ * The signature of a cached module is stored in {@value #SIGNATURE_FILE}
+ * beside its dcp, with the device name and the
+ * {@link FileDigest#sampleDigest(File) sample digest} of the dcp like
+ * {@link ValidSitesIndex}. Site types are stored by name since enum ordinals
+ * may change between RapidWright versions.
+ */
+class ModuleSignature {
+	static final String SIGNATURE_FILE = "signature.bin";
+	private static final int MAGIC = 0x53424d53; // "SBMS"
+	// 2: offsets in tile name coordinates instead of grid rows and columns
+	private static final int VERSION = 2;
+	private static final long HASH_BASE = 1000003;
+
+	/**
+	 * Candidate anchors by device name and signature hash.
+	 */
+	private static final Map<String, List<Site>> anchors = new ConcurrentHashMap<>();
+	/**
+	 * Signature each entry of anchors was found for, to catch hash collisions.
+	 */
+	private static final Map<String, ModuleSignature> anchor_owners = new ConcurrentHashMap<>();
+
+	/**
+	 * Tile root names and site type names. The codes below are indices into this.
+	 */
+	private final String[] types;
+	// one entry per site, the anchor first
+	private final int[] ys;
+	private final int[] xs;
+	private final int[] indices;
+	private final int[] tile_roots;
+	private final int[] site_types;
+	private final long hash;
+
+	private ModuleSignature(String[] types, int[] ys, int[] xs, int[] indices, int[] tile_roots,
+			int[] site_types) {
+		this.types = types;
+		this.ys = ys;
+		this.xs = xs;
+		this.indices = indices;
+		this.tile_roots = tile_roots;
+		this.site_types = site_types;
+		long h = 0;
+		for (int i = 0; i < ys.length; i++) {
+			h = h * HASH_BASE + ys[i];
+			h = h * HASH_BASE + xs[i];
+			h = h * HASH_BASE + indices[i];
+			h = h * HASH_BASE + types[tile_roots[i]].hashCode();
+			h = h * HASH_BASE + types[site_types[i]].hashCode();
+		}
+		hash = h;
+	}
+
+	/**
+	 * @param mod Module with an anchor.
+	 * @return Signature of mod. Null if it has no anchor or no sites.
+	 */
+	static ModuleSignature of(Module mod) {
+		final Site anchor = mod.getAnchor();
+		Collection<SiteInst> site_insts = mod.getSiteInsts();
+		if (anchor == null || site_insts == null)
+			return null;
+		Set<Site> unique = new LinkedHashSet<>();
+		unique.add(anchor);
+		for (SiteInst si : site_insts)
+			if (si.getSite() != null && si.getSite().getTile() != null)
+				unique.add(si.getSite());
+		List<Site> sites = new ArrayList<>(unique);
+		int a_y = anchor.getTile().getTileYCoordinate();
+		int a_x = anchor.getTile().getTileXCoordinate();
+		// anchor first, then by offset so the signature doesn't depend on site order
+		Collections.sort(sites, new Comparator<Site>() {
+			@Override
+			public int compare(Site a, Site b) {
+				if (a.equals(b))
+					return 0;
+				if (a.equals(anchor))
+					return -1;
+				if (b.equals(anchor))
+					return 1;
+				int c = Integer.compare(a.getTile().getTileYCoordinate(), b.getTile().getTileYCoordinate());
+				if (c == 0)
+					c = Integer.compare(a.getTile().getTileXCoordinate(), b.getTile().getTileXCoordinate());
+				if (c == 0)
+					c = Integer.compare(a.getSiteIndexInTile(), b.getSiteIndexInTile());
+				return c;
+			}
+		});
+
+		Map<String, Integer> codes = new LinkedHashMap<>();
+		int n = sites.size();
+		int[] ys = new int[n], xs = new int[n], indices = new int[n];
+		int[] tile_roots = new int[n], site_types = new int[n];
+		for (int i = 0; i < n; i++) {
+			Site s = sites.get(i);
+			ys[i] = s.getTile().getTileYCoordinate() - a_y;
+			xs[i] = s.getTile().getTileXCoordinate() - a_x;
+			indices[i] = s.getSiteIndexInTile();
+			tile_roots[i] = code(codes, s.getTile().getRootName());
+			site_types[i] = code(codes, String.valueOf(s.getSiteTypeEnum()));
+		}
+		return new ModuleSignature(codes.keySet().toArray(new String[0]), ys, xs, indices, tile_roots,
+				site_types);
+	}
+
+	private static int code(Map<String, Integer> codes, String type) {
+		Integer c = codes.get(type);
+		if (c == null) {
+			c = codes.size();
+			codes.put(type, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Load the stored signature of a cached module, or compute and store it.
+	 *
+	 * @param mod        Module loaded from cached_dcp.
+	 * @param cached_dcp Cached dcp of the module. May be null (not stored).
+	 * @param device     Device the module is placed on.
+	 * @param verbose    Print extra messages.
+	 * @return Signature of mod. Null if it has none.
+	 */
+	static ModuleSignature forModule(Module mod, File cached_dcp, Device device, boolean verbose) {
+		ModuleSignature sig = (cached_dcp == null) ? null : load(cached_dcp, device, verbose);
+		if (sig == null) {
+			sig = of(mod);
+			if (sig != null && cached_dcp != null)
+				sig.store(cached_dcp, device, verbose);
+		}
+		return sig;
+	}
+
+	/**
+	 * @param device Device to search.
+	 * @return Every site where the signature's anchor can go with all its sites
+	 *         landing on tiles and sites of the same types.
+	 */
+	List<Site> findAnchors(Device device) {
+		String key = device.getName() + ":" + Long.toHexString(hash);
+		List<Site> found = anchors.get(key);
+		ModuleSignature owner = anchor_owners.get(key);
+		if (found != null && sameShape(owner))
+			return found;
+		found = Collections.unmodifiableList(scan(device));
+		if (owner == null || sameShape(owner)) {
+			anchor_owners.put(key, this);
+			anchors.put(key, found);
+		}
+		return found;
+	}
+
+	/**
+	 * Check every site of the anchor's type. The anchor is the first entry, so
+	 * most sites fail on their own tile.
+	 */
+	private List<Site> scan(Device device) {
+		List<Site> found = new ArrayList<>();
+		Site[] sites;
+		try {
+			sites = device.getAllSitesOfType(SiteTypeEnum.valueOf(types[site_types[0]]));
+		} catch (IllegalArgumentException iae) {
+			return found; // stored by another version of RapidWright
+		}
+		if (sites == null)
+			return found;
+		for (Site s : sites)
+			if (s.getSiteIndexInTile() == indices[0]
+					&& matches(device, s.getTile().getTileXCoordinate(), s.getTile().getTileYCoordinate()))
+				found.add(s);
+		return found;
+	}
+
+	/**
+	 * @param x X coordinate of the anchor's tile.
+	 * @param y Y coordinate of the anchor's tile.
+	 */
+	private boolean matches(Device device, int x, int y) {
+		for (int i = 0; i < ys.length; i++) {
+			Tile t = device.getTile(types[tile_roots[i]] + "_X" + (x + xs[i]) + "Y" + (y + ys[i]));
+			if (t == null)
+				return false;
+			Site[] tile_sites = t.getSites();
+			if (tile_sites == null || indices[i] >= tile_sites.length
+					|| !String.valueOf(tile_sites[indices[i]].getSiteTypeEnum()).equals(types[site_types[i]]))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean sameShape(ModuleSignature o) {
+		return o != null && Arrays.equals(ys, o.ys) && Arrays.equals(xs, o.xs)
+				&& Arrays.equals(indices, o.indices) && Arrays.equals(typeNames(tile_roots), o.typeNames(o.tile_roots))
+				&& Arrays.equals(typeNames(site_types), o.typeNames(o.site_types));
+	}
+
+	private String[] typeNames(int[] codes) {
+		String[] names = new String[codes.length];
+		for (int i = 0; i < codes.length; i++)
+			names[i] = types[codes[i]];
+		return names;
+	}
+
+	/**
+	 * @return Stored signature. Null if none is stored for this dcp and device.
+	 */
+	private static ModuleSignature load(File cached_dcp, Device device, boolean verbose) {
+		File f = new File(cached_dcp.getParentFile(), SIGNATURE_FILE);
+		if (!f.isFile())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			if (!in.readUTF().equals(device.getName()) || !in.readUTF().equals(FileDigest.sampleDigest(cached_dcp))) {
+				printIfVerbose("Signature in '" + f.getAbsolutePath() + "' is out of date.", verbose);
+				return null;
+			}
+			String[] types = new String[in.readInt()];
+			for (int i = 0; i < types.length; i++)
+				types[i] = in.readUTF();
+			int n = in.readInt();
+			int[] ys = new int[n], xs = new int[n], indices = new int[n];
+			int[] tile_roots = new int[n], site_types = new int[n];
+			for (int i = 0; i < n; i++) {
+				ys[i] = in.readInt();
+				xs[i] = in.readInt();
+				indices[i] = in.readUnsignedShort();
+				tile_roots[i] = in.readUnsignedShort();
+				site_types[i] = in.readUnsignedShort();
+				if (tile_roots[i] >= types.length || site_types[i] >= types.length)
+					return null;
+			}
+			if (n == 0)
+				return null;
+			printIfVerbose("Loaded module signature from '" + f.getAbsolutePath() + "'.", verbose);
+			return new ModuleSignature(types, ys, xs, indices, tile_roots, site_types);
+		} catch (IOException ioe) {
+			printIfVerbose("Failed to read module signature from '" + f.getAbsolutePath() + "'.", verbose);
+			return null;
+		}
+	}
+
+	/**
+	 * Store the signature beside a cached dcp. Replaces the file atomically.
+	 */
+	private void store(File cached_dcp, Device device, boolean verbose) {
+		String digest = FileDigest.sampleDigest(cached_dcp);
+		if (digest == null)
+			return;
+		File f = new File(cached_dcp.getParentFile(), SIGNATURE_FILE);
+		File tmp = FileUtils.tempSibling(f);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(device.getName());
+			out.writeUTF(digest);
+			out.writeInt(types.length);
+			for (String t : types)
+				out.writeUTF(t);
+			out.writeInt(ys.length);
+			for (int i = 0; i < ys.length; i++) {
+				out.writeInt(ys[i]);
+				out.writeInt(xs[i]);
+				out.writeShort(indices[i]);
+				out.writeShort(tile_roots[i]);
+				out.writeShort(site_types[i]);
+			}
+		} catch (IOException ioe) {
+			MessageGenerator.briefError("Failed to write module signature to '" + f.getAbsolutePath() + "'.");
+			tmp.delete();
+			return;
+		}
+		if (FileUtils.moveAtomically(tmp, f))
+			printIfVerbose("Stored module signature in '" + f.getAbsolutePath() + "'.", verbose);
+	}
+
+	/**
+	 * Delete the signature of an entry.
+	 *
+	 * @param impl_dir Directory of the cache entry.
+	 */
+	static void delete(File impl_dir) {
+		new File(impl_dir, SIGNATURE_FILE).delete();
+	}
+
+	private static void printIfVerbose(String msg, boolean verbose) {
+		if (verbose)
+			MessageGenerator.briefMessage(msg);
+	}
+}
@@ -0,0 +1,206 @@
+package main.worker;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.xilinx.rapidwright.design.Module;
+import com.xilinx.rapidwright.design.SiteInst;
+import com.xilinx.rapidwright.device.Device;
+import com.xilinx.rapidwright.device.Site;
+import com.xilinx.rapidwright.device.Tile;
+
+/**
+ * One bit for every site of a device, set when the site is used by the design.
+ * <p>
+ * Used to reject anchors where a module would land on a used site before
+ * asking RapidWright whether the placement is valid. Sites of a module are
+ * mapped the way {@link Module#getCorrespondingSite} maps them: the tile with
+ * the same root name, shifted by the X and Y of the tile name (ROOT_X#Y#), and
+ * the same index in that tile. Grid rows and columns can't be used for this
+ * since clock rows and other tiles without a match in tile name coordinates
+ * shift them. A site that can't be mapped (no such tile or no such index in
+ * the tile) is never counted as used and is left to RapidWright. This is only
+ * a pre-filter: every anchor that passes is still checked by RapidWright.
+ * Routing is not tracked since modules may share the routing resources of a
+ * tile.
+ * <p>
+ * Safe to read from several threads while nothing is {@link #claim claimed}.
+ */
+class OccupancyMap {
+	/**
+	 * Ints per site in a footprint: root name code, X offset, Y offset and
+	 * index in the tile.
+	 */
+	static final int STRIDE = 4;
+
+	/**
+	 * Codes of tile root names, shared by all maps and footprints.
+	 */
+	private static final Map<String, Integer> root_codes = new HashMap<>();
+
+	private final int rows, cols;
+	/**
+	 * Bit of the first site of the tile at row * cols + col. The last element is
+	 * the number of sites.
+	 */
+	private final int[] first_site;
+	/**
+	 * Grid index (row * cols + col) of the tiles with sites by
+	 * {@link #key(int, int, int) root name code, X and Y}.
+	 */
+	private final Map<Long, Integer> tiles = new HashMap<>();
+	private final long[] bits;
+
+	/**
+	 * @param device Device to map. All sites start unused.
+	 */
+	OccupancyMap(Device device) {
+		rows = device.getRows();
+		cols = device.getColumns();
+		first_site = new int[rows * cols + 1];
+		int n = 0;
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				first_site[row * cols + col] = n;
+				Tile t = device.getTile(row, col);
+				if (t == null || t.getSites() == null || t.getSites().length == 0)
+					continue;
+				n += t.getSites().length;
+				tiles.put(key(rootCode(t.getRootName()), t.getTileXCoordinate(), t.getTileYCoordinate()),
+						row * cols + col);
+			}
+		}
+		first_site[rows * cols] = n;
+		bits = new long[(n + 63) >>> 6];
+	}
+
+	/**
+	 * Mark the sites of these site instances as used.
+	 */
+	void claim(Collection<SiteInst> site_insts) {
+		if (site_insts == null)
+			return;
+		for (SiteInst si : site_insts) {
+			Site s = si.getSite();
+			if (s == null)
+				continue;
+			int tile = s.getTile().getRow() * cols + s.getTile().getColumn();
+			int bit = bit(tile, s.getSiteIndexInTile());
+			if (bit >= 0)
+				bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Mark the sites a module would use at an anchor as used.
+	 *
+	 * @param footprint From {@link #footprint(Module)}.
+	 * @param anchor    Anchor site of the module.
+	 */
+	void claim(int[] footprint, Site anchor) {
+		set(footprint, anchor, true);
+	}
+
+	/**
+	 * Mark the sites a module uses at an anchor as unused.
+	 *
+	 * @param footprint From {@link #footprint(Module)}.
+	 * @param anchor    Anchor site of the module.
+	 */
+	void release(int[] footprint, Site anchor) {
+		set(footprint, anchor, false);
+	}
+
+	private void set(int[] footprint, Site anchor, boolean used) {
+		int x = anchor.getTile().getTileXCoordinate();
+		int y = anchor.getTile().getTileYCoordinate();
+		for (int i = 0; i + STRIDE - 1 < footprint.length; i += STRIDE) {
+			int bit = bit(footprint, i, x, y);
+			if (bit < 0)
+				continue;
+			if (used)
+				bits[bit >>> 6] |= 1L << bit;
+			else
+				bits[bit >>> 6] &= ~(1L << bit);
+		}
+	}
+
+	/**
+	 * @param mod Module to describe.
+	 * @return Tile root name code, tile X and Y offsets and site index of the
+	 *         sites of mod from its anchor ({@link #STRIDE} ints per site). Empty
+	 *         if mod has no anchor.
+	 */
+	static int[] footprint(Module mod) {
+		Site anchor = mod.getAnchor();
+		Collection<SiteInst> site_insts = mod.getSiteInsts();
+		if (anchor == null || site_insts == null)
+			return new int[0];
+		int[] fp = new int[STRIDE * site_insts.size()];
+		int i = 0;
+		for (SiteInst si : site_insts) {
+			Site s = si.getSite();
+			if (s == null)
+				continue;
+			fp[i++] = rootCode(s.getTile().getRootName());
+			fp[i++] = s.getTile().getTileXCoordinate() - anchor.getTile().getTileXCoordinate();
+			fp[i++] = s.getTile().getTileYCoordinate() - anchor.getTile().getTileYCoordinate();
+			fp[i++] = s.getSiteIndexInTile();
+		}
+		return (i == fp.length) ? fp : Arrays.copyOf(fp, i);
+	}
+
+	/**
+	 * @param footprint From {@link #footprint(Module)}.
+	 * @param anchor    Candidate anchor site.
+	 * @return True if a site of the module would land on a used site.
+	 */
+	boolean overlaps(int[] footprint, Site anchor) {
+		int x = anchor.getTile().getTileXCoordinate();
+		int y = anchor.getTile().getTileYCoordinate();
+		for (int i = 0; i + STRIDE - 1 < footprint.length; i += STRIDE) {
+			int bit = bit(footprint, i, x, y);
+			if (bit >= 0 && (bits[bit >>> 6] & (1L << bit)) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Bit of the site at footprint[i] for an anchor tile at x, y. -1 if
+	 *         there is no such site.
+	 */
+	private int bit(int[] footprint, int i, int x, int y) {
+		x += footprint[i + 1];
+		y += footprint[i + 2];
+		if (x < 0 || y < 0)
+			return -1;
+		Integer tile = tiles.get(key(footprint[i], x, y));
+		return (tile == null) ? -1 : bit(tile, footprint[i + 3]);
+	}
+
+	/**
+	 * @return Bit of the site. -1 if there is no such site.
+	 */
+	private int bit(int tile, int index) {
+		if (tile < 0 || tile >= rows * cols || index < 0)
+			return -1;
+		int bit = first_site[tile] + index;
+		return (bit < first_site[tile + 1]) ? bit : -1;
+	}
+
+	private static long key(int root, int x, int y) {
+		return ((long) root << 40) | ((long) x << 20) | y;
+	}
+
+	private static synchronized int rootCode(String root) {
+		Integer code = root_codes.get(root);
+		if (code == null) {
+			code = root_codes.size();
+			root_codes.put(root, code);
+		}
+		return code;
+	}
+}
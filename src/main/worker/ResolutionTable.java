@@ -0,0 +1,106 @@
+package main.worker;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the results of {@link Merger#findModuleInCache} for the rest of the
+ * run.
+ * <p>
+ * Results are keyed by cache entry directory (ie. module name and pblock) plus
+ * synth and initial files. Both hits and misses are remembered. A result is
+ * only forgotten when an entry it was based on is written again (see
+ * {@link #invalidate(File)}), which also forgets the results of every build
+ * that depended on it.
+ */
+class ResolutionTable {
+	private final Map<String, Result> results = new HashMap<>();
+	/**
+	 * Key to keys of results that looked at it.
+	 */
+	private final Map<String, Set<String>> dependants = new HashMap<>();
+
+	/**
+	 * A remembered result.
+	 */
+	static class Result {
+		final String impl_dir;
+		/**
+		 * Null if not found in cache.
+		 */
+		final File dcp;
+
+		Result(String impl_dir, File dcp) {
+			this.impl_dir = impl_dir;
+			this.dcp = dcp;
+		}
+	}
+
+	/**
+	 * @return Key for a lookup of the entry in impl_dir.
+	 */
+	static String key(File impl_dir, File synth, File initial) {
+		return impl_dir.getAbsolutePath() + "\n" + (synth == null ? "" : synth.getAbsolutePath()) + "\n"
+				+ (initial == null ? "" : initial.getAbsolutePath());
+	}
+
+	/**
+	 * @return Remembered result. Null if there is none (not if it was a miss).
+	 */
+	synchronized Result get(String key) {
+		return results.get(key);
+	}
+
+	/**
+	 * Remember a result.
+	 *
+	 * @param key      Key of the lookup.
+	 * @param impl_dir Directory of the cache entry.
+	 * @param dcp      Cached dcp. Null if it was a miss.
+	 * @param sub_keys Keys of the lookups of the subdirectives this result is
+	 *                 based on.
+	 */
+	synchronized void put(String key, File impl_dir, File dcp, Collection<String> sub_keys) {
+		results.put(key, new Result(impl_dir.getAbsolutePath(), dcp));
+		for (String sub : sub_keys) {
+			Set<String> deps = dependants.get(sub);
+			if (deps == null) {
+				deps = new HashSet<>();
+				dependants.put(sub, deps);
+			}
+			deps.add(key);
+		}
+	}
+
+	/**
+	 * Forget all results for the cache entry in impl_dir and all results that
+	 * depended on them.
+	 *
+	 * @param impl_dir Directory of the cache entry that was written.
+	 */
+	synchronized void invalidate(File impl_dir) {
+		String dir = impl_dir.getAbsolutePath();
+		ArrayDeque<String> queue = new ArrayDeque<>();
+		for (Iterator<Map.Entry<String, Result>> it = results.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Result> e = it.next();
+			if (e.getValue().impl_dir.equals(dir)) {
+				queue.add(e.getKey());
+				it.remove();
+			}
+		}
+		while (!queue.isEmpty()) {
+			Set<String> deps = dependants.remove(queue.poll());
+			if (deps == null)
+				continue;
+			for (String dep : deps)
+				if (results.remove(dep) != null)
+					queue.add(dep);
+		}
+	}
+}
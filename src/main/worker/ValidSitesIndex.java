@@ -0,0 +1,123 @@
+package main.worker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.xilinx.rapidwright.device.Device;
+import com.xilinx.rapidwright.device.Site;
+import com.xilinx.rapidwright.device.Tile;
+import com.xilinx.rapidwright.util.MessageGenerator;
+
+import main.util.FileDigest;
+import main.util.FileUtils;
+
+/**
+ * Stores the valid anchor sites of a cached module in a binary file beside its
+ * dcp, so {@link com.xilinx.rapidwright.design.ModuleInst#getAllValidPlacements()
+ * getAllValidPlacements} is only run once per implementation and device.
+ * <p>
+ * The file starts with the device name and the
+ * {@link FileDigest#sampleDigest(File) sample digest} of the dcp it was
+ * computed for. It is ignored if either doesn't match and is deleted when a new
+ * version of the entry is {@link CacheEntryLock#publish(File) published}. Each
+ * site is stored as the row and column of its tile and its index in the tile.
+ */
+class ValidSitesIndex {
+	static final String VALID_SITES_FILE = "valid_sites.bin";
+	private static final int MAGIC = 0x53425653; // "SBVS"
+	// 2: version 1 lists may have come from signatures in grid coordinates
+	private static final int VERSION = 2;
+
+	/**
+	 * @param cached_dcp Cached dcp of the module.
+	 * @param device     Device the module is placed on.
+	 * @param verbose    Print extra messages.
+	 * @return Valid anchor sites. Null if none are stored for this dcp and device.
+	 */
+	static List<Site> load(File cached_dcp, Device device, boolean verbose) {
+		File f = new File(cached_dcp.getParentFile(), VALID_SITES_FILE);
+		if (!f.isFile())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			if (!in.readUTF().equals(device.getName()) || !in.readUTF().equals(FileDigest.sampleDigest(cached_dcp))) {
+				printIfVerbose("Valid sites in '" + f.getAbsolutePath() + "' are out of date.", verbose);
+				return null;
+			}
+			int count = in.readInt();
+			List<Site> sites = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				int row = in.readInt();
+				int col = in.readInt();
+				int index = in.readUnsignedShort();
+				Tile t = device.getTile(row, col);
+				if (t == null || t.getSites() == null || index >= t.getSites().length)
+					return null;
+				sites.add(t.getSites()[index]);
+			}
+			printIfVerbose("Loaded " + count + " valid sites from '" + f.getAbsolutePath() + "'.", verbose);
+			return sites;
+		} catch (IOException ioe) {
+			printIfVerbose("Failed to read valid sites from '" + f.getAbsolutePath() + "'.", verbose);
+			return null;
+		}
+	}
+
+	/**
+	 * Store the valid anchor sites of a module. Replaces the file atomically so
+	 * readers never see part of it.
+	 *
+	 * @param cached_dcp Cached dcp of the module.
+	 * @param device     Device the module is placed on.
+	 * @param sites      Valid anchor sites.
+	 * @param verbose    Print extra messages.
+	 */
+	static void store(File cached_dcp, Device device, List<Site> sites, boolean verbose) {
+		String digest = FileDigest.sampleDigest(cached_dcp);
+		if (digest == null)
+			return;
+		File f = new File(cached_dcp.getParentFile(), VALID_SITES_FILE);
+		File tmp = FileUtils.tempSibling(f);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(device.getName());
+			out.writeUTF(digest);
+			out.writeInt(sites.size());
+			for (Site s : sites) {
+				out.writeInt(s.getTile().getRow());
+				out.writeInt(s.getTile().getColumn());
+				out.writeShort(s.getSiteIndexInTile());
+			}
+		} catch (IOException ioe) {
+			MessageGenerator.briefError("Failed to write valid sites to '" + f.getAbsolutePath() + "'.");
+			tmp.delete();
+			return;
+		}
+		if (FileUtils.moveAtomically(tmp, f))
+			printIfVerbose("Stored " + sites.size() + " valid sites in '" + f.getAbsolutePath() + "'.", verbose);
+	}
+
+	/**
+	 * Delete the valid sites of an entry.
+	 *
+	 * @param impl_dir Directory of the cache entry.
+	 */
+	static void delete(File impl_dir) {
+		new File(impl_dir, VALID_SITES_FILE).delete();
+	}
+
+	private static void printIfVerbose(String msg, boolean verbose) {
+		if (verbose)
+			MessageGenerator.briefMessage(msg);
+	}
+}
@@ -1,6 +1,8 @@
 package main.worker;
 
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.xilinx.rapidwright.util.FileTools;
 import com.xilinx.rapidwright.util.MessageGenerator;
@@ -10,14 +12,23 @@ import main.directive.DirectiveHeader;
 import main.parser.ArgsContainer;
 import main.tcl.TCLEnum;
 import main.tcl.TCLScript;
+import main.util.FileUtils;
 
 /**
  * Generates constraints files for each hier cell under a specified root.
+ * <p>
+ * Vivado writes each constraints file to a temporary file which is moved into
+ * the cache once the script succeeds, so other builders never read a partly
+ * written file.
  */
 public class XDCWriter {
 	public static final String CONSTRAINTS_FILE = "constraints.xdc";
 	private String options = null;
 	private ArgsContainer args = null;
+	/**
+	 * Temporary file to constraints file, for files written by the current script.
+	 */
+	private final Map<File, File> pending = new LinkedHashMap<>();
 
 	/**
 	 * Initialize default options for tcl scripts.
@@ -82,12 +93,32 @@ public class XDCWriter {
 
 		// Don't write constraints again if constraints file is newer than open project
 		if (!constr_file.isFile() || FileTools.isFileNewer(proj_filename, constr_file.getAbsolutePath())) {
-			script.add(TCLEnum.WRITE_XDC, options, null, constr_file.getAbsolutePath());
+			script.add(TCLEnum.WRITE_XDC, options, null, stage(constr_file).getAbsolutePath());
 			num_xdc_lines++;
 		}
 
-		if (num_xdc_lines > 0)
+		if (num_xdc_lines > 0) {
 			script.run();
+			for (Map.Entry<File, File> e : pending.entrySet()) {
+				if (!FileUtils.moveAtomically(e.getKey(), e.getValue())) {
+					e.getKey().delete();
+					MessageGenerator.briefErrorAndExit("\nFailed to write constraints file '"
+							+ e.getValue().getAbsolutePath() + "'.\nExiting.");
+				}
+			}
+		}
+		pending.clear();
+	}
+
+	/**
+	 * @param constr_file Constraints file to write.
+	 * @return Temporary file for Vivado to write instead. Ends in .xdc since
+	 *         write_xdc adds that extension otherwise.
+	 */
+	private File stage(File constr_file) {
+		File tmp = FileUtils.tempSibling(constr_file, ".xdc");
+		pending.put(tmp, constr_file);
+		return tmp;
 	}
 
 	/**
@@ -114,7 +145,7 @@ public class XDCWriter {
 		// Don't write constraints again if constraints file is newer than open project
 		if (directive.isRefresh() || !constr_file.isFile()
 				|| FileTools.isFileNewer(proj_filename, constr_file.getAbsolutePath())) {
-			addWriteCmd(script, hier_cell_name, constr_file.getAbsolutePath());
+			addWriteCmd(script, hier_cell_name, stage(constr_file).getAbsolutePath());
 			num_lines++;
 		}
 
@@ -159,7 +190,7 @@ public class XDCWriter {
 		String pblock = directive.getPBlockStr();
 		File impl_dir;
 		if (pblock != null) {
-			impl_dir = new File(mod_dir, Merger.getPblockPath(pblock));
+			impl_dir = new File(mod_dir, Merger.getPblockPath(directive, args));
 		} else {
 			printIfVerbose("\nNo pblock specified for module '" + module_name + "'.", verbose);
 			impl_dir = mod_dir;